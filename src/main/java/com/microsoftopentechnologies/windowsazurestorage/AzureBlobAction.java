@@ -6,6 +6,7 @@ import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInf
 import com.microsoftopentechnologies.windowsazurestorage.helper.AzureStorageAccount;
 import com.microsoftopentechnologies.windowsazurestorage.helper.AzureUtils;
 import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ArtifactManifest;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.model.Api;
 import hudson.model.Run;
@@ -21,8 +22,13 @@ import org.springframework.security.core.Authentication;
 
 import jakarta.servlet.ServletException;
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.net.URLDecoder;
 
 @ExportedBean
@@ -34,6 +40,8 @@ public class AzureBlobAction implements RunAction2 {
     private final AzureBlob zipArchiveBlob;
     private final List<AzureBlob> individualBlobs;
     private final String storageCredentialId;
+    private List<AzureBlob> manifestBlobs;
+    private transient Map<String, String> contentKeys;
 
     public AzureBlobAction(
             List<AzureBlob> individualBlobs,
@@ -89,6 +97,61 @@ public class AzureBlobAction implements RunAction2 {
         return allowAnonymousAccess;
     }
 
+    /**
+     * Manifests mapping the artifact names to content addressed blobs, empty unless the artifacts were uploaded in
+     * content addressable mode.
+     */
+    public synchronized List<AzureBlob> getManifestBlobs() {
+        return manifestBlobs == null ? Collections.emptyList() : new ArrayList<>(manifestBlobs);
+    }
+
+    public synchronized void addManifestBlob(AzureBlob manifestBlob) {
+        if (manifestBlobs == null) {
+            manifestBlobs = new ArrayList<>();
+        }
+        manifestBlobs.add(manifestBlob);
+        contentKeys = null;
+    }
+
+    /**
+     * Returns the name of the blob holding an artifact, which differs from the artifact name for artifacts stored
+     * by content.
+     *
+     * @param blob the artifact
+     * @return the name of the blob to read
+     */
+    public String resolveStorageName(AzureBlob blob) throws IOException {
+        if (getManifestBlobs().isEmpty() || !Constants.BLOB_STORAGE.equalsIgnoreCase(blob.getStorageType())) {
+            return blob.getBlobName();
+        }
+        String contentKey = getContentKeys().get(blob.getBlobName());
+        return contentKey == null ? blob.getBlobName() : contentKey;
+    }
+
+    private synchronized Map<String, String> getContentKeys() throws IOException {
+        if (contentKeys == null) {
+            Map<String, String> keys = new HashMap<>();
+            for (AzureBlob manifestBlob : manifestBlobs) {
+                StorageAccountInfo accountInfo = getStorageAccountInfo(manifestBlob.getCredentialsId());
+                if (accountInfo == null) {
+                    throw new IOException("Azure Storage account global configuration is missing");
+                }
+                try {
+                    String json = AzureUtils.getBlobContainerReference(accountInfo,
+                                    manifestBlob.getContainerOrFileShare(), false, true, null)
+                            .getBlobClient(manifestBlob.getBlobName())
+                            .downloadContent()
+                            .toString();
+                    keys.putAll(ArtifactManifest.fromJson(json).getContentKeys());
+                } catch (URISyntaxException e) {
+                    throw new IOException(e);
+                }
+            }
+            contentKeys = keys;
+        }
+        return contentKeys;
+    }
+
     public void doProcessDownloadRequest(
             StaplerRequest2 request,
             StaplerResponse2 response) throws IOException, ServletException {
@@ -169,8 +232,8 @@ public class AzureBlobAction implements RunAction2 {
     private String generateReadSASURL(StorageAccountInfo storageAccountInfo, AzureBlob blob)
             throws Exception {
         if (blob.getStorageType().equalsIgnoreCase(Constants.BLOB_STORAGE)) {
-            return AzureUtils.generateBlobSASURL(storageAccountInfo, blob.getContainerOrFileShare(), blob.getBlobName(),
-                    new BlobSasPermission().setReadPermission(true));
+            return AzureUtils.generateBlobSASURL(storageAccountInfo, blob.getContainerOrFileShare(),
+                    resolveStorageName(blob), new BlobSasPermission().setReadPermission(true));
         } else if (blob.getStorageType().equalsIgnoreCase(Constants.FILE_STORAGE)) {
             return AzureUtils.generateFileSASURL(storageAccountInfo, blob.getContainerOrFileShare(), blob.getBlobName(),
                     new ShareFileSasPermission().setReadPermission(true));
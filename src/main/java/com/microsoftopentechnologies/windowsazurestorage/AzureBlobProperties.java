@@ -101,31 +101,49 @@ public class AzureBlobProperties implements Describable<AzureBlobProperties> {
         this.detectContentType = detectContentType;
     }
 
-    public PartialBlobProperties configure(FilePath src, EnvVars env) throws InterruptedException, IOException {
-        String resolvedContentType = Util.replaceMacro(contentType, env);
-        if (StringUtils.isBlank(resolvedContentType) && detectContentType) {
-            resolvedContentType = detectContentType(src);
-        }
-
+    /**
+     * Resolves the properties shared by all the files of an upload, leaving the content type unset when it has to
+     * be detected from each file.
+     */
+    public PartialBlobProperties resolve(EnvVars env) {
         return new PartialBlobProperties(
                 Util.replaceMacro(contentEncoding, env),
                 Util.replaceMacro(contentLanguage, env),
                 Util.replaceMacro(cacheControl, env),
-                resolvedContentType
+                Util.replaceMacro(contentType, env)
         );
     }
 
-    private String detectContentType(FilePath file) throws InterruptedException, IOException {
-        Tika tika = new Tika();
-        try (InputStream stream = file.read()) {
-            if (file.getName().toLowerCase().endsWith(".js")) {
-                // Tika has a shortcoming not able to properly identify JavaScript files, determine type by extension
-                // rather than Tika for those.
-                return "application/javascript";
-            } else {
-                return tika.detect(stream, file.getName());
+    /**
+     * Resolves the properties of a single file, detecting its content type when it has to be.
+     *
+     * @deprecated Use {@link #resolve(EnvVars)} once per upload and {@link #detectContentType(String, InputStream)}
+     * for each file, where the file is.
+     */
+    @Deprecated
+    public PartialBlobProperties configure(FilePath src, EnvVars env) throws InterruptedException, IOException {
+        PartialBlobProperties properties = resolve(env);
+        if (StringUtils.isBlank(properties.getContentType()) && detectContentType) {
+            try (InputStream stream = src.read()) {
+                properties.setContentType(detectContentType(src.getName(), stream));
             }
         }
+        return properties;
+    }
+
+    /**
+     * Detects the content type of a file from its name and first bytes.
+     *
+     * @param name   name of the file
+     * @param stream content of the file
+     */
+    public static String detectContentType(String name, InputStream stream) throws IOException {
+        if (name.toLowerCase().endsWith(".js")) {
+            // Tika has a shortcoming not able to properly identify JavaScript files, determine type by extension
+            // rather than Tika for those.
+            return "application/javascript";
+        }
+        return new Tika().detect(stream, name);
     }
 
     @SuppressWarnings("unchecked")
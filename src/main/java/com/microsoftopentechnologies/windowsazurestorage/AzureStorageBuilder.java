@@ -26,6 +26,7 @@ import com.microsoftopentechnologies.windowsazurestorage.service.DownloadFromBui
 import com.microsoftopentechnologies.windowsazurestorage.service.DownloadFromContainerService;
 import com.microsoftopentechnologies.windowsazurestorage.service.DownloadFromFileService;
 import com.microsoftopentechnologies.windowsazurestorage.service.StoragePluginService;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ArchiveFormat;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.DownloadServiceData;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.AbortException;
@@ -79,10 +80,13 @@ public class AzureStorageBuilder extends Builder implements SimpleBuildStep {
     private String excludeFilesPattern = "";
     private String downloadDirLoc = "";
     private boolean flattenDirectories;
+    private boolean incremental;
+    private boolean cacheOnAgent;
     private boolean includeArchiveZips;
     private BuildSelector buildSelector;
     private String projectName = "";
     private boolean verbose;
+    private int maxConcurrency;
 
     private transient AzureStorageAccount.StorageAccountCredential storageCreds;
 
@@ -114,6 +118,16 @@ public class AzureStorageBuilder extends Builder implements SimpleBuildStep {
         this.flattenDirectories = flattenDirectories;
     }
 
+    @DataBoundSetter
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    @DataBoundSetter
+    public void setCacheOnAgent(boolean cacheOnAgent) {
+        this.cacheOnAgent = cacheOnAgent;
+    }
+
     @DataBoundSetter
     public void setIncludeArchiveZips(boolean includeArchiveZips) {
         this.includeArchiveZips = includeArchiveZips;
@@ -158,6 +172,15 @@ public class AzureStorageBuilder extends Builder implements SimpleBuildStep {
         return buildSelector;
     }
 
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = Math.max(0, maxConcurrency);
+    }
+
     public boolean isVerbose() {
         return verbose;
     }
@@ -218,6 +241,14 @@ public class AzureStorageBuilder extends Builder implements SimpleBuildStep {
         return flattenDirectories;
     }
 
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public boolean isCacheOnAgent() {
+        return cacheOnAgent;
+    }
+
     public String getFileShare() {
         return this.fileShare;
     }
@@ -278,12 +309,14 @@ public class AzureStorageBuilder extends Builder implements SimpleBuildStep {
 
             // Resolve exclude patterns
             String expExcludePattern = Utils.replaceMacro(excludeFilesPattern, envVars);
-            // Exclude archive.zip by default.
+            // Exclude archive.zip and archive.tar.zst by default.
             if (!includeArchiveZips) {
-                if (expExcludePattern != null) {
-                    expExcludePattern += ",archive.zip";
-                } else {
-                    expExcludePattern = "archive.zip";
+                for (ArchiveFormat format : ArchiveFormat.values()) {
+                    if (expExcludePattern != null) {
+                        expExcludePattern += "," + format.getFileName();
+                    } else {
+                        expExcludePattern = format.getFileName();
+                    }
                 }
             }
 
@@ -298,11 +331,14 @@ public class AzureStorageBuilder extends Builder implements SimpleBuildStep {
             builderServiceData.setContainerName(expContainerName);
             builderServiceData.setFileShare(expShareName);
             builderServiceData.setFlattenDirectories(flattenDirectories);
+            builderServiceData.setIncremental(incremental);
+            builderServiceData.setCacheOnAgent(cacheOnAgent);
             builderServiceData.setDeleteFromAzureAfterDownload(deleteFromAzureAfterDownload);
             builderServiceData.setDownloadType(getDownloadType());
             builderServiceData.setProjectName(Util.replaceMacro(projectName, envVars));
             builderServiceData.setBuildSelector(buildSelector);
             builderServiceData.setVerbose(isVerbose());
+            builderServiceData.setMaxConcurrency(maxConcurrency);
 
             final StoragePluginService<DownloadServiceData> downloadService = getDownloadService(builderServiceData);
             int filesDownloaded = downloadService.execute();
@@ -0,0 +1,276 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInfo;
+import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.helper.AzureStorageAccount;
+import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
+import com.microsoftopentechnologies.windowsazurestorage.helper.Utils;
+import com.microsoftopentechnologies.windowsazurestorage.service.CopyFromBuildService;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.CopyServiceData;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.AbortException;
+import hudson.DescriptorExtensionList;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Descriptor;
+import hudson.model.Item;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.copyartifact.BuildSelector;
+import hudson.security.ACL;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Builder;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import jenkins.tasks.SimpleBuildStep;
+import org.apache.commons.lang3.StringUtils;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Promotes the Azure artifacts of another build by copying them inside Azure storage, and records the copies as
+ * the artifacts of the current build. Nothing is transferred through Jenkins, so the step does not need a
+ * workspace.
+ */
+public class AzureStorageCopyBuilder extends Builder implements SimpleBuildStep {
+    private final String storageCredentialId;
+    private final String projectName;
+    private final String containerName;
+    private BuildSelector buildSelector;
+    private String destinationCredentialId;
+    private String virtualPath = "";
+    private String includeFilesPattern = "";
+    private String excludeFilesPattern = "";
+    private boolean includeArchiveZips;
+    private int maxConcurrency;
+    private boolean verbose;
+
+    @DataBoundConstructor
+    public AzureStorageCopyBuilder(String storageCredentialId, String projectName, String containerName) {
+        this.storageCredentialId = storageCredentialId;
+        this.projectName = projectName;
+        this.containerName = containerName;
+    }
+
+    public String getStorageCredentialId() {
+        return storageCredentialId;
+    }
+
+    public String getProjectName() {
+        return projectName;
+    }
+
+    public String getContainerName() {
+        return containerName;
+    }
+
+    public BuildSelector getBuildSelector() {
+        return buildSelector;
+    }
+
+    @DataBoundSetter
+    public void setBuildSelector(BuildSelector buildSelector) {
+        this.buildSelector = buildSelector;
+    }
+
+    /**
+     * Credentials of the storage account to copy to, the source account when empty.
+     */
+    public String getDestinationCredentialId() {
+        return destinationCredentialId;
+    }
+
+    @DataBoundSetter
+    public void setDestinationCredentialId(String destinationCredentialId) {
+        this.destinationCredentialId = Util.fixEmpty(destinationCredentialId);
+    }
+
+    public String getVirtualPath() {
+        return virtualPath;
+    }
+
+    @DataBoundSetter
+    public void setVirtualPath(String virtualPath) {
+        this.virtualPath = virtualPath;
+    }
+
+    public String getIncludeFilesPattern() {
+        return includeFilesPattern;
+    }
+
+    @DataBoundSetter
+    public void setIncludeFilesPattern(String includeFilesPattern) {
+        this.includeFilesPattern = includeFilesPattern;
+    }
+
+    public String getExcludeFilesPattern() {
+        return excludeFilesPattern;
+    }
+
+    @DataBoundSetter
+    public void setExcludeFilesPattern(String excludeFilesPattern) {
+        this.excludeFilesPattern = excludeFilesPattern;
+    }
+
+    public boolean isIncludeArchiveZips() {
+        return includeArchiveZips;
+    }
+
+    @DataBoundSetter
+    public void setIncludeArchiveZips(boolean includeArchiveZips) {
+        this.includeArchiveZips = includeArchiveZips;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = Math.max(0, maxConcurrency);
+    }
+
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    @DataBoundSetter
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    public BuildStepMonitor getRequiredMonitorService() {
+        return BuildStepMonitor.NONE;
+    }
+
+    @Override
+    public boolean requiresWorkspace() {
+        return false;
+    }
+
+    @Override
+    public void perform(@NonNull Run<?, ?> run, @NonNull EnvVars env, @NonNull TaskListener listener)
+            throws IOException {
+        StorageAccountInfo source = getStorageAccountInfo(run, storageCredentialId);
+        String destinationId = destinationCredentialId == null ? storageCredentialId : destinationCredentialId;
+        StorageAccountInfo destination = getStorageAccountInfo(run, destinationId);
+
+        String expContainerName = Utils.replaceMacro(Util.fixNull(containerName), env, Locale.ENGLISH);
+        if (!Utils.validateContainerName(expContainerName)) {
+            throw new AbortException(Messages.WAStoragePublisher_container_name_err());
+        }
+        String expVirtualPath = Utils.replaceMacro(Util.fixNull(virtualPath), env);
+        if (StringUtils.isNotBlank(expVirtualPath) && !expVirtualPath.endsWith(Constants.FWD_SLASH)) {
+            expVirtualPath += Constants.FWD_SLASH;
+        }
+        String expIncludePattern = Utils.replaceMacro(includeFilesPattern, env);
+        if (StringUtils.isBlank(expIncludePattern)) {
+            expIncludePattern = "**/*";
+        }
+
+        CopyServiceData serviceData = new CopyServiceData(run, listener, source);
+        serviceData.setProjectName(Util.replaceMacro(projectName, env));
+        serviceData.setBuildSelector(buildSelector);
+        serviceData.setIncludeFilesPattern(expIncludePattern);
+        serviceData.setExcludeFilesPattern(Utils.replaceMacro(excludeFilesPattern, env));
+        serviceData.setIncludeArchiveZips(includeArchiveZips);
+        serviceData.setDestinationStorageAccountInfo(destination);
+        serviceData.setDestinationCredentialsId(destinationId);
+        serviceData.setContainerName(expContainerName);
+        serviceData.setVirtualPath(expVirtualPath);
+        serviceData.setMaxConcurrency(maxConcurrency);
+        serviceData.setVerbose(verbose);
+
+        try {
+            int filesCopied = new CopyFromBuildService(serviceData).execute();
+            if (filesCopied == 0) {
+                listener.getLogger().println(Messages.AzureStorageCopyBuilder_nofiles_copied());
+                return;
+            }
+            listener.getLogger().println(Messages.AzureStorageCopyBuilder_files_copied_count(filesCopied));
+
+            List<AzureBlob> copiedBlobs = new ArrayList<>(serviceData.getCopiedBlobs());
+            AzureBlobAction existAction = run.getAction(AzureBlobAction.class);
+            if (existAction != null) {
+                existAction.getIndividualBlobs().addAll(copiedBlobs);
+            } else {
+                run.addAction(new AzureBlobAction(copiedBlobs, null, false, destinationId));
+            }
+        } catch (WAStorageException e) {
+            e.printStackTrace(listener.error(Messages.AzureStorageCopyBuilder_copy_err(source.getStorageAccName())));
+            run.setResult(Result.UNSTABLE);
+        }
+    }
+
+    private static StorageAccountInfo getStorageAccountInfo(Run<?, ?> run, String credentialsId)
+            throws AbortException {
+        AzureStorageAccount.StorageAccountCredential credential =
+                AzureStorageAccount.getStorageAccountCredential(run.getParent(), credentialsId);
+        if (credential == null) {
+            throw new AbortException(String.format("Cannot find storage account credentials with ID: '%s'",
+                    credentialsId));
+        }
+        return AzureStorageAccount.convertToStorageAccountInfo(credential);
+    }
+
+    @Extension
+    @Symbol("azureCopy")
+    public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+        @Override
+        public boolean isApplicable(@SuppressWarnings("rawtypes") Class<? extends AbstractProject> jobType) {
+            return true;
+        }
+
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return Messages.AzureStorageCopyBuilder_displayName();
+        }
+
+        public ListBoxModel doFillStorageCredentialIdItems(@AncestorInPath Item owner) {
+            return new StandardListBoxModel().withAll(
+                    CredentialsProvider.lookupCredentialsInItem(
+                            AzureStorageAccount.class, owner, ACL.SYSTEM2, Collections.emptyList()));
+        }
+
+        public ListBoxModel doFillDestinationCredentialIdItems(@AncestorInPath Item owner) {
+            return new StandardListBoxModel().includeEmptyValue().withAll(
+                    CredentialsProvider.lookupCredentialsInItem(
+                            AzureStorageAccount.class, owner, ACL.SYSTEM2, Collections.emptyList()));
+        }
+
+        public DescriptorExtensionList<BuildSelector, Descriptor<BuildSelector>> getAvailableBuildSelectorList() {
+            return DescriptorExtensionList.createDescriptorList(Jenkins.get(), BuildSelector.class);
+        }
+    }
+}
@@ -27,6 +27,7 @@ import com.microsoftopentechnologies.windowsazurestorage.helper.Utils;
 import com.microsoftopentechnologies.windowsazurestorage.service.UploadService;
 import com.microsoftopentechnologies.windowsazurestorage.service.UploadToBlobService;
 import com.microsoftopentechnologies.windowsazurestorage.service.UploadToFileService;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ArchiveFormat;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadServiceData;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadType;
 import edu.umd.cs.findbugs.annotations.NonNull;
@@ -100,7 +101,14 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
     private boolean doNotWaitForPreviousBuild;
     private final String storageCredentialId;
     private boolean onlyUploadModifiedArtifacts;
+    private boolean onlyUploadChangedContent;
+    private boolean contentAddressable;
+    private boolean streamArchive;
+    private ArchiveFormat archiveFormat = ArchiveFormat.ZIP;
+    private int compressionLevel;
     private boolean verbose;
+    private int maxConcurrency;
+    private int blockBudget;
 
     private transient AzureStorageAccount.StorageAccountCredential storageCreds;
 
@@ -200,11 +208,54 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
         this.onlyUploadModifiedArtifacts = onlyUploadModifiedArtifacts;
     }
 
+    @DataBoundSetter
+    public void setOnlyUploadChangedContent(boolean onlyUploadChangedContent) {
+        this.onlyUploadChangedContent = onlyUploadChangedContent;
+    }
+
+    @DataBoundSetter
+    public void setContentAddressable(boolean contentAddressable) {
+        this.contentAddressable = contentAddressable;
+    }
+
+    @DataBoundSetter
+    public void setStreamArchive(boolean streamArchive) {
+        this.streamArchive = streamArchive;
+    }
+
+    @DataBoundSetter
+    public void setArchiveFormat(ArchiveFormat archiveFormat) {
+        this.archiveFormat = archiveFormat;
+    }
+
+    @DataBoundSetter
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = Math.max(0, compressionLevel);
+    }
+
     @DataBoundSetter
     public void setMetadata(List<AzureBlobMetadataPair> metadata) {
         this.metadata = metadata;
     }
 
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = Math.max(0, maxConcurrency);
+    }
+
+    public int getBlockBudget() {
+        return blockBudget;
+    }
+
+    @DataBoundSetter
+    public void setBlockBudget(int blockBudget) {
+        this.blockBudget = Math.max(0, blockBudget);
+    }
+
     public boolean isVerbose() {
         return verbose;
     }
@@ -326,6 +377,41 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
         return onlyUploadModifiedArtifacts;
     }
 
+    /**
+     * If true, files whose content is already stored at the target path are not uploaded again.
+     */
+    public boolean isOnlyUploadChangedContent() {
+        return onlyUploadChangedContent;
+    }
+
+    /**
+     * If true, files are stored once under their content hash and a per build manifest maps their names to it.
+     */
+    public boolean isContentAddressable() {
+        return contentAddressable;
+    }
+
+    /**
+     * If true, the archive is zipped straight into Azure storage without a temporary file on the agent.
+     */
+    public boolean isStreamArchive() {
+        return streamArchive;
+    }
+
+    /**
+     * Format of the archive, zip when not set by older configurations.
+     */
+    public ArchiveFormat getArchiveFormat() {
+        return archiveFormat == null ? ArchiveFormat.ZIP : archiveFormat;
+    }
+
+    /**
+     * Compression level of tar.zst archives, 0 for the default level.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
     public String getStorageCredentialId() {
         return storageCredentialId;
     }
@@ -455,8 +541,15 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
         serviceData.setUploadType(getArtifactUploadType());
         serviceData.setAzureBlobMetadata(metadata);
         serviceData.setOnlyUploadModifiedArtifacts(onlyUploadModifiedArtifacts);
+        serviceData.setOnlyUploadChangedContent(onlyUploadChangedContent);
+        serviceData.setContentAddressable(contentAddressable);
+        serviceData.setStreamArchive(streamArchive);
+        serviceData.setArchiveFormat(getArchiveFormat());
+        serviceData.setCompressionLevel(compressionLevel);
         serviceData.setCredentialsId(getStorageCredentialId());
         serviceData.setVerbose(isVerbose());
+        serviceData.setMaxConcurrency(maxConcurrency);
+        serviceData.setBlockBudget(blockBudget);
         // Resolve virtual path
         String expVP = Utils.replaceMacro(Util.fixNull(virtualPath), envVars);
 
@@ -495,8 +588,12 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
                     List<AzureBlob> existActionIndividualBlobs = existAction.getIndividualBlobs();
                     existActionIndividualBlobs.addAll(individualBlobs);
                 } else {
-                    run.addAction(new AzureBlobAction(individualBlobs, zipArchiveBlob, allowAnonymousAccess,
-                            getStorageCredentialId()));
+                    existAction = new AzureBlobAction(individualBlobs, zipArchiveBlob, allowAnonymousAccess,
+                            getStorageCredentialId());
+                    run.addAction(existAction);
+                }
+                if (serviceData.getManifestBlob() != null) {
+                    existAction.addManifestBlob(serviceData.getManifestBlob());
                 }
             }
         } catch (Exception e) {
@@ -159,17 +159,26 @@ public class AzureStorageAccount extends BaseStandardCredentials {
         if (StringUtils.isBlank(storageCredentialId)) {
             return null;
         }
-        AzureStorageAccount creds = CredentialsMatchers.firstOrNull(
+        AzureStorageAccount creds = getStorageAccount(owner, storageCredentialId);
+        if (creds == null) {
+            return new AzureStorageAccount.StorageAccountCredential();
+        }
+        return creds.storageData;
+    }
+
+    /**
+     * @param owner               the item the credentials are used by, {@code null} for the global ones
+     * @param storageCredentialId id of the credentials
+     * @return the credentials visible to the item, {@code null} if there are none with this id
+     */
+    public static AzureStorageAccount getStorageAccount(Item owner, String storageCredentialId) {
+        return CredentialsMatchers.firstOrNull(
                 CredentialsProvider.lookupCredentialsInItem(
                         AzureStorageAccount.class,
                         owner,
                         ACL.SYSTEM2,
                         Collections.emptyList()),
                 CredentialsMatchers.withId(storageCredentialId));
-        if (creds == null) {
-            return new AzureStorageAccount.StorageAccountCredential();
-        }
-        return creds.storageData;
     }
 
     /**
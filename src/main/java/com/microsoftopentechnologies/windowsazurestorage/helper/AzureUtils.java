@@ -23,6 +23,7 @@ import com.azure.storage.blob.BlobServiceClientBuilder;
 import com.azure.storage.blob.models.BlobAccessPolicy;
 import com.azure.storage.blob.models.BlobSignedIdentifier;
 import com.azure.storage.blob.models.PublicAccessType;
+import com.azure.storage.blob.sas.BlobContainerSasPermission;
 import com.azure.storage.blob.sas.BlobSasPermission;
 import com.azure.storage.blob.sas.BlobServiceSasSignatureValues;
 import com.azure.storage.common.StorageSharedKeyCredential;
@@ -33,11 +34,17 @@ import com.azure.storage.file.share.ShareFileClient;
 import com.azure.storage.file.share.ShareServiceClient;
 import com.azure.storage.file.share.ShareServiceClientBuilder;
 import com.azure.storage.file.share.sas.ShareFileSasPermission;
+import com.azure.storage.file.share.sas.ShareSasPermission;
 import com.azure.storage.file.share.sas.ShareServiceSasSignatureValues;
 import com.microsoftopentechnologies.windowsazurestorage.Messages;
 import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInfo;
 import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import hudson.ProxyConfiguration;
+import hudson.Util;
+import hudson.util.Secret;
 import io.jenkins.plugins.azuresdk.HttpClientRetriever;
+import jenkins.model.Jenkins;
+import org.apache.commons.codec.digest.DigestUtils;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
@@ -58,6 +65,15 @@ public final class AzureUtils {
 
     private static final int ONE_WEEK = 7;
 
+    private static final String DEFAULT_RETRY = "default";
+    private static final String NO_RETRY = "none";
+    private static final int CLIENT_CACHE_SIZE = Integer.getInteger(
+            AzureUtils.class.getName() + ".clientCacheSize", 64);
+    private static final ServiceClientCache<BlobServiceClient> BLOB_CLIENTS =
+            new ServiceClientCache<>(CLIENT_CACHE_SIZE);
+    private static final ServiceClientCache<ShareServiceClient> SHARE_CLIENTS =
+            new ServiceClientCache<>(CLIENT_CACHE_SIZE);
+
     /**
      * This method validates Storage Account credentials by checking for a dummy
      * container existence.
@@ -90,18 +106,70 @@ public final class AzureUtils {
     }
 
     public static BlobServiceClient getCloudStorageAccount(final StorageAccountInfo storageAccount) {
-        return getCloudStorageAccount(storageAccount, new RequestRetryOptions());
+        return getCachedBlobServiceClient(storageAccount, DEFAULT_RETRY);
     }
 
     public static ShareServiceClient getShareClient(final StorageAccountInfo storageAccount)
             throws MalformedURLException, URISyntaxException {
-        return new ShareServiceClientBuilder()
-                .credential(new StorageSharedKeyCredential(storageAccount.getStorageAccName(),
-                        storageAccount.getStorageAccountKey()))
-                .httpClient(HttpClientRetriever.get())
-                .endpoint(storageAccount.getBlobEndPointURL()
-                        .replace("blob", "file")) // TODO add file endpoint
-                .buildClient();
+        final String endpoint = storageAccount.getBlobEndPointURL()
+                .replace("blob", "file"); // TODO add file endpoint
+        return SHARE_CLIENTS.get(storageAccount.getStorageAccName(), endpoint, DEFAULT_RETRY,
+                getClientFingerprint(storageAccount),
+                () -> new ShareServiceClientBuilder()
+                        .credential(new StorageSharedKeyCredential(storageAccount.getStorageAccName(),
+                                storageAccount.getStorageAccountKey()))
+                        .httpClient(HttpClientRetriever.get())
+                        .endpoint(endpoint)
+                        .buildClient());
+    }
+
+    /**
+     * Service clients are cached per account, endpoint and retry profile, building one sets up a new pipeline
+     * and often a new HTTP client.
+     */
+    private static BlobServiceClient getCachedBlobServiceClient(
+            final StorageAccountInfo storageAccount, final String retryProfile) {
+        return BLOB_CLIENTS.get(storageAccount.getStorageAccName(), storageAccount.getBlobEndPointURL(),
+                retryProfile, getClientFingerprint(storageAccount),
+                () -> getCloudStorageAccount(storageAccount, NO_RETRY.equals(retryProfile)
+                        ? noRetryOptions() : new RequestRetryOptions()));
+    }
+
+    /**
+     * Fingerprint of what a cached client is built from besides its key: the account key, and the Jenkins proxy
+     * configuration the HTTP client is built with, so a client is replaced once either of them changed.
+     */
+    private static String getClientFingerprint(StorageAccountInfo storageAccount) {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        return DigestUtils.sha256Hex(Util.fixNull(storageAccount.getStorageAccountKey()) + '\n'
+                + getProxyFingerprint(jenkins == null ? null : jenkins.getProxy()));
+    }
+
+    /**
+     * Fingerprint of a proxy configuration, including its password, so clients built for a proxy are told apart
+     * from the ones built before its settings changed without keeping the password itself.
+     *
+     * @param proxy the proxy configuration, {@code null} for none
+     * @return the SHA-256 of the settings, empty without proxy
+     */
+    public static String getProxyFingerprint(ProxyConfiguration proxy) {
+        if (proxy == null) {
+            return "";
+        }
+        return DigestUtils.sha256Hex(String.join("\n", Util.fixNull(proxy.getName()),
+                String.valueOf(proxy.getPort()), Util.fixNull(proxy.getUserName()),
+                Secret.toString(proxy.getSecretPassword()), Util.fixNull(proxy.getNoProxyHost())));
+    }
+
+    private static RequestRetryOptions noRetryOptions() {
+        return new RequestRetryOptions(
+                RetryPolicyType.FIXED,
+                1,
+                Duration.ofSeconds(Integer.MAX_VALUE),
+                Duration.ofMillis(1),
+                Duration.ofSeconds(1),
+                null
+        );
     }
 
     public static BlobServiceClient getCloudStorageAccount(
@@ -122,19 +190,8 @@ public final class AzureUtils {
                                                                 Boolean cntPubAccess)
             throws URISyntaxException, IOException {
 
-        RequestRetryOptions retryOptions = new RequestRetryOptions();
-        if (!allowRetry) {
-            retryOptions = new RequestRetryOptions(
-                    RetryPolicyType.FIXED,
-                    1,
-                    Duration.ofSeconds(Integer.MAX_VALUE),
-                    Duration.ofMillis(1),
-                    Duration.ofSeconds(1),
-                    null
-            );
-        }
-
-        final BlobServiceClient cloudStorageAccount = getCloudStorageAccount(storageAccount, retryOptions);
+        final BlobServiceClient cloudStorageAccount = getCachedBlobServiceClient(storageAccount,
+                allowRetry ? DEFAULT_RETRY : NO_RETRY);
         final BlobContainerClient containerClient = cloudStorageAccount.getBlobContainerClient(containerName);
 
         boolean cntExists = containerClient.exists();
@@ -199,6 +256,44 @@ public final class AzureUtils {
         return cloudFile.generateSas(sasSignatureValues);
     }
 
+    /**
+     * Generates a SAS token scoped to a whole container. The token is signed locally with the account key,
+     * no request is sent to the storage service.
+     *
+     * @param storageAccount storage account holding the container
+     * @param containerName  container name
+     * @param permissions    permissions granted by the token
+     * @param expiryTime     time when the token stops being valid
+     * @return SAS token
+     */
+    public static String generateContainerSASToken(
+            StorageAccountInfo storageAccount,
+            String containerName,
+            BlobContainerSasPermission permissions,
+            OffsetDateTime expiryTime) {
+        BlobContainerClient container = getCloudStorageAccount(storageAccount).getBlobContainerClient(containerName);
+        return container.generateSas(new BlobServiceSasSignatureValues(expiryTime, permissions));
+    }
+
+    /**
+     * Generates a SAS token scoped to a whole file share. The token is signed locally with the account key,
+     * no request is sent to the storage service.
+     *
+     * @param storageAccount storage account holding the share
+     * @param shareName      share name
+     * @param permissions    permissions granted by the token
+     * @param expiryTime     time when the token stops being valid
+     * @return SAS token
+     */
+    public static String generateShareSASToken(
+            StorageAccountInfo storageAccount,
+            String shareName,
+            ShareSasPermission permissions,
+            OffsetDateTime expiryTime) throws MalformedURLException, URISyntaxException {
+        ShareClient fileShare = getShareClient(storageAccount).getShareClient(shareName);
+        return fileShare.generateSas(new ShareServiceSasSignatureValues(expiryTime, permissions));
+    }
+
     private static OffsetDateTime generateExpiryDate() {
         return OffsetDateTime.now().plusHours(1);
     }
@@ -45,6 +45,8 @@ public final class Constants {
 
     public static final String DEF_BLOB_URL = "https://blob.core.windows.net/";
     public static final String FWD_SLASH = "/";
+    /* Matches any ETag, used with If-None-Match to only create blobs which do not exist yet */
+    public static final String ANY_ETAG = "*";
     public static final String HTTP_PRT = "https://";
     // http Protocol separator
     //CHECKSTYLE:OFF
@@ -0,0 +1,82 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A bounded, least recently used cache of storage service clients.
+ * <p>
+ * Entries are keyed by account, endpoint and retry profile. Each entry remembers the fingerprint of the
+ * credential and proxy configuration it was built with, so a client built from an old key or with an old proxy is
+ * replaced as soon as either changes.
+ *
+ * @param <T> the client type
+ */
+final class ServiceClientCache<T> {
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final Map<String, CachedClient<T>> clients;
+
+    ServiceClientCache(final int maxSize) {
+        this.clients = new LinkedHashMap<String, CachedClient<T>>(maxSize, LOAD_FACTOR, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedClient<T>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached client or builds a new one.
+     *
+     * @param accountName           storage account name
+     * @param endpoint              service endpoint
+     * @param retryProfile          retry profile the client is built with
+     * @param credentialFingerprint fingerprint of the credential and proxy configuration, never the credential
+     *                              itself
+     * @param factory               builds the client on a cache miss
+     * @return the client
+     */
+    synchronized T get(String accountName, String endpoint, String retryProfile, String credentialFingerprint,
+                       Supplier<T> factory) {
+        String key = accountName + '|' + endpoint + '|' + retryProfile;
+        CachedClient<T> cached = clients.get(key);
+        if (cached == null || !cached.fingerprint.equals(credentialFingerprint)) {
+            cached = new CachedClient<>(credentialFingerprint, factory.get());
+            clients.put(key, cached);
+        }
+        return cached.client;
+    }
+
+    synchronized int size() {
+        return clients.size();
+    }
+
+    private static final class CachedClient<T> {
+        private final String fingerprint;
+        private final T client;
+
+        CachedClient(String fingerprint, T client) {
+            this.fingerprint = fingerprint;
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.http.HttpClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.file.share.ShareServiceClient;
+import com.azure.storage.file.share.ShareServiceClientBuilder;
+import com.microsoftopentechnologies.windowsazurestorage.helper.AzureUtils;
+import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.SasToken;
+import hudson.ProxyConfiguration;
+import io.jenkins.plugins.azuresdk.HttpClientRetriever;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JVM wide registry of the storage clients used by the transfer tasks running on an agent.
+ * <p>
+ * Building a client per file gives every file its own connection pool and TLS handshake. Clients are instead
+ * shared by all the tasks of an invocation and by later builds landing on the same agent. HTTP clients are keyed
+ * by proxy, service clients by endpoint, proxy, SAS scope and SAS permissions, so a download never shares the
+ * read-only credential of its client with an upload. Service clients which have not been used for
+ * {@link #IDLE_TIMEOUT_MILLIS} are dropped, along with the HTTP clients no remaining service client uses.
+ * <p>
+ * A transfer has to {@link #release} its SAS provider once it is done, so a step which ended is never asked for a
+ * new token.
+ */
+final class AgentClientRegistry {
+    static final long IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(
+            Long.getLong(AgentClientRegistry.class.getName() + ".idleTimeoutMinutes", 10));
+
+    private static final Map<String, HttpClient> HTTP_CLIENTS = new HashMap<>();
+    private static final Map<String, RegisteredClient<?>> SERVICE_CLIENTS = new HashMap<>();
+
+    /**
+     * Returns a blob service client authorized with the given container scoped SAS.
+     *
+     * @param proxy         Jenkins proxy configuration
+     * @param url           URL of any blob in the account
+     * @param containerName container the SAS is scoped to
+     * @param sasToken      SAS of the calling transfer
+     * @param provider      provider used to renew the SAS
+     * @return the shared client
+     */
+    static BlobServiceClient getBlobServiceClient(ProxyConfiguration proxy, String url, String containerName,
+                                                  SasToken sasToken, SasTokenProvider provider)
+            throws MalformedURLException {
+        String key = String.join("|", getAccountEndpoint(url), proxyKey(proxy), Constants.BLOB_STORAGE,
+                containerName, permissions(sasToken));
+        // the builder only keeps the account part of the URL
+        return register(key, proxyKey(proxy), sasToken, provider, sasCredential -> new BlobServiceClientBuilder()
+                .credential(sasCredential.getCredential())
+                .addPolicy(sasCredential)
+                .httpClient(getHttpClient(proxy))
+                .endpoint(url)
+                .buildClient());
+    }
+
+    /**
+     * Returns a share service client authorized with the given share scoped SAS.
+     *
+     * @param proxy     Jenkins proxy configuration
+     * @param url       URL of any file in the account
+     * @param shareName share the SAS is scoped to
+     * @param sasToken  SAS of the calling transfer
+     * @param provider  provider used to renew the SAS
+     * @return the shared client
+     */
+    static ShareServiceClient getShareServiceClient(ProxyConfiguration proxy, String url, String shareName,
+                                                    SasToken sasToken, SasTokenProvider provider)
+            throws MalformedURLException {
+        String key = String.join("|", getAccountEndpoint(url), proxyKey(proxy), Constants.FILE_STORAGE,
+                shareName, permissions(sasToken));
+        return register(key, proxyKey(proxy), sasToken, provider, sasCredential -> new ShareServiceClientBuilder()
+                .credential(sasCredential.getCredential())
+                .addPolicy(sasCredential)
+                .httpClient(getHttpClient(proxy))
+                .endpoint(url)
+                .buildClient());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static synchronized <T> T register(String key, String proxyKey, SasToken sasToken,
+                                               SasTokenProvider provider, ClientFactory<T> factory) {
+        long now = System.currentTimeMillis();
+        evictIdle(now);
+
+        RegisteredClient<T> registered = (RegisteredClient<T>) SERVICE_CLIENTS.get(key);
+        if (registered == null) {
+            SasCredentialRefresher sasCredential = new SasCredentialRefresher(sasToken, provider);
+            registered = new RegisteredClient<>(proxyKey, sasCredential, factory.create(sasCredential));
+            SERVICE_CLIENTS.put(key, registered);
+        } else {
+            registered.sasCredential.offer(sasToken, provider);
+        }
+        registered.lastUsed = now;
+        return registered.client;
+    }
+
+    /**
+     * Forgets the SAS provider of a transfer in every client it was registered with.
+     *
+     * @param provider the provider the transfer registered its clients with
+     */
+    static synchronized void release(SasTokenProvider provider) {
+        for (RegisteredClient<?> registered : SERVICE_CLIENTS.values()) {
+            registered.sasCredential.release(provider);
+        }
+    }
+
+    /**
+     * @return the signed permissions of the token, its {@code sp} parameter
+     */
+    static String permissions(SasToken sasToken) {
+        for (String parameter : sasToken.getToken().split("&")) {
+            if (parameter.startsWith("sp=")) {
+                return parameter.substring("sp=".length());
+            }
+        }
+        return "";
+    }
+
+    private static void evictIdle(long now) {
+        Set<String> usedProxies = new HashSet<>();
+        Iterator<RegisteredClient<?>> iterator = SERVICE_CLIENTS.values().iterator();
+        while (iterator.hasNext()) {
+            RegisteredClient<?> registered = iterator.next();
+            if (now - registered.lastUsed > IDLE_TIMEOUT_MILLIS) {
+                iterator.remove();
+            } else {
+                usedProxies.add(registered.proxyKey);
+            }
+        }
+        HTTP_CLIENTS.keySet().retainAll(usedProxies);
+    }
+
+    private static synchronized HttpClient getHttpClient(ProxyConfiguration proxy) {
+        return HTTP_CLIENTS.computeIfAbsent(proxyKey(proxy), key -> HttpClientRetriever.get(proxy));
+    }
+
+    private static String getAccountEndpoint(String url) throws MalformedURLException {
+        URL parsed = new URL(url);
+        return parsed.getProtocol() + "://" + parsed.getAuthority();
+    }
+
+    private static String proxyKey(ProxyConfiguration proxy) {
+        return proxy == null ? "direct" : AzureUtils.getProxyFingerprint(proxy);
+    }
+
+    private interface ClientFactory<T> {
+        T create(SasCredentialRefresher sasCredential);
+    }
+
+    private static final class RegisteredClient<T> {
+        private final String proxyKey;
+        private final SasCredentialRefresher sasCredential;
+        private final T client;
+        private long lastUsed;
+
+        RegisteredClient(String proxyKey, SasCredentialRefresher sasCredential, T client) {
+            this.proxyKey = proxyKey;
+            this.sasCredential = sasCredential;
+            this.client = client;
+        }
+    }
+
+    private AgentClientRegistry() {
+        // hide constructor
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ArchiveFormat;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Archives the workspace files into a file of the agent.
+ */
+final class ArchiveOnAgent extends MasterToSlaveFileCallable<Void> {
+    private static final long serialVersionUID = 2960124307352916510L;
+
+    private final ArchiveFormat format;
+    private final int compressionLevel;
+    private final String includes;
+    private final String excludes;
+    private final String target;
+
+    /**
+     * @param format           Format of the archive.
+     * @param compressionLevel Compression level, 0 for the default of the format.
+     * @param includes         Ant patterns of the files to archive.
+     * @param excludes         Ant patterns of the files left out of the archive.
+     * @param target           Path of the archive on the agent.
+     */
+    ArchiveOnAgent(ArchiveFormat format, int compressionLevel, String includes, String excludes, String target) {
+        this.format = format;
+        this.compressionLevel = compressionLevel;
+        this.includes = includes;
+        this.excludes = excludes;
+        this.target = target;
+    }
+
+    @Override
+    public Void invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        Path archive = Paths.get(target);
+        try (OutputStream out = Files.newOutputStream(archive)) {
+            ArchiveWriter.create(format, compressionLevel, archive.toAbsolutePath().getParent().toFile())
+                    .write(workspace, new DirScanner.Glob(includes, excludes), out);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ArchiveFormat;
+import hudson.util.DirScanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the archive of the build artifacts in one of the {@link ArchiveFormat}s.
+ */
+interface ArchiveWriter {
+
+    /**
+     * Archives the files of a directory.
+     *
+     * @param baseDir directory the entry names are relative to
+     * @param scanner selects the files to archive
+     * @param out     where the archive is written, closed once the archive is complete
+     */
+    void write(File baseDir, DirScanner scanner, OutputStream out) throws IOException, InterruptedException;
+
+    /**
+     * Returns a writer using every core of this machine.
+     *
+     * @param format           the archive format
+     * @param compressionLevel compression level, 0 for the default of the format
+     * @param tempDir          directory of the temporary files of the writer, usually the one of the archive
+     * @return the writer
+     */
+    static ArchiveWriter create(ArchiveFormat format, int compressionLevel, File tempDir) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (format == ArchiveFormat.TAR_ZSTD) {
+            return new TarZstdWriter(compressionLevel, threads);
+        }
+        return new ParallelZipWriter(compressionLevel, threads, tempDir);
+    }
+
+    /**
+     * Returns a writer which needs no temporary storage, for archives streamed straight to Azure.
+     *
+     * @param format           the archive format
+     * @param compressionLevel compression level, 0 for the default of the format
+     * @return the writer
+     */
+    static ArchiveWriter createStreaming(ArchiveFormat format, int compressionLevel) {
+        if (format == ArchiveFormat.TAR_ZSTD) {
+            return new TarZstdWriter(compressionLevel, Runtime.getRuntime().availableProcessors());
+        }
+        return new SequentialZipWriter(compressionLevel);
+    }
+}
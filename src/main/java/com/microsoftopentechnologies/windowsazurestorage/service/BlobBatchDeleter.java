@@ -0,0 +1,185 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.http.rest.Response;
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.batch.BlobBatch;
+import com.azure.storage.blob.batch.BlobBatchClient;
+import com.azure.storage.blob.batch.BlobBatchClientBuilder;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Deletes the blobs of a container with the Blob Batch API, {@value #MAX_BATCH_SIZE} blobs per request, with
+ * several requests in flight while the caller goes on listing or downloading. The caller blocks once all the
+ * requests allowed are in flight, so the blobs waiting for deletion stay bounded whatever the size of the
+ * container.
+ * <p>
+ * Blobs already gone count as neither deleted nor failed. Snapshots are left alone, as by
+ * {@link com.azure.storage.blob.BlobClient#deleteIfExists()}, so a blob which has some fails. A blob which
+ * could not be deleted fails on its own: the other deletions of its batch go on and are counted, and all the
+ * failures are reported together once every batch completed.
+ */
+final class BlobBatchDeleter {
+    static final int MAX_BATCH_SIZE = 256;
+    static final int DEFAULT_PARALLELISM = 4;
+
+    private final BlobBatchClient batchClient;
+    private final int parallelism;
+    private final Semaphore inFlight;
+    private final List<Future<Integer>> batches = new ArrayList<>();
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    private List<String> pending = new ArrayList<>(MAX_BATCH_SIZE);
+    private ExecutorService executor;
+    private int deleted;
+
+    /**
+     * @param container      the container of the blobs to delete
+     * @param maxConcurrency ceiling of the parallel transfers of the step, 0 for none
+     */
+    BlobBatchDeleter(BlobContainerClient container, int maxConcurrency) {
+        this(new BlobBatchClientBuilder(container).buildClient(), maxConcurrency);
+    }
+
+    BlobBatchDeleter(BlobBatchClient batchClient, int maxConcurrency) {
+        this.batchClient = batchClient;
+        this.parallelism = maxConcurrency > 0 ? Math.min(maxConcurrency, DEFAULT_PARALLELISM) : DEFAULT_PARALLELISM;
+        this.inFlight = new Semaphore(parallelism);
+    }
+
+    /**
+     * Queues the deletion of a blob, sending a batch once it is full.
+     *
+     * @param blobUrl URL of the blob
+     */
+    synchronized void delete(String blobUrl) throws InterruptedException {
+        pending.add(blobUrl);
+        if (pending.size() >= MAX_BATCH_SIZE) {
+            send();
+        }
+    }
+
+    /**
+     * Sends the last batch and waits for all the batches to complete.
+     *
+     * @return the number of blobs deleted
+     * @throws WAStorageException listing every blob which could not be deleted, the blobs deleted are still
+     *                            counted by {@link #getDeleted()}
+     */
+    synchronized int finish() throws WAStorageException, InterruptedException {
+        if (!pending.isEmpty()) {
+            send();
+        }
+        Throwable batchFailure = null;
+        try {
+            for (Future<Integer> batch : batches) {
+                try {
+                    deleted += batch.get();
+                } catch (ExecutionException e) {
+                    // the whole request failed, none of its blobs is known to be deleted
+                    if (batchFailure == null) {
+                        batchFailure = e.getCause();
+                    } else {
+                        batchFailure.addSuppressed(e.getCause());
+                    }
+                }
+            }
+        } finally {
+            batches.clear();
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+        List<String> failed;
+        synchronized (failures) {
+            failed = new ArrayList<>(failures);
+            failures.clear();
+        }
+        if (!failed.isEmpty() || batchFailure != null) {
+            StringBuilder message = new StringBuilder(String.format("Failed to delete %d blob(s), %d deleted",
+                    failed.size(), deleted));
+            for (String failure : failed) {
+                message.append(System.lineSeparator()).append(failure);
+            }
+            if (batchFailure != null) {
+                message.append(System.lineSeparator()).append(batchFailure.getMessage());
+            }
+            throw new WAStorageException(message.toString(), batchFailure);
+        }
+        return deleted;
+    }
+
+    /**
+     * @return the number of blobs deleted by the batches completed so far
+     */
+    synchronized int getDeleted() {
+        return deleted;
+    }
+
+    private void send() throws InterruptedException {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(parallelism);
+        }
+        final List<String> blobUrls = pending;
+        pending = new ArrayList<>(MAX_BATCH_SIZE);
+        inFlight.acquire();
+        batches.add(executor.submit(() -> {
+            try {
+                return deleteBatch(blobUrls);
+            } finally {
+                inFlight.release();
+            }
+        }));
+    }
+
+    private int deleteBatch(List<String> blobUrls) {
+        BlobBatch batch = batchClient.getBlobBatch();
+        List<Response<Void>> responses = new ArrayList<>(blobUrls.size());
+        for (String blobUrl : blobUrls) {
+            responses.add(batch.deleteBlob(blobUrl, null, null));
+        }
+        // failures are reported by each operation, so the other deletions of the batch are kept
+        batchClient.submitBatchWithResponse(batch, false, null, Context.NONE);
+        int batchDeleted = 0;
+        for (int i = 0; i < responses.size(); i++) {
+            try {
+                // throws the error of a failed operation
+                if (responses.get(i).getStatusCode() < HttpURLConnection.HTTP_MULT_CHOICE) {
+                    batchDeleted++;
+                }
+            } catch (BlobStorageException e) {
+                if (e.getStatusCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                    failures.add(blobUrls.get(i) + ": " + e.getMessage());
+                }
+            }
+        }
+        return batchDeleted;
+    }
+}
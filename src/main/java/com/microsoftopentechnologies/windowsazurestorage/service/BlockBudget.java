@@ -0,0 +1,120 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.storage.blob.models.ParallelTransferOptions;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Shares a fixed number of in-flight block requests between the files uploaded by a step.
+ * <p>
+ * Without it every file gets the default block concurrency of the SDK, so many large files uploaded at once
+ * multiply into far more requests than the network can carry. Each file now asks for as many blocks as it has,
+ * gets at least one and at most its fair share of the budget, and gives them back once it is uploaded. The share
+ * is the budget divided by the number of files uploaded at once, so the first large file cannot take every request
+ * and hold the small files behind it. Files with more than one block also leave the last free request to the
+ * others, as it is all a file uploaded in one shot needs.
+ */
+final class BlockBudget {
+    static final int DEFAULT_BUDGET = 64;
+    static final long BLOCK_SIZE = 8L * 1024 * 1024;
+    static final long MAX_BLOCK_SIZE = 4000L * 1024 * 1024;
+    static final int MAX_BLOCKS_PER_BLOB = 50_000;
+
+    private final int share;
+    private final Semaphore permits;
+
+    /**
+     * @param budget    number of block requests allowed in flight, 0 for {@value #DEFAULT_BUDGET}
+     * @param transfers number of files uploaded at once
+     */
+    BlockBudget(int budget, int transfers) {
+        int total = budget > 0 ? budget : DEFAULT_BUDGET;
+        this.share = Math.max(1, total / Math.max(1, transfers));
+        this.permits = new Semaphore(total);
+    }
+
+    /**
+     * Reserves block requests for a file, waiting until at least one is available.
+     *
+     * @param fileSize size of the file in bytes
+     * @return the reservation, to be closed once the file is uploaded
+     */
+    Allocation allocate(long fileSize) throws InterruptedException {
+        return allocate(fileSize, blockSizeFor(fileSize));
+    }
+
+    /**
+     * Reserves requests for a file uploaded in pieces of the given size, such as the ranges of a file in a share.
+     *
+     * @param fileSize  size of the file in bytes
+     * @param blockSize size of the pieces
+     * @return the reservation, to be closed once the file is uploaded
+     */
+    Allocation allocate(long fileSize, long blockSize) throws InterruptedException {
+        long blocks = Math.max(1, (fileSize + blockSize - 1) / blockSize);
+        int wanted = (int) Math.min(share, blocks);
+
+        permits.acquire();
+        int granted = 1;
+        while (granted < wanted && permits.availablePermits() > 1 && permits.tryAcquire()) {
+            granted++;
+        }
+        return new Allocation(blockSize, granted);
+    }
+
+    /**
+     * Picks the smallest block size which still keeps the blob under the limit of blocks per blob.
+     */
+    static long blockSizeFor(long fileSize) {
+        long blockSize = (fileSize + MAX_BLOCKS_PER_BLOB - 1) / MAX_BLOCKS_PER_BLOB;
+        return Math.min(MAX_BLOCK_SIZE, Math.max(BLOCK_SIZE, blockSize));
+    }
+
+    int available() {
+        return permits.availablePermits();
+    }
+
+    /**
+     * Block requests reserved for one file.
+     */
+    final class Allocation implements AutoCloseable {
+        private final long blockSize;
+        private final int concurrency;
+
+        private Allocation(long blockSize, int concurrency) {
+            this.blockSize = blockSize;
+            this.concurrency = concurrency;
+        }
+
+        int getConcurrency() {
+            return concurrency;
+        }
+
+        ParallelTransferOptions toTransferOptions() {
+            return new ParallelTransferOptions()
+                    .setBlockSizeLong(blockSize)
+                    .setMaxSingleUploadSizeLong(BLOCK_SIZE)
+                    .setMaxConcurrency(concurrency);
+        }
+
+        @Override
+        public void close() {
+            permits.release(concurrency);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.util.Context;
+import com.azure.storage.blob.models.BlobHttpHeaders;
+import com.azure.storage.blob.options.BlockBlobCommitBlockListOptions;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Uploads what is written to it as the blocks of a block blob, without knowing the size of the content up front.
+ * <p>
+ * Each block is filled in one of a small ring of buffers and staged in the background while the next one is
+ * written. When every buffer is in flight, writers wait for a block to be staged, so memory stays bounded by
+ * {@code blockSize * blocksInFlight} whatever the size of the blob. The block list is committed by
+ * {@link #commit()}.
+ */
+final class BlockStagingOutputStream extends CommittableOutputStream {
+    private static final String BLOCK_ID_FORMAT = "%08d";
+
+    private final BlockBlobClient blob;
+    private final BlobHttpHeaders headers;
+    private final Map<String, String> metadata;
+    private final int blockSize;
+    private final int blocksInFlight;
+    private final BlockingQueue<byte[]> buffers;
+    private final ExecutorService stagingExecutor;
+    private final List<String> blockIds = new ArrayList<>();
+    private final List<Future<?>> staging = new ArrayList<>();
+
+    private int allocatedBuffers;
+    private byte[] current;
+    private int position;
+    private boolean closed;
+
+    /**
+     * @param blob           the blob to write
+     * @param headers        HTTP headers stored with the blob
+     * @param metadata       metadata stored with the blob
+     * @param blockSize      size of the blocks
+     * @param blocksInFlight number of blocks staged at the same time
+     */
+    BlockStagingOutputStream(BlockBlobClient blob, BlobHttpHeaders headers, Map<String, String> metadata,
+                             int blockSize, int blocksInFlight) {
+        this.blob = blob;
+        this.headers = headers;
+        this.metadata = metadata;
+        this.blockSize = blockSize;
+        this.blocksInFlight = blocksInFlight;
+        this.buffers = new ArrayBlockingQueue<>(blocksInFlight);
+        this.stagingExecutor = Executors.newFixedThreadPool(blocksInFlight);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            if (current == null) {
+                current = nextBuffer();
+            }
+            int count = Math.min(remaining, blockSize - position);
+            System.arraycopy(b, offset, current, position, count);
+            position += count;
+            offset += count;
+            remaining -= count;
+            if (position == blockSize) {
+                stageCurrent();
+            }
+        }
+    }
+
+    @Override
+    void commit() throws IOException {
+        if (position > 0) {
+            stageCurrent();
+        }
+        for (Future<?> future : staging) {
+            await(future);
+        }
+        staging.clear();
+        blob.commitBlockListWithResponse(new BlockBlobCommitBlockListOptions(blockIds)
+                .setHeaders(headers)
+                .setMetadata(metadata), null, Context.NONE);
+        close();
+    }
+
+    /**
+     * Stops staging blocks. Blocks staged but never committed are discarded by the storage service.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            stagingExecutor.shutdownNow();
+        }
+    }
+
+    private byte[] nextBuffer() throws IOException {
+        checkStaged();
+        byte[] buffer = buffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (allocatedBuffers < blocksInFlight) {
+            allocatedBuffers++;
+            return new byte[blockSize];
+        }
+        try {
+            return buffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    private void stageCurrent() throws IOException {
+        if (blockIds.size() >= BlockBudget.MAX_BLOCKS_PER_BLOB) {
+            throw new IOException(String.format("%s exceeds the limit of %d blocks of %d bytes per blob",
+                    blob.getBlobName(), BlockBudget.MAX_BLOCKS_PER_BLOB, blockSize));
+        }
+        final byte[] data = current;
+        final int length = position;
+        final String blockId = blockId(blockIds.size());
+        blockIds.add(blockId);
+        staging.add(stagingExecutor.submit(() -> {
+            try {
+                blob.stageBlock(blockId, new ByteArrayInputStream(data, 0, length), length);
+            } finally {
+                buffers.add(data);
+            }
+            return null;
+        }));
+        current = null;
+        position = 0;
+    }
+
+    /**
+     * Fails the write as soon as a block could not be staged, rather than after the whole content is written.
+     */
+    private void checkStaged() throws IOException {
+        for (Iterator<Future<?>> it = staging.iterator(); it.hasNext();) {
+            Future<?> future = it.next();
+            if (future.isDone()) {
+                await(future);
+                it.remove();
+            }
+        }
+    }
+
+    private static void await(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to stage block", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Block ids of a blob must all have the same length.
+     */
+    static String blockId(int index) {
+        return Base64.getEncoder().encodeToString(
+                String.format(BLOCK_ID_FORMAT, index).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A stream writing straight into a blob or a file share file. What is written only becomes complete once
+ * {@link #commit()} is called, closing the stream before that discards it or, when it can not be discarded,
+ * reports it with {@link #isPartial()}.
+ */
+abstract class CommittableOutputStream extends OutputStream {
+
+    /**
+     * Flushes what is left and makes the content visible.
+     */
+    abstract void commit() throws IOException;
+
+    /**
+     * @return whether the stream was closed without committing and left partial content behind
+     */
+    boolean isPartial() {
+        return false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.codec.digest.MessageDigestAlgorithms;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the digest of files on the agent, so they never travel to the controller just to be hashed.
+ * Files are hashed in parallel, one thread per core.
+ */
+final class ContentDigestOnAgent extends MasterToSlaveFileCallable<Map<String, byte[]>> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> paths;
+    private final String algorithm;
+
+    /**
+     * @param paths     absolute paths of the files on the agent
+     * @param algorithm digest algorithm, see {@link MessageDigestAlgorithms}
+     */
+    ContentDigestOnAgent(List<String> paths, String algorithm) {
+        this.paths = paths;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * @return the digest of each file, keyed by path
+     */
+    @Override
+    public Map<String, byte[]> invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<byte[]>> futures = new ArrayList<>();
+            for (String path : paths) {
+                futures.add(executor.submit(() -> digest(path, algorithm)));
+            }
+            Map<String, byte[]> hashes = new HashMap<>();
+            for (int i = 0; i < paths.size(); i++) {
+                hashes.put(paths.get(i), futures.get(i).get());
+            }
+            return hashes;
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static byte[] digest(String path, String algorithm) throws IOException {
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            return new DigestUtils(algorithm).digest(in);
+        }
+    }
+}
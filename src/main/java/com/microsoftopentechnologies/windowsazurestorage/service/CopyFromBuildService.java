@@ -0,0 +1,260 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.util.polling.PollResponse;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.models.BlobCopyInfo;
+import com.azure.storage.blob.models.CopyStatusType;
+import com.azure.storage.blob.sas.BlobSasPermission;
+import com.azure.storage.blob.sas.BlobServiceSasSignatureValues;
+import com.azure.storage.file.share.ShareFileClient;
+import com.azure.storage.file.share.sas.ShareFileSasPermission;
+import com.azure.storage.file.share.sas.ShareServiceSasSignatureValues;
+import com.microsoftopentechnologies.windowsazurestorage.AzureBlob;
+import com.microsoftopentechnologies.windowsazurestorage.AzureBlobAction;
+import com.microsoftopentechnologies.windowsazurestorage.Messages;
+import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.helper.AzureUtils;
+import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.CopyServiceData;
+import hudson.EnvVars;
+import hudson.matrix.MatrixBuild;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.plugins.copyartifact.BuildFilter;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Copies the artifacts of a build to another container, virtual path or storage account without moving any byte
+ * through Jenkins: the storage service reads the source through a read only SAS URL.
+ * <p>
+ * Each artifact is read from the account it was uploaded to, with the credentials it was uploaded with when the
+ * copying job can use them.
+ * <p>
+ * Blobs small enough are copied with a single synchronous Put Blob From URL, larger blobs and files from a file
+ * share are copied asynchronously and polled until the copy completes.
+ */
+public class CopyFromBuildService extends StoragePluginService<CopyServiceData> {
+    /**
+     * Largest source blob Put Blob From URL accepts.
+     */
+    static final long MAX_SYNC_COPY_SIZE = 256L * 1024 * 1024;
+
+    private static final Duration POLL_INTERVAL = Duration.ofSeconds(2);
+    private static final int SAS_VALIDITY_DAYS = 1;
+
+    private final TransferConcurrencyController concurrency;
+
+    public CopyFromBuildService(CopyServiceData data) {
+        super(data);
+        this.concurrency = new TransferConcurrencyController(data.getMaxConcurrency());
+    }
+
+    @Override
+    public int execute() throws WAStorageException {
+        final CopyServiceData serviceData = getServiceData();
+        Job<?, ?> job = Jenkins.get().getItemByFullName(serviceData.getProjectName(), Job.class);
+        if (job == null) {
+            println(Messages.AzureStorageBuilder_job_invalid(serviceData.getProjectName()));
+            setRunUnstable();
+            return 0;
+        }
+
+        final ExecutorService executorService = Executors.newFixedThreadPool(concurrency.getCeiling());
+        try {
+            final EnvVars envVars = serviceData.getRun().getEnvironment(serviceData.getTaskListener());
+            Run source = serviceData.getBuildSelector().getBuild(job, envVars, new BuildFilter(), serviceData.getRun());
+            if (source == null) {
+                return 0;
+            }
+
+            final BlobContainerClient destination = AzureUtils.getBlobContainerReference(
+                    serviceData.getDestinationStorageAccountInfo(), serviceData.getContainerName(), true, true, null);
+            List<Future<AzureBlob>> copies = new ArrayList<>();
+            if (source instanceof MatrixBuild) {
+                for (Run r : ((MatrixBuild) source).getExactRuns()) {
+                    copies.addAll(copyArtifacts(r, destination, executorService));
+                }
+            } else {
+                copies.addAll(copyArtifacts(source, destination, executorService));
+            }
+            println(Messages.AzureStorageCopyBuilder_files_need_copy_count(copies.size()));
+
+            for (Future<AzureBlob> copy : copies) {
+                try {
+                    serviceData.getCopiedBlobs().add(copy.get());
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(error(Messages.AzureStorageCopyBuilder_copy_err(
+                            serviceData.getStorageAccountInfo().getStorageAccName())));
+                    setRunUnstable();
+                }
+            }
+        } catch (IOException | URISyntaxException e) {
+            throw new WAStorageException(e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WAStorageException(e.getMessage(), e);
+        } finally {
+            executorService.shutdownNow();
+        }
+        return serviceData.getCopiedBlobs().size();
+    }
+
+    private List<Future<AzureBlob>> copyArtifacts(Run<?, ?> source, BlobContainerClient destination,
+                                                  ExecutorService executorService) {
+        List<Future<AzureBlob>> copies = new ArrayList<>();
+        final AzureBlobAction action = source.getAction(AzureBlobAction.class);
+        for (final AzureBlob blob : selectArtifacts(action)) {
+            copies.add(executorService.submit(() -> concurrency.run(
+                    () -> copyBlob(action, blob, destination), AzureBlob::getSizeInBytes)));
+        }
+        return copies;
+    }
+
+    /**
+     * Returns the artifacts of a build matching the patterns of the step.
+     *
+     * @param action the Azure artifacts of the build, {@code null} if it has none
+     * @return the artifacts to copy, empty if none matches
+     */
+    List<AzureBlob> selectArtifacts(AzureBlobAction action) {
+        final CopyServiceData serviceData = getServiceData();
+        List<AzureBlob> selected = new ArrayList<>();
+        if (action == null) {
+            return selected;
+        }
+        List<AzureBlob> azureBlobs = new ArrayList<>(action.getIndividualBlobs());
+        if (action.getZipArchiveBlob() != null && serviceData.isIncludeArchiveZips()) {
+            azureBlobs.add(action.getZipArchiveBlob());
+        }
+        PathPatternMatcher includes = compilePatterns(serviceData.getIncludeFilesPattern());
+        PathPatternMatcher excludes = compilePatterns(serviceData.getExcludeFilesPattern());
+        for (AzureBlob blob : azureBlobs) {
+            if (shouldCopy(includes, excludes, blob.getBlobName())) {
+                selected.add(blob);
+            }
+        }
+        return selected;
+    }
+
+    private AzureBlob copyBlob(AzureBlobAction action, AzureBlob blob, BlobContainerClient destination)
+            throws IOException, URISyntaxException, WAStorageException {
+        final CopyServiceData serviceData = getServiceData();
+        final BlobClient target = destination.getBlobClient(
+                destinationName(serviceData.getVirtualPath(), blob.getBlobName()));
+        final boolean fromBlob = Constants.BLOB_STORAGE.equalsIgnoreCase(blob.getStorageType());
+        final String sourceUrl = fromBlob ? blobSourceUrl(action, blob) : fileSourceUrl(blob);
+
+        final long startTime = System.currentTimeMillis();
+        if (fromBlob && blob.getSizeInBytes() <= MAX_SYNC_COPY_SIZE) {
+            target.copyFromUrl(sourceUrl);
+        } else {
+            PollResponse<BlobCopyInfo> response = target.beginCopy(sourceUrl, POLL_INTERVAL).waitForCompletion();
+            CopyStatusType status = response.getValue().getCopyStatus();
+            if (status != CopyStatusType.SUCCESS) {
+                throw new WAStorageException(Messages.AzureStorageCopyBuilder_copy_status(blob.getBlobName(), status,
+                        response.getValue().getError()));
+            }
+        }
+        final long endTime = System.currentTimeMillis();
+        if (serviceData.isVerbose()) {
+            println(Messages.AzureStorageCopyBuilder_copied(blob.getBlobName(), target.getBlobUrl(),
+                    getTime(endTime - startTime)));
+        }
+        return new AzureBlob(target.getBlobName(), target.getBlobUrl(), blob.getSizeInBytes(),
+                Constants.BLOB_STORAGE, serviceData.getDestinationCredentialsId(),
+                destination.getBlobContainerName());
+    }
+
+    private String blobSourceUrl(AzureBlobAction action, AzureBlob blob) throws IOException, URISyntaxException {
+        final BlobClient source = AzureUtils.getCloudStorageAccount(getRecordedAccount(blob.getCredentialsId()))
+                .getBlobContainerClient(containerOrShare(blob))
+                .getBlobClient(action.resolveStorageName(blob));
+        final String sas = source.generateSas(new BlobServiceSasSignatureValues(sasExpiry(),
+                new BlobSasPermission().setReadPermission(true)));
+        return source.getBlobUrl() + "?" + sas;
+    }
+
+    private String fileSourceUrl(AzureBlob blob) throws IOException, URISyntaxException {
+        final String share = containerOrShare(blob);
+        final String filePath = new URL(blob.getBlobURL()).getFile();
+        final ShareFileClient source = AzureUtils.getShareClient(getRecordedAccount(blob.getCredentialsId()))
+                .getShareClient(share)
+                .getRootDirectoryClient()
+                .getFileClient(filePath.substring(filePath.indexOf(share) + share.length() + 1));
+        final String sas = source.generateSas(new ShareServiceSasSignatureValues(sasExpiry(),
+                new ShareFileSasPermission().setReadPermission(true)));
+        return source.getFileUrl() + "?" + sas;
+    }
+
+    /**
+     * The source has to stay readable until the asynchronous copy completes, which can take much longer than the
+     * hour given to download links.
+     */
+    private static OffsetDateTime sasExpiry() {
+        return OffsetDateTime.now().plusDays(SAS_VALIDITY_DAYS);
+    }
+
+    /**
+     * Artifacts recorded by older versions do not know their container, it is then taken from their URL.
+     */
+    private static String containerOrShare(AzureBlob blob) throws IOException {
+        if (StringUtils.isNotBlank(blob.getContainerOrFileShare())) {
+            return blob.getContainerOrFileShare();
+        }
+        return new URL(blob.getBlobURL()).getPath().split("/")[1];
+    }
+
+    /**
+     * @return the name of the copy of an artifact, under the virtual path of the step
+     */
+    static String destinationName(String virtualPath, String artifactName) {
+        return StringUtils.defaultString(virtualPath) + artifactName;
+    }
+
+    /**
+     * Compiles comma separated patterns, ignoring the blanks around each of them.
+     */
+    static PathPatternMatcher compilePatterns(String patterns) {
+        if (StringUtils.isBlank(patterns)) {
+            return PathPatternMatcher.compile(null);
+        }
+        List<String> trimmed = new ArrayList<>();
+        for (String pattern : patterns.split(FP_SEPARATOR)) {
+            trimmed.add(pattern.trim());
+        }
+        return PathPatternMatcher.compile(String.join(FP_SEPARATOR, trimmed));
+    }
+
+    static boolean shouldCopy(PathPatternMatcher includes, PathPatternMatcher excludes, String name) {
+        return includes.matches(name) && !excludes.matches(name);
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ArtifactManifest;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Content addressed cache of downloads, shared by all the workspaces of an agent. A blob or file is stored once
+ * under a key derived from its content (SHA-256 of a content addressed artifact, Content-MD5) or, when the content
+ * is unknown, from its URL and ETag; every workspace needing it gets a hard link to the cached copy, or a copy
+ * where links are not supported.
+ * <p>
+ * The cached copies are read only, so a build writing to a linked file fails instead of corrupting the cache.
+ * Each copy has a lock file, locked while the copy is filled, linked or evicted so several executors or agent
+ * processes can share the cache; its modification time records the last use, and the least recently used copies
+ * are evicted once the cache is larger than {@value #DEFAULT_MAX_SIZE_MIB} MiB, or the size set with the
+ * {@code DownloadCache.maxSizeMiB} system property of the agent.
+ */
+final class DownloadCache {
+    static final long DEFAULT_MAX_SIZE_MIB = 10240;
+
+    private static final Logger LOGGER = Logger.getLogger(DownloadCache.class.getName());
+    private static final long MIB = 1024L * 1024;
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String SHA256_KEY = "sha256-";
+    private static final String MD5_KEY = "md5-";
+    private static final int FAN_OUT_LENGTH = 2;
+    /**
+     * Keys being filled or linked in this JVM, file locks being held per process rather than per thread.
+     */
+    private static final Map<String, KeyLock> KEY_LOCKS = new HashMap<>();
+
+    private final Path objects;
+    private final Path temp;
+    private final long maxSize;
+
+    /**
+     * @param root    root directory of the cache
+     * @param maxSize size above which the least recently used copies are evicted
+     */
+    DownloadCache(File root, long maxSize) {
+        this.objects = root.toPath().resolve("objects");
+        this.temp = root.toPath().resolve("tmp");
+        this.maxSize = maxSize;
+    }
+
+    static DownloadCache fromSystemProperties(File root) {
+        return new DownloadCache(root,
+                Long.getLong(DownloadCache.class.getName() + ".maxSizeMiB", DEFAULT_MAX_SIZE_MIB) * MIB);
+    }
+
+    /**
+     * Fills the target file with the content to cache.
+     */
+    interface Fill {
+        void fetch(File target) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Returns the key of a blob or file, from the best identity of its content known.
+     *
+     * @param source     name of the blob or path of the file
+     * @param url        URL of the source
+     * @param etag       ETag of the source, may be {@code null}
+     * @param contentMd5 base64 Content-MD5 of the source, may be {@code null}
+     * @return the key, {@code null} if neither the content nor the version of the source is known
+     */
+    static String key(String source, String url, String etag, String contentMd5) {
+        if (source.startsWith(ArtifactManifest.CONTENT_PREFIX)) {
+            return SHA256_KEY + source.substring(source.lastIndexOf('/') + 1);
+        }
+        if (contentMd5 != null) {
+            return MD5_KEY + Hex.encodeHexString(Base64.getDecoder().decode(contentMd5));
+        }
+        if (etag != null) {
+            return "etag-" + DigestUtils.sha256Hex((url + "\n" + etag).getBytes(StandardCharsets.UTF_8));
+        }
+        return null;
+    }
+
+    /**
+     * Gives the destination the cached content of the key, filling the cache first when it does not hold it.
+     * Concurrent calls for the same key, from this agent or another process sharing the cache, fill it once.
+     *
+     * @param key          key of the content
+     * @param expectedSize size of the content, -1 if unknown, a cached copy of another size is filled again
+     * @param destination  the file to create or replace
+     * @param fill         fetches the content when it is not cached
+     * @return whether the content had to be fetched
+     */
+    boolean materialize(String key, long expectedSize, File destination, Fill fill)
+            throws IOException, InterruptedException {
+        Path object = objectPath(key);
+        Files.createDirectories(object.getParent());
+        KeyLock keyLock = KeyLock.acquire(key);
+        try (FileChannel lockChannel = FileChannel.open(lockPath(object),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = lockChannel.lock()) {
+            boolean fetched = false;
+            if (!Files.isRegularFile(object) || expectedSize >= 0 && Files.size(object) != expectedSize) {
+                Files.createDirectories(temp);
+                Path filling = temp.resolve(UUID.randomUUID().toString());
+                try {
+                    fill.fetch(filling.toFile());
+                    verify(key, filling);
+                    if (!filling.toFile().setReadOnly()) {
+                        LOGGER.log(Level.FINE, "Failed to make {0} read only", filling);
+                    }
+                    Files.move(filling, object, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(filling);
+                }
+                fetched = true;
+            }
+            link(object, destination.toPath());
+            // the lock file records the last use of the copy
+            Files.setLastModifiedTime(lockPath(object), FileTime.fromMillis(System.currentTimeMillis()));
+            return fetched;
+        } finally {
+            keyLock.release();
+        }
+    }
+
+    /**
+     * Checks the content fetched against the digest of its key. The key comes from what the listing reports, which
+     * any job able to write to the container can set, so a content not matching it must never become the copy
+     * other jobs link to. Keys made of an ETag name a version rather than a content and are not checked.
+     */
+    static void verify(String key, Path filled) throws IOException {
+        String actual;
+        try (InputStream in = Files.newInputStream(filled)) {
+            if (key.startsWith(SHA256_KEY)) {
+                actual = DigestUtils.sha256Hex(in);
+            } else if (key.startsWith(MD5_KEY)) {
+                actual = DigestUtils.md5Hex(in);
+            } else {
+                return;
+            }
+        }
+        if (!actual.equalsIgnoreCase(key.substring(key.indexOf('-') + 1))) {
+            throw new IOException("The content downloaded does not match its digest " + key);
+        }
+    }
+
+    private static void link(Path object, Path destination) throws IOException {
+        Files.deleteIfExists(destination);
+        try {
+            Files.createLink(destination, object);
+        } catch (IOException | UnsupportedOperationException e) {
+            // another file system, or one without hard links
+            Files.copy(object, destination);
+        }
+    }
+
+    /**
+     * Evicts the least recently used copies until the cache is back under its maximum size. Copies in use are
+     * skipped.
+     */
+    synchronized void evict() throws IOException {
+        if (!Files.isDirectory(objects)) {
+            return;
+        }
+        List<Path> cached = new ArrayList<>();
+        List<Path> orphanLocks = new ArrayList<>();
+        long size = 0;
+        try (Stream<Path> files = Files.walk(objects)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!Files.isRegularFile(file)) {
+                    continue;
+                }
+                String name = file.getFileName().toString();
+                if (!name.endsWith(LOCK_SUFFIX)) {
+                    cached.add(file);
+                    size += Files.size(file);
+                } else if (!Files.exists(file.resolveSibling(
+                        name.substring(0, name.length() - LOCK_SUFFIX.length())))) {
+                    // left by a fill which failed
+                    orphanLocks.add(file);
+                }
+            }
+        }
+        for (Path lockFile : orphanLocks) {
+            String name = lockFile.getFileName().toString();
+            evict(lockFile.resolveSibling(name.substring(0, name.length() - LOCK_SUFFIX.length())));
+        }
+        if (size <= maxSize) {
+            return;
+        }
+        cached.sort(Comparator.comparingLong(DownloadCache::lastUse));
+        for (Path object : cached) {
+            if (size <= maxSize) {
+                break;
+            }
+            size -= evict(object);
+        }
+    }
+
+    /**
+     * @return the size of the evicted copy, 0 if it is in use
+     */
+    private static long evict(Path object) {
+        String key = object.getFileName().toString();
+        KeyLock keyLock = KeyLock.tryAcquire(key);
+        if (keyLock == null) {
+            return 0;
+        }
+        try (FileChannel lockChannel = FileChannel.open(lockPath(object), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+             FileLock lock = lockChannel.tryLock()) {
+            if (lock == null) {
+                return 0;
+            }
+            if (!Files.exists(object)) {
+                deleteLock(object);
+                return 0;
+            }
+            long size = Files.size(object);
+            deleteObject(object);
+            deleteLock(object);
+            return size;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to evict " + object, e);
+            return 0;
+        } finally {
+            keyLock.release();
+        }
+    }
+
+    /**
+     * Deletes a cached copy. Workspaces may still hold hard links to it, which share its permissions, so it is
+     * only made writable where a read only file cannot be deleted, on Windows, and right before it is deleted.
+     */
+    private static void deleteObject(Path object) throws IOException {
+        try {
+            Files.delete(object);
+        } catch (AccessDeniedException e) {
+            if (!object.toFile().setWritable(true)) {
+                throw e;
+            }
+            Files.delete(object);
+        }
+    }
+
+    /**
+     * Deletes the lock file of a copy while holding its lock. A process which waited for the lock finds the copy
+     * gone and fills it again. Some file systems refuse to delete an open file, the lock is then left for the next
+     * eviction.
+     */
+    private static void deleteLock(Path object) {
+        try {
+            Files.delete(lockPath(object));
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to delete the lock of " + object, e);
+        }
+    }
+
+    private static long lastUse(Path object) {
+        File lockFile = lockPath(object).toFile();
+        return lockFile.exists() ? lockFile.lastModified() : object.toFile().lastModified();
+    }
+
+    private Path objectPath(String key) {
+        String digest = key.substring(key.indexOf('-') + 1);
+        return objects.resolve(digest.substring(0, FAN_OUT_LENGTH)).resolve(key);
+    }
+
+    private static Path lockPath(Path object) {
+        return object.resolveSibling(object.getFileName() + LOCK_SUFFIX);
+    }
+
+    /**
+     * Lock of a key within this JVM, dropped once no thread holds or waits for it.
+     */
+    private static final class KeyLock {
+        private final String key;
+        private final ReentrantLock lock = new ReentrantLock();
+        private int users;
+
+        private KeyLock(String key) {
+            this.key = key;
+        }
+
+        static KeyLock acquire(String key) throws InterruptedException {
+            KeyLock keyLock = use(key);
+            try {
+                keyLock.lock.lockInterruptibly();
+            } catch (InterruptedException e) {
+                keyLock.unuse();
+                throw e;
+            }
+            return keyLock;
+        }
+
+        /**
+         * @return the lock, {@code null} if another thread holds it
+         */
+        static KeyLock tryAcquire(String key) {
+            KeyLock keyLock = use(key);
+            if (keyLock.lock.tryLock()) {
+                return keyLock;
+            }
+            keyLock.unuse();
+            return null;
+        }
+
+        void release() {
+            lock.unlock();
+            unuse();
+        }
+
+        private static KeyLock use(String key) {
+            synchronized (KEY_LOCKS) {
+                KeyLock keyLock = KEY_LOCKS.computeIfAbsent(key, KeyLock::new);
+                keyLock.users++;
+                return keyLock;
+            }
+        }
+
+        private void unuse() {
+            synchronized (KEY_LOCKS) {
+                users--;
+                if (users == 0) {
+                    KEY_LOCKS.remove(key);
+                }
+            }
+        }
+    }
+}
@@ -19,10 +19,10 @@ import com.azure.storage.blob.BlobContainerClient;
 import com.azure.storage.blob.specialized.BlockBlobClient;
 import com.azure.storage.file.share.ShareClient;
 import com.azure.storage.file.share.ShareFileClient;
-import com.azure.storage.file.share.ShareServiceClient;
 import com.microsoftopentechnologies.windowsazurestorage.AzureBlob;
 import com.microsoftopentechnologies.windowsazurestorage.AzureBlobAction;
 import com.microsoftopentechnologies.windowsazurestorage.Messages;
+import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInfo;
 import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
 import com.microsoftopentechnologies.windowsazurestorage.helper.AzureUtils;
 import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
@@ -33,16 +33,25 @@ import hudson.model.Job;
 import hudson.model.Run;
 import hudson.plugins.copyartifact.BuildFilter;
 import jenkins.model.Jenkins;
+import org.apache.commons.lang3.StringUtils;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Downloads the Azure artifacts of another build. The artifacts of all the configurations of a matrix build are
+ * gathered first and scheduled together, so they download in parallel whatever the number of configurations.
+ * Each artifact is read from the container or share it was uploaded to, with the credentials it was uploaded with
+ * when the downloading job can use them.
+ */
 public class DownloadFromBuildService extends DownloadService {
-    private BlobContainerClient cloudBlobContainer;
-    private ShareClient cloudFileShare;
+    private final Map<String, BlobContainerClient> containers = new HashMap<>();
+    private final Map<String, ShareClient> shares = new HashMap<>();
 
     public DownloadFromBuildService(DownloadServiceData data) {
         super(data);
@@ -51,103 +60,93 @@ public class DownloadFromBuildService extends DownloadService {
     @Override
     public int execute() {
         final DownloadServiceData serviceData = getServiceData();
-        int filesDownloaded = 0;
-
         try {
             Job<?, ?> job = Jenkins.get().getItemByFullName(serviceData.getProjectName(), Job.class);
-            if (job != null) {
-                // Resolve download location
-                final EnvVars envVars = serviceData.getRun().getEnvironment(serviceData.getTaskListener());
-                BuildFilter filter = new BuildFilter();
-                Run source = serviceData.getBuildSelector().getBuild(job, envVars, filter, serviceData.getRun());
-
-                if (source instanceof MatrixBuild) {
-                    for (Run r : ((MatrixBuild) source).getExactRuns()) {
-                        filesDownloaded += downloadArtifacts(r);
-                    }
-                } else {
-                    filesDownloaded += downloadArtifacts(source);
-                }
-            } else {
+            if (job == null) {
                 println(Messages.AzureStorageBuilder_job_invalid(serviceData.getProjectName()));
                 setRunUnstable();
+                return 0;
+            }
+            // Resolve download location
+            final EnvVars envVars = serviceData.getRun().getEnvironment(serviceData.getTaskListener());
+            BuildFilter filter = new BuildFilter();
+            Run<?, ?> source = serviceData.getBuildSelector().getBuild(job, envVars, filter, serviceData.getRun());
+            if (source == null) {
+                return 0;
             }
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace(error(Messages.AzureStorageBuilder_download_err(
-                    serviceData.getStorageAccountInfo().getStorageAccName())));
-            setRunUnstable();
-        }
-        return filesDownloaded;
-    }
-
-    private int downloadArtifacts(Run<?, ?> source) {
-        final DownloadServiceData serviceData = getServiceData();
-        int filesNeedDownload;
-        try {
 
-            final AzureBlobAction action = source.getAction(AzureBlobAction.class);
-            if (action == null) {
-                return getFilesDownloaded();
+            List<Run<?, ?>> runs = new ArrayList<>();
+            if (source instanceof MatrixBuild) {
+                runs.addAll(((MatrixBuild) source).getExactRuns());
+            } else {
+                runs.add(source);
             }
-            List<AzureBlob> azureBlobs = action.getIndividualBlobs();
-            if (action.getZipArchiveBlob() != null && serviceData.isIncludeArchiveZips()) {
-                synchronized (azureBlobs) {
-                    azureBlobs.addAll(Arrays.asList(action.getZipArchiveBlob()));
-                }
+            if (serviceData.isVerbose()) {
+                println(Messages.AzureStorageBuilder_downloading());
+            }
+            int filesNeedDownload = 0;
+            for (Run<?, ?> run : runs) {
+                filesNeedDownload += scanArtifacts(run);
             }
-            filesNeedDownload = scanBlobs(azureBlobs);
             println(Messages.AzureStorageBuilder_files_need_download_count(filesNeedDownload));
             waitForDownloadEnd();
-        } catch (WAStorageException e) {
+        } catch (IOException | WAStorageException e) {
+            e.printStackTrace(error(Messages.AzureStorageBuilder_download_err(
+                    serviceData.getStorageAccountInfo().getStorageAccName())));
             setRunUnstable();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            e.printStackTrace(error(Messages.AzureStorageBuilder_download_err(
+                    serviceData.getStorageAccountInfo().getStorageAccName())));
+            setRunUnstable();
+        } finally {
+            endDownload();
         }
         return getFilesDownloaded();
     }
 
-    private int scanBlobs(List<AzureBlob> azureBlobs) throws WAStorageException {
+    /**
+     * Schedules the download of the artifacts of a build matching the patterns of the step.
+     *
+     * @return the number of artifacts scheduled
+     */
+    private int scanArtifacts(Run<?, ?> source) throws WAStorageException {
         final DownloadServiceData serviceData = getServiceData();
-        int filesNeedDownload = 0;
-        if (serviceData.isVerbose()) {
-            println(Messages.AzureStorageBuilder_downloading());
+        final AzureBlobAction action = source.getAction(AzureBlobAction.class);
+        if (action == null) {
+            return 0;
+        }
+        List<AzureBlob> azureBlobs = new ArrayList<>(action.getIndividualBlobs());
+        if (action.getZipArchiveBlob() != null && serviceData.isIncludeArchiveZips()) {
+            azureBlobs.add(action.getZipArchiveBlob());
         }
 
+        int filesNeedDownload = 0;
         for (final AzureBlob blob : azureBlobs) {
+            if (!shouldDownload(
+                    serviceData.getIncludeFilesPattern(),
+                    serviceData.getExcludeFilesPattern(),
+                    blob.getBlobName(),
+                    true)) {
+                continue;
+            }
             try {
-                final URL blobURL = new URL(blob.getBlobURL());
-                final String filePath = blobURL.getFile();
-
-                if (shouldDownload(
-                        serviceData.getIncludeFilesPattern(),
-                        serviceData.getExcludeFilesPattern(),
-                        blob.getBlobName(),
-                        true)) {
-                    if (Constants.BLOB_STORAGE.equalsIgnoreCase(blob.getStorageType())) {
-                        if (cloudBlobContainer == null) {
-                            cloudBlobContainer = AzureUtils.getBlobContainerReference(
-                                    serviceData.getStorageAccountInfo(),
-                                    filePath.split("/")[1],
-                                    false,
-                                    true,
-                                    null);
-                        }
-                        final BlockBlobClient cbb = cloudBlobContainer.getBlobClient(blob.getBlobName())
-                                .getBlockBlobClient();
-                        getExecutorService().submit(new DownloadThread(cbb));
-                        filesNeedDownload++;
-                    } else if (Constants.FILE_STORAGE.equalsIgnoreCase(blob.getStorageType())) {
-                        if (cloudFileShare == null) {
-                            final ShareServiceClient cloudStorageAccount =
-                                    AzureUtils.getShareClient(serviceData.getStorageAccountInfo());
-                            cloudFileShare = cloudStorageAccount.getShareClient(filePath.split("/")[1]);
-                        }
-                        final String cloudFileName = filePath.substring(
-                                filePath.indexOf(cloudFileShare.getShareName())
-                                        + cloudFileShare.getShareName().length() + 1);
-                        final ShareFileClient cloudFile =
-                                cloudFileShare.getRootDirectoryClient().getFileClient(cloudFileName);
-                        getExecutorService().submit(new DownloadThread(cloudFile));
-                        filesNeedDownload++;
-                    }
+                final StorageAccountInfo account = getRecordedAccount(blob.getCredentialsId());
+                final String containerOrShare = containerOrShare(blob);
+                if (Constants.BLOB_STORAGE.equalsIgnoreCase(blob.getStorageType())) {
+                    final BlockBlobClient cbb = getContainer(account, containerOrShare)
+                            .getBlobClient(action.resolveStorageName(blob))
+                            .getBlockBlobClient();
+                    scheduleDownload(account, cbb, blob.getBlobName(), blob.getSizeInBytes());
+                    filesNeedDownload++;
+                } else if (Constants.FILE_STORAGE.equalsIgnoreCase(blob.getStorageType())) {
+                    final String filePath = new URL(blob.getBlobURL()).getFile();
+                    final String cloudFileName = filePath.substring(
+                            filePath.indexOf(containerOrShare) + containerOrShare.length() + 1);
+                    final ShareFileClient cloudFile = getShare(account, containerOrShare)
+                            .getRootDirectoryClient().getFileClient(cloudFileName);
+                    scheduleDownload(account, cloudFile, blob.getSizeInBytes());
+                    filesNeedDownload++;
                 }
             } catch (URISyntaxException | IOException e) {
                 throw new WAStorageException(e.getMessage(), e);
@@ -155,4 +154,36 @@ public class DownloadFromBuildService extends DownloadService {
         }
         return filesNeedDownload;
     }
+
+    private BlobContainerClient getContainer(StorageAccountInfo account, String containerName)
+            throws URISyntaxException, IOException {
+        String key = account.getStorageAccName() + "|" + containerName;
+        BlobContainerClient container = containers.get(key);
+        if (container == null) {
+            container = AzureUtils.getBlobContainerReference(account, containerName, false, true, null);
+            containers.put(key, container);
+        }
+        return container;
+    }
+
+    private ShareClient getShare(StorageAccountInfo account, String shareName)
+            throws URISyntaxException, IOException {
+        String key = account.getStorageAccName() + "|" + shareName;
+        ShareClient share = shares.get(key);
+        if (share == null) {
+            share = AzureUtils.getShareClient(account).getShareClient(shareName);
+            shares.put(key, share);
+        }
+        return share;
+    }
+
+    /**
+     * Artifacts recorded by older versions do not know their container, it is then taken from their URL.
+     */
+    private static String containerOrShare(AzureBlob blob) throws IOException {
+        if (StringUtils.isNotBlank(blob.getContainerOrFileShare())) {
+            return blob.getContainerOrFileShare();
+        }
+        return new URL(blob.getBlobURL()).getPath().split("/")[1];
+    }
 }
@@ -18,10 +18,12 @@ package com.microsoftopentechnologies.windowsazurestorage.service;
 import com.azure.core.http.rest.PagedIterable;
 import com.azure.storage.blob.BlobContainerClient;
 import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.ListBlobsOptions;
 import com.microsoftopentechnologies.windowsazurestorage.Messages;
 import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
 import com.microsoftopentechnologies.windowsazurestorage.helper.AzureUtils;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.DownloadServiceData;
+import org.apache.commons.lang3.StringUtils;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
@@ -49,7 +51,12 @@ public class DownloadFromContainerService extends DownloadService {
                     false,
                     true,
                     null);
-            filesNeedDownload = scanBlobs(container, container.listBlobs());
+            filesNeedDownload = 0;
+            // only list the part of the container the include patterns can match
+            for (String prefix : listingPrefixes(serviceData.getIncludeFilesPattern())) {
+                filesNeedDownload += scanBlobs(container, container.listBlobs(
+                        new ListBlobsOptions().setPrefix(StringUtils.defaultIfEmpty(prefix, null)), null));
+            }
             println(Messages.AzureStorageBuilder_files_need_download_count(filesNeedDownload));
             waitForDownloadEnd();
         } catch (URISyntaxException | IOException | WAStorageException e) {
@@ -57,6 +64,8 @@ public class DownloadFromContainerService extends DownloadService {
             e.printStackTrace(error(Messages.AzureStorageBuilder_download_err(
                     serviceData.getStorageAccountInfo().getStorageAccName())));
             setRunUnstable();
+        } finally {
+            endDownload();
         }
         return getFilesDownloaded();
     }
@@ -71,7 +80,7 @@ public class DownloadFromContainerService extends DownloadService {
                     serviceData.getExcludeFilesPattern(),
                     blobItem.getName(),
                     true)) {
-                getExecutorService().submit(new DownloadThread(container.getBlobClient(blobItem.getName())));
+                scheduleDownload(container.getBlobClient(blobItem.getName()), blobItem.getProperties());
                 filesNeedDownload++;
             }
         }
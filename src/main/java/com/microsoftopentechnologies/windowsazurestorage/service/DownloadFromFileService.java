@@ -15,7 +15,6 @@
 
 package com.microsoftopentechnologies.windowsazurestorage.service;
 
-import com.azure.core.http.rest.PagedIterable;
 import com.azure.storage.file.share.ShareClient;
 import com.azure.storage.file.share.ShareDirectoryClient;
 import com.azure.storage.file.share.ShareServiceClient;
@@ -24,9 +23,11 @@ import com.microsoftopentechnologies.windowsazurestorage.Messages;
 import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
 import com.microsoftopentechnologies.windowsazurestorage.helper.AzureUtils;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.DownloadServiceData;
+import org.apache.commons.lang3.StringUtils;
 
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DownloadFromFileService extends DownloadService {
     public DownloadFromFileService(DownloadServiceData data) {
@@ -35,82 +36,57 @@ public class DownloadFromFileService extends DownloadService {
 
     @Override
     public int execute() {
-        int filesNeedDownload;
+        final DownloadServiceData data = getServiceData();
         try {
-            if (getServiceData().isVerbose()) {
+            if (data.isVerbose()) {
                 println(Messages.AzureStorageBuilder_downloading());
             }
             final ShareClient cloudFileShare = getCloudFileShare();
-            final ShareDirectoryClient cloudFileDirectory = cloudFileShare.getRootDirectoryClient();
-            filesNeedDownload = scanFileItems(cloudFileShare, cloudFileDirectory,
-                    cloudFileDirectory.listFilesAndDirectories()
-            );
-            println(Messages.AzureStorageBuilder_files_need_download_count(filesNeedDownload));
+            final AtomicInteger filesNeedDownload = new AtomicInteger();
+            final ShareTraversal traversal = new ShareTraversal(data.getMaxConcurrency());
+            // start the traversal at the deepest directory the include patterns can match
+            for (String prefix : listingPrefixes(data.getIncludeFilesPattern())) {
+                int slash = prefix.lastIndexOf('/');
+                final ShareDirectoryClient cloudFileDirectory = slash < 0
+                        ? cloudFileShare.getRootDirectoryClient()
+                        : cloudFileShare.getDirectoryClient(prefix.substring(0, slash));
+                if (slash >= 0 && !cloudFileDirectory.exists()) {
+                    continue;
+                }
+                traversal.walk(cloudFileDirectory, StringUtils.defaultIfEmpty(prefix.substring(slash + 1), null),
+                        new ShareTraversal.Visitor() {
+                            @Override
+                            public boolean enterDirectory(String path) {
+                                return shouldDownload(data.getIncludeFilesPattern(), data.getExcludeFilesPattern(),
+                                        path, false);
+                            }
+
+                            @Override
+                            public void visitFile(ShareDirectoryClient directory, ShareFileItem file, String path) {
+                                if (shouldDownload(data.getIncludeFilesPattern(), data.getExcludeFilesPattern(),
+                                        path, true)) {
+                                    scheduleDownload(directory.getFileClient(file.getName()),
+                                            file.getFileSize() == null ? -1 : file.getFileSize());
+                                    filesNeedDownload.incrementAndGet();
+                                }
+                            }
+                        });
+            }
+            println(Messages.AzureStorageBuilder_files_need_download_count(filesNeedDownload.get()));
             waitForDownloadEnd();
         } catch (URISyntaxException | MalformedURLException | WAStorageException e) {
             final String message = Messages.AzureStorageBuilder_download_err(
-                    getServiceData().getStorageAccountInfo().getStorageAccName()) + ":" + e.getMessage();
+                    data.getStorageAccountInfo().getStorageAccName()) + ":" + e.getMessage();
             e.printStackTrace(error(message));
             println(message);
             setRunUnstable();
+        } finally {
+            endDownload();
         }
 
         return getFilesDownloaded();
     }
 
-    private int scanFileItems(ShareClient shareClient,
-                              ShareDirectoryClient cloudFileDirectory,
-                              PagedIterable<ShareFileItem> fileItems
-    ) {
-        return scanFileItems(shareClient, cloudFileDirectory, fileItems, 0);
-    }
-
-    private int scanFileItems(ShareClient shareClient,
-                              ShareDirectoryClient cloudFileDirectory,
-                              PagedIterable<ShareFileItem> fileItems,
-                              int filesNeedDownload
-    ) {
-        final DownloadServiceData data = getServiceData();
-        for (final ShareFileItem fileItem : fileItems) {
-            if (fileItem.isDirectory()) {
-
-                String filePath = prependDirectoryPathIfRequired(
-                        cloudFileDirectory.getDirectoryPath(), fileItem.getName() + "/"
-                );
-
-                if (shouldDownload(
-                        data.getIncludeFilesPattern(),
-                        data.getExcludeFilesPattern(),
-                        filePath,
-                        false)) {
-                    ShareDirectoryClient subdirectoryClient = shareClient.getDirectoryClient(
-                            prependDirectoryPathIfRequired(cloudFileDirectory.getDirectoryPath(), fileItem.getName())
-                    );
-                    filesNeedDownload = scanFileItems(shareClient, subdirectoryClient,
-                            subdirectoryClient.listFilesAndDirectories(),
-                            filesNeedDownload);
-                }
-            }
-
-            if (shouldDownload(
-                    data.getIncludeFilesPattern(),
-                    data.getExcludeFilesPattern(),
-                    prependDirectoryPathIfRequired(cloudFileDirectory.getDirectoryPath(), fileItem.getName()),
-                    true)) {
-                getExecutorService().submit(new DownloadThread(cloudFileDirectory.getFileClient(fileItem.getName())));
-                filesNeedDownload++;
-            }
-        }
-        return filesNeedDownload;
-    }
-
-    private String prependDirectoryPathIfRequired(String directoryPath, String fileName) {
-        if (!directoryPath.equals("")) {
-            return directoryPath + "/" + fileName;
-        }
-        return fileName;
-    }
-
     private ShareClient getCloudFileShare()
             throws URISyntaxException, MalformedURLException, WAStorageException {
         final DownloadServiceData serviceData = getServiceData();
@@ -0,0 +1,253 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sidecar index of an incremental download, kept on the agent next to the download directory. It records, for
+ * every downloaded file, the blob or file it came from, the ETag and Content-MD5 of that source and the size and
+ * modification time of the local copy, so a later step can skip the files which changed neither in Azure nor on
+ * disk.
+ * <p>
+ * The batches of a step all read the index as it was when the step started and record their downloads in a
+ * session held by the agent; the index file itself is only replaced, atomically, once the step ends.
+ */
+final class DownloadIndex {
+    static final String FILE_NAME = "azure-storage-downloads.json";
+
+    private static final Logger LOGGER = Logger.getLogger(DownloadIndex.class.getName());
+    private static final int VERSION = 1;
+    private static final Map<String, DownloadIndex> SESSIONS = new ConcurrentHashMap<>();
+
+    private final Map<String, Entry> previous;
+    private final Map<String, Entry> updates = new ConcurrentHashMap<>();
+
+    private DownloadIndex(Map<String, Entry> previous) {
+        this.previous = previous;
+    }
+
+    /**
+     * Returns the index of the given step on this agent, reading the index file on first use.
+     *
+     * @param session   identifier of the step
+     * @param indexFile the index file, which may not exist yet
+     * @return the index shared by the batches of the step
+     */
+    static DownloadIndex open(String session, File indexFile) {
+        return SESSIONS.computeIfAbsent(session, key -> new DownloadIndex(read(indexFile)));
+    }
+
+    /**
+     * Returns what the previous steps recorded for a local file, if that file is still the one they downloaded
+     * from the given source.
+     *
+     * @param path   path of the file relative to the download directory
+     * @param source identity of the blob or file the download comes from
+     * @param file   the local file
+     * @return the recorded entry, {@code null} if the file is missing, was modified locally or came from elsewhere
+     */
+    Entry intactEntry(String path, String source, File file) {
+        Entry entry = previous.get(path);
+        if (entry == null || !entry.source.equals(source)
+                || !file.isFile() || file.length() != entry.size || file.lastModified() != entry.lastModified) {
+            return null;
+        }
+        return entry;
+    }
+
+    void record(String path, String source, String etag, String contentMd5, File file) {
+        updates.put(path, new Entry(source, etag, contentMd5, file.length(), file.lastModified()));
+    }
+
+    /**
+     * Writes the index of the given step, merged with its previous content, and closes the step's session.
+     * Nothing is written when the step downloaded nothing on this agent.
+     */
+    static void commit(String session, File indexFile) throws IOException {
+        DownloadIndex index = SESSIONS.remove(session);
+        if (index == null || index.updates.isEmpty()) {
+            return;
+        }
+        Map<String, Entry> merged = new TreeMap<>(index.previous);
+        merged.putAll(index.updates);
+
+        Path target = indexFile.toPath();
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), FILE_NAME, ".tmp");
+        try {
+            Files.write(temp, toJson(merged).getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Closes the session of a step which did not complete, leaving the index file as it was.
+     */
+    static void discard(String session) {
+        SESSIONS.remove(session);
+    }
+
+    static String encodeMd5(byte[] contentMd5) {
+        return contentMd5 == null ? null : Base64.getEncoder().encodeToString(contentMd5);
+    }
+
+    /**
+     * A missing or unreadable index only costs a full download, so it is never an error.
+     */
+    static Map<String, Entry> read(File indexFile) {
+        try {
+            return fromJson(new String(Files.readAllBytes(indexFile.toPath()), StandardCharsets.UTF_8));
+        } catch (NoSuchFileException e) {
+            return Collections.emptyMap();
+        } catch (IOException | JSONException e) {
+            LOGGER.log(Level.WARNING, "Ignoring the unreadable download index " + indexFile, e);
+            return Collections.emptyMap();
+        }
+    }
+
+    static String toJson(Map<String, Entry> entries) {
+        JSONObject files = new JSONObject();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry value = entry.getValue();
+            JSONObject file = new JSONObject();
+            file.put("source", value.source);
+            file.put("etag", value.etag);
+            file.put("contentMd5", value.contentMd5);
+            file.put("size", value.size);
+            file.put("lastModified", value.lastModified);
+            files.put(entry.getKey(), file);
+        }
+        JSONObject index = new JSONObject();
+        index.put("version", VERSION);
+        index.put("files", files);
+        return index.toString();
+    }
+
+    static Map<String, Entry> fromJson(String json) {
+        JSONObject index = JSONObject.fromObject(json);
+        if (index.optInt("version") != VERSION) {
+            return Collections.emptyMap();
+        }
+        JSONObject files = index.getJSONObject("files");
+        Map<String, Entry> entries = new TreeMap<>();
+        for (Iterator<?> paths = files.keys(); paths.hasNext();) {
+            String path = (String) paths.next();
+            JSONObject file = files.getJSONObject(path);
+            entries.put(path, new Entry(file.getString("source"), file.optString("etag", null),
+                    file.optString("contentMd5", null), file.getLong("size"), file.getLong("lastModified")));
+        }
+        return entries;
+    }
+
+    /**
+     * What was downloaded to a local file.
+     */
+    static final class Entry {
+        private final String source;
+        private final String etag;
+        private final String contentMd5;
+        private final long size;
+        private final long lastModified;
+
+        Entry(String source, String etag, String contentMd5, long size, long lastModified) {
+            this.source = source;
+            this.etag = etag;
+            this.contentMd5 = contentMd5;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        String getEtag() {
+            return etag;
+        }
+
+        /**
+         * Tells from the listing alone whether the source is still the version downloaded: by ETag when the
+         * listing has one, by Content-MD5 otherwise.
+         *
+         * @return {@code false} when the listing does not say, the source then has to be checked
+         */
+        boolean matchesListing(String listedEtag, String listedContentMd5) {
+            if (listedEtag != null) {
+                return listedEtag.equals(etag);
+            }
+            return listedContentMd5 != null && listedContentMd5.equals(contentMd5);
+        }
+
+        boolean matches(String currentEtag) {
+            return currentEtag != null && currentEtag.equals(etag);
+        }
+    }
+
+    /**
+     * Ends the session of a step on the agent, invoked on the index file.
+     */
+    static final class CommitOnAgent extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = -4023185936721493810L;
+        private final String session;
+
+        CommitOnAgent(String session) {
+            this.session = session;
+        }
+
+        @Override
+        public Void invoke(File f, VirtualChannel channel) throws IOException {
+            commit(session, f);
+            return null;
+        }
+    }
+
+    /**
+     * Ends the session of a step which did not complete on the agent, invoked on the index file.
+     */
+    static final class DiscardOnAgent extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 7312954150372864512L;
+        private final String session;
+
+        DiscardOnAgent(String session) {
+            this.session = session;
+        }
+
+        @Override
+        public Void invoke(File f, VirtualChannel channel) {
+            discard(session);
+            return null;
+        }
+    }
+}
@@ -15,217 +15,818 @@
 
 package com.microsoftopentechnologies.windowsazurestorage.service;
 
+import com.azure.storage.blob.models.BlobItemProperties;
 import com.azure.storage.blob.specialized.BlobClientBase;
 import com.azure.storage.file.share.ShareFileClient;
 import com.microsoftopentechnologies.windowsazurestorage.Messages;
+import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInfo;
 import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.helper.AzureUtils;
+import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.DownloadServiceData;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.SasToken;
 import hudson.FilePath;
-import org.springframework.util.AntPathMatcher;
+import hudson.ProxyConfiguration;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.WorkspaceList;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang3.StringUtils;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Base class of the download services. The controller only lists what has to be downloaded: the downloads
+ * themselves run on the agent owning the workspace, with a read SAS signed on the controller, so the bytes go
+ * straight from Azure storage to the agent instead of through the controller and its remoting channel.
+ */
 public abstract class DownloadService extends StoragePluginService<DownloadServiceData> {
     protected static final String DOWNLOAD = "Download";
     protected static final String DOWNLOAD_FAILED = "DownloadFailed";
-    private static final int DOWNLOAD_THREAD_COUNT = 16;
+    private static final Logger LOGGER = Logger.getLogger(DownloadService.class.getName());
     private static final int KEEP_ALIVE_TIME = 1;
     private static final int TIME_OUT = 1;
     private static final TimeUnit TIME_OUT_UNIT = TimeUnit.DAYS;
+    private static final String WILDCARDS = "*?{";
+    /**
+     * Downloads sent to the agent at once, per transfer allowed in parallel.
+     */
+    private static final int BATCH_SIZE_PER_TRANSFER = 4;
+    /**
+     * Full batches waiting for a dispatcher before the listing blocks.
+     */
+    private static final int QUEUED_BATCHES = 2;
+    private static final int DISPATCHERS = 2;
+    private static final List<DownloadObject> END_OF_LISTING = Collections.emptyList();
+    private static final String CACHE_DIR = "caches/azure-storage-downloads";
 
     private AtomicInteger filesDownloaded = new AtomicInteger(0);
-    private ExecutorService executorService = new ThreadPoolExecutor(DOWNLOAD_THREAD_COUNT, DOWNLOAD_THREAD_COUNT,
-            KEEP_ALIVE_TIME, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>());
+    private final Map<String, SasTokenIssuer> readSasIssuers = new ConcurrentHashMap<>();
+    private final Map<String, StorageAccountInfo> accounts = new ConcurrentHashMap<>();
+    private final Map<String, BlobBatchDeleter> deleters = new LinkedHashMap<>();
+    private final Map<String, SasTokenProvider> exportedSasProviders = new ConcurrentHashMap<>();
+    private final Map<String, PathPatternMatcher> compiledPatterns = new ConcurrentHashMap<>();
+
+    private final int batchSize;
+    private final int dispatchers;
+    private final int agentConcurrency;
+    private final Map<String, List<DownloadObject>> openBatches = new LinkedHashMap<>();
+    private final BlockingQueue<List<DownloadObject>> fullBatches = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+    private final AtomicInteger failedBatches = new AtomicInteger();
+    private final String indexSession = UUID.randomUUID().toString();
+    private ExecutorService dispatcherPool;
+    private FilePath downloadDir;
+    private FilePath indexFile;
+    private boolean indexClosed;
+    private FilePath cacheDir;
 
     public DownloadService(DownloadServiceData data) {
         super(data);
+        int maxConcurrency = data.getMaxConcurrency();
+        this.batchSize = BATCH_SIZE_PER_TRANSFER * new TransferConcurrencyController(maxConcurrency).getCeiling();
+        // the batches run side by side on the agent, so they share the ceiling of the step
+        this.dispatchers = maxConcurrency == 1 ? 1 : DISPATCHERS;
+        this.agentConcurrency = maxConcurrency > 0 ? Math.max(1, maxConcurrency / dispatchers) : 0;
+    }
+
+    /**
+     * Data object for a download run on the agent.
+     */
+    static final class DownloadObject implements Serializable {
+        private static final long serialVersionUID = 6316425867950137520L;
+        private final String accountName;
+        private final String storageType;
+        private final String containerOrShareName;
+        private final String source;
+        private final String url;
+        private final String destination;
+        private final long size;
+        private final String etag;
+        private final String contentMd5;
+        private final boolean deleteAfterDownload;
+
+        /**
+         * @param accountName          storage account holding the source
+         * @param storageType          blob or file storage
+         * @param containerOrShareName container or share holding the source
+         * @param source               name of the blob, or path of the file in the share
+         * @param url                  URL of the source
+         * @param destination          path of the downloaded file relative to the download directory
+         * @param size                 size of the source as listed, -1 if unknown
+         * @param etag                 ETag of the source as listed, {@code null} if unknown
+         * @param contentMd5           base64 Content-MD5 of the source as listed, {@code null} if unknown
+         * @param deleteAfterDownload  whether the source is deleted once downloaded
+         */
+        DownloadObject(String accountName, String storageType, String containerOrShareName, String source,
+                       String url, String destination, long size, String etag, String contentMd5,
+                       boolean deleteAfterDownload) {
+            this.accountName = accountName;
+            this.storageType = storageType;
+            this.containerOrShareName = containerOrShareName;
+            this.source = source;
+            this.url = url;
+            this.destination = destination;
+            this.size = size;
+            this.etag = etag;
+            this.contentMd5 = contentMd5;
+            this.deleteAfterDownload = deleteAfterDownload;
+        }
+
+        String getAccountName() {
+            return accountName;
+        }
+
+        String getStorageType() {
+            return storageType;
+        }
+
+        String getContainerOrShareName() {
+            return containerOrShareName;
+        }
+
+        String getSource() {
+            return source;
+        }
+
+        String getUrl() {
+            return url;
+        }
+
+        String getDestination() {
+            return destination;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        String getEtag() {
+            return etag;
+        }
+
+        String getContentMd5() {
+            return contentMd5;
+        }
+
+        /**
+         * @return what identifies the source across steps in the download index
+         */
+        String getSourceKey() {
+            return getScope() + "|" + source;
+        }
+
+        /**
+         * @return the container or share of the source, downloads of the same scope share a SAS and a batch
+         */
+        String getScope() {
+            return accountName + "|" + storageType + "|" + containerOrShareName;
+        }
+
+        boolean isDeleteAfterDownload() {
+            return deleteAfterDownload;
+        }
+    }
+
+    /**
+     * Data object for the result of a download run on the agent.
+     */
+    static final class DownloadResult implements Serializable {
+        private static final long serialVersionUID = -1887201558390425462L;
+        private final DownloadObject download;
+        private final long byteSize;
+        private final long interval;
+        private final boolean deleted;
+        private final boolean unchanged;
+        private final String error;
+
+        DownloadResult(DownloadObject download, long byteSize, long interval, boolean deleted, String error) {
+            this(download, byteSize, interval, deleted, false, error);
+        }
+
+        private DownloadResult(DownloadObject download, long byteSize, long interval, boolean deleted,
+                               boolean unchanged, String error) {
+            this.download = download;
+            this.byteSize = byteSize;
+            this.interval = interval;
+            this.deleted = deleted;
+            this.unchanged = unchanged;
+            this.error = error;
+        }
+
+        /**
+         * Result of an incremental download skipped because the local file is still the current version.
+         */
+        static DownloadResult unchanged(DownloadObject download, long interval) {
+            return new DownloadResult(download, 0, interval, false, true, null);
+        }
+
+        DownloadObject getDownload() {
+            return download;
+        }
+
+        long getByteSize() {
+            return byteSize;
+        }
+
+        long getInterval() {
+            return interval;
+        }
+
+        boolean isDeleted() {
+            return deleted;
+        }
+
+        boolean isUnchanged() {
+            return unchanged;
+        }
+
+        /**
+         * @return why the download failed, {@code null} if it succeeded
+         */
+        String getError() {
+            return error;
+        }
     }
 
-    class DownloadThread implements Runnable {
-        private Object downloadItem;
+    /**
+     * A task which will be executed on Jenkins agents. It downloads the given blobs or files of a single container
+     * or share into the directory it is invoked on.
+     */
+    static final class DownloadOnAgent extends MasterToSlaveFileCallable<List<DownloadResult>> {
+        private static final long serialVersionUID = 3520749417205378442L;
+        private final ProxyConfiguration proxy;
+        private final SasToken sasToken;
+        private final SasTokenProvider sasTokenProvider;
+        private final int maxConcurrency;
+        private final List<DownloadObject> downloads;
+        private final String indexSession;
+        private final String indexPath;
+        private final String cachePath;
 
-        DownloadThread(Object downloadItem) {
-            this.downloadItem = downloadItem;
+        /**
+         * @param proxy            Jenkins proxy configuration.
+         * @param sasToken         Container or share scoped read SAS shared by all the downloads.
+         * @param sasTokenProvider Provider used to renew the SAS before it expires.
+         * @param maxConcurrency   Ceiling of the parallel downloads, 0 for the global one.
+         * @param downloads        Blobs or files to download.
+         * @param indexSession     Identifier of the step in the download index, {@code null} to download everything.
+         * @param indexPath        Path of the download index on the agent, {@code null} to download everything.
+         * @param cachePath        Path of the download cache of the agent, {@code null} to download without it.
+         */
+        DownloadOnAgent(ProxyConfiguration proxy, SasToken sasToken, SasTokenProvider sasTokenProvider,
+                        int maxConcurrency, List<DownloadObject> downloads, String indexSession, String indexPath,
+                        String cachePath) {
+            this.proxy = proxy;
+            this.sasToken = sasToken;
+            this.sasTokenProvider = sasTokenProvider;
+            this.maxConcurrency = maxConcurrency;
+            this.downloads = downloads;
+            this.indexSession = indexSession;
+            this.indexPath = indexPath;
+            this.cachePath = cachePath;
         }
 
         @Override
-        public void run() {
+        public List<DownloadResult> invoke(File f, VirtualChannel channel)
+                throws IOException, InterruptedException {
+            try {
+                return downloadAll(f);
+            } finally {
+                AgentClientRegistry.release(sasTokenProvider);
+            }
+        }
+
+        private List<DownloadResult> downloadAll(File f) throws IOException, InterruptedException {
+            TransferConcurrencyController concurrency = new TransferConcurrencyController(maxConcurrency);
+            RangedDownload ranged = RangedDownload.fromSystemProperties();
+            DownloadIndex index = indexPath == null ? null : DownloadIndex.open(indexSession, new File(indexPath));
+            DownloadCache cache = cachePath == null ? null : DownloadCache.fromSystemProperties(new File(cachePath));
+            ExecutorService agentExecutorService = new ThreadPoolExecutor(concurrency.getCeiling(),
+                    concurrency.getCeiling(), KEEP_ALIVE_TIME, TimeUnit.SECONDS, new LinkedBlockingDeque<>());
+
+            List<Future<DownloadResult>> futures = new ArrayList<>();
+            for (DownloadObject download : downloads) {
+                futures.add(agentExecutorService.submit(() -> concurrency.run(
+                        () -> download(f, ranged, index, cache, download), DownloadResult::getByteSize)));
+            }
+
+            List<DownloadResult> results = new ArrayList<>();
             try {
-                if (downloadItem instanceof BlobClientBase) {
-                    downloadBlob((BlobClientBase) downloadItem);
+                for (Future<DownloadResult> future : futures) {
+                    results.add(future.get());
+                }
+            } catch (ExecutionException e) {
+                throw new IOException(e);
+            } finally {
+                agentExecutorService.shutdownNow();
+            }
+            if (cache != null) {
+                cache.evict();
+            }
+            return results;
+        }
+
+        /**
+         * Downloads a single blob or file, in ranges when it is large. Failures are reported in the result so the
+         * other downloads go on.
+         * <p>
+         * With an index, a local file left as a previous step downloaded it is skipped when the listing shows its
+         * source did not change either. When the listing does not say, a small blob is fetched only if its ETag
+         * changed ({@code If-None-Match}) and the other sources are checked with their properties first.
+         * <p>
+         * With a cache, the file is linked to the cached copy of its content, which is only fetched when no other
+         * download, from this step or another one of the agent, cached it before.
+         */
+        private DownloadResult download(File downloadDir, RangedDownload ranged, DownloadIndex index,
+                                        DownloadCache cache, DownloadObject download) throws InterruptedException {
+            long startTime = System.currentTimeMillis();
+            try {
+                File destination = new File(downloadDir, download.getDestination());
+                Files.createDirectories(destination.getParentFile().toPath());
+                DownloadIndex.Entry previous = index == null ? null
+                        : index.intactEntry(download.getDestination(), download.getSourceKey(), destination);
+                if (previous != null && previous.matchesListing(download.getEtag(), download.getContentMd5())) {
+                    return DownloadResult.unchanged(download, System.currentTimeMillis() - startTime);
+                }
+                DownloadTransfer transfer = transfer(ranged, download);
+                DownloadTransfer.Version version;
+                if (cache == null) {
+                    version = transfer.fetch(download.getSize(), destination,
+                            previous == null ? null : previous.getEtag());
                 } else {
-                    downloadSingleFile((ShareFileClient) downloadItem);
+                    version = fetchThroughCache(cache, transfer, download, previous, destination);
                 }
-                filesDownloaded.addAndGet(1);
-            } catch (Exception e) {
-                final String message = Messages.AzureStorageBuilder_download_err(
-                        getServiceData().getStorageAccountInfo().getStorageAccName()) + ":" + e.getMessage();
-                e.printStackTrace(error(message));
-                println(message);
-                setRunUnstable();
+                if (version == null) {
+                    return DownloadResult.unchanged(download, System.currentTimeMillis() - startTime);
+                }
+                // blobs are deleted in batches by the controller
+                boolean deleted = download.isDeleteAfterDownload()
+                        && Constants.FILE_STORAGE.equalsIgnoreCase(download.getStorageType()) && transfer.delete();
+                if (index != null) {
+                    index.record(download.getDestination(), download.getSourceKey(), version.getEtag(),
+                            version.getContentMd5(), destination);
+                }
+                return new DownloadResult(download, version.getBytes(), System.currentTimeMillis() - startTime,
+                        deleted, null);
+            } catch (IOException | RuntimeException e) {
+                return new DownloadResult(download, 0, System.currentTimeMillis() - startTime, false,
+                        e.toString());
+            }
+        }
+
+        /**
+         * @return the version linked, with no byte downloaded when it was cached, {@code null} when the local file
+         * is still the current version
+         */
+        private static DownloadTransfer.Version fetchThroughCache(DownloadCache cache, DownloadTransfer transfer,
+                DownloadObject download, DownloadIndex.Entry previous, File destination)
+                throws IOException, InterruptedException {
+            DownloadTransfer.Version listed = new DownloadTransfer.Version(download.getSize(), download.getEtag(),
+                    download.getContentMd5());
+            String key = DownloadCache.key(download.getSource(), download.getUrl(), listed.getEtag(),
+                    listed.getContentMd5());
+            if (key == null) {
+                // the listing does not identify the content, its properties do
+                listed = transfer.properties();
+                if (previous != null && previous.matches(listed.getEtag())) {
+                    return null;
+                }
+                key = DownloadCache.key(download.getSource(), download.getUrl(), listed.getEtag(),
+                        listed.getContentMd5());
+            }
+            if (key == null) {
+                return transfer.fetch(download.getSize(), destination, null);
+            }
+            AtomicReference<DownloadTransfer.Version> fetched = new AtomicReference<>();
+            cache.materialize(key, listed.getBytes(), destination,
+                    target -> fetched.set(transfer.fetch(listed.getBytes(), target, null)));
+            DownloadTransfer.Version version = fetched.get();
+            return version != null ? version
+                    : new DownloadTransfer.Version(0, listed.getEtag(), listed.getContentMd5());
+        }
+
+        private DownloadTransfer transfer(RangedDownload ranged, DownloadObject download) {
+            if (Constants.BLOB_STORAGE.equalsIgnoreCase(download.getStorageType())) {
+                return DownloadTransfer.of(AgentClientRegistry.getBlobServiceClient(proxy, download.getUrl(),
+                                download.getContainerOrShareName(), sasToken, sasTokenProvider)
+                        .getBlobContainerClient(download.getContainerOrShareName())
+                        .getBlobClient(download.getSource()), ranged);
             }
+            return DownloadTransfer.of(AgentClientRegistry.getShareServiceClient(proxy, download.getUrl(),
+                            download.getContainerOrShareName(), sasToken, sasTokenProvider)
+                    .getShareClient(download.getContainerOrShareName())
+                    .getFileClient(download.getSource()), ranged);
         }
     }
 
-    protected void waitForDownloadEnd() throws WAStorageException {
-        executorService.shutdown();
+    /**
+     * Queues the download of a listed blob. Its ETag and Content-MD5 let an incremental download skip it without
+     * another request when it did not change.
+     *
+     * @param blob       the blob to download
+     * @param properties properties of the blob as listed
+     */
+    protected void scheduleDownload(BlobClientBase blob, BlobItemProperties properties) {
+        scheduleDownload(getServiceData().getStorageAccountInfo(), blob, null, properties.getContentLength(),
+                properties.getETag(),
+                DownloadIndex.encodeMd5(properties.getContentMd5()));
+    }
+
+    /**
+     * Queues the download of a blob holding the artifact with the given name, which differs from the blob name for
+     * content addressed artifacts. Such blobs may be shared with other builds, so they are never deleted after
+     * download.
+     *
+     * @param account storage account of the blob, which may differ from the one of the step
+     * @param blob    the blob to download
+     * @param name    name of the artifact, {@code null} for the name of the blob
+     * @param size    size of the blob as listed, -1 if unknown
+     */
+    protected void scheduleDownload(StorageAccountInfo account, BlobClientBase blob, String name, long size) {
+        scheduleDownload(account, blob, name, size, null, null);
+    }
+
+    private void scheduleDownload(StorageAccountInfo account, BlobClientBase blob, String name, long size,
+                                  String etag, String contentMd5) {
+        final boolean contentAddressed = name != null && !name.equals(blob.getBlobName());
+        final String artifactName = name == null ? blob.getBlobName() : name;
+        schedule(account, new DownloadObject(account.getStorageAccName(), Constants.BLOB_STORAGE,
+                blob.getContainerName(), blob.getBlobName(), blob.getBlobUrl(), destinationPath(artifactName), size,
+                etag, contentMd5, getServiceData().isDeleteFromAzureAfterDownload() && !contentAddressed));
+    }
+
+    /**
+     * Queues the download of a file of a file share.
+     *
+     * @param cloudFile the file to download
+     * @param size      size of the file as listed, -1 if unknown
+     */
+    protected void scheduleDownload(ShareFileClient cloudFile, long size) {
+        scheduleDownload(getServiceData().getStorageAccountInfo(), cloudFile, size);
+    }
+
+    /**
+     * Queues the download of a file of a file share.
+     *
+     * @param account   storage account of the file, which may differ from the one of the step
+     * @param cloudFile the file to download
+     * @param size      size of the file as listed, -1 if unknown
+     */
+    protected void scheduleDownload(StorageAccountInfo account, ShareFileClient cloudFile, long size) {
+        schedule(account, new DownloadObject(account.getStorageAccName(), Constants.FILE_STORAGE,
+                cloudFile.getShareName(), cloudFile.getFilePath(), cloudFile.getFileUrl(),
+                destinationPath(cloudFile.getFilePath()), size, null, null,
+                getServiceData().isDeleteFromAzureAfterDownload()));
+    }
+
+    /**
+     * Adds a download to the open batch of its container or share. A full batch is handed to the dispatchers,
+     * blocking the listing while {@value #QUEUED_BATCHES} batches are already waiting, so the downloads held on the
+     * controller stay bounded by the concurrency of the step whatever the size of the listing.
+     */
+    private synchronized void schedule(StorageAccountInfo account, DownloadObject download) {
+        if (getServiceData().isVerbose()) {
+            println("Downloading file:" + download.getUrl());
+        }
+        accounts.putIfAbsent(download.getAccountName(), account);
+        String scope = download.getScope();
+        List<DownloadObject> batch = openBatches.computeIfAbsent(scope, key -> new ArrayList<>(batchSize));
+        batch.add(download);
+        if (batch.size() >= batchSize) {
+            openBatches.remove(scope);
+            enqueue(batch);
+        }
+    }
+
+    private void enqueue(List<DownloadObject> batch) {
+        if (dispatcherPool == null) {
+            startDispatchers();
+        }
         try {
-            boolean executionFinished = executorService.awaitTermination(TIME_OUT, TIME_OUT_UNIT);
-            if (!executionFinished) {
-                throw new WAStorageException(Messages.AzureStorageBuilder_download_timeout(TIME_OUT, TIME_OUT_UNIT));
-            }
+            fullBatches.put(batch);
         } catch (InterruptedException e) {
-            throw new WAStorageException(e.getMessage(), e);
+            Thread.currentThread().interrupt();
+            throw new CancellationException(e.getMessage());
+        }
+        if (getServiceData().isVerbose() && batch != END_OF_LISTING) {
+            println(Messages.DownloadService_queue_depth(fullBatches.size(), QUEUED_BATCHES, batch.size()));
         }
     }
 
-    protected void downloadSingleFile(ShareFileClient cloudFile) throws WAStorageException {
-        final DownloadServiceData serviceData = getServiceData();
+    private void startDispatchers() {
+        downloadDir = getServiceData().getDownloadDir();
+        if (getServiceData().isIncremental()) {
+            // next to the download directory, so the index is neither downloaded over nor archived with it
+            FilePath tempDir = WorkspaceList.tempDir(downloadDir);
+            indexFile = tempDir == null ? null : tempDir.child(DownloadIndex.FILE_NAME);
+        }
+        if (getServiceData().isCacheOnAgent()) {
+            // shared by all the workspaces of the agent
+            Computer computer = downloadDir.toComputer();
+            Node node = computer == null ? null : computer.getNode();
+            FilePath root = node == null ? null : node.getRootPath();
+            cacheDir = root == null ? null : root.child(CACHE_DIR);
+        }
+        dispatcherPool = Executors.newFixedThreadPool(dispatchers);
+        for (int i = 0; i < dispatchers; i++) {
+            dispatcherPool.submit(() -> {
+                List<DownloadObject> batch;
+                while ((batch = fullBatches.take()) != END_OF_LISTING) {
+                    dispatch(batch);
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Runs a batch of downloads from a single container or share on the agent.
+     */
+    private void dispatch(List<DownloadObject> batch) {
+        final DownloadObject first = batch.get(0);
         try {
-            if (serviceData.isVerbose()) {
-                println("Downloading file:" + cloudFile.getFileUrl());
+            SasTokenIssuer sasIssuer = getReadSasIssuer(first);
+            SasTokenProvider sasProvider = exportedSasProviders.computeIfAbsent(first.getScope(),
+                    key -> sasIssuer.export(downloadDir.getChannel()));
+            List<DownloadResult> results = downloadDir.act(new DownloadOnAgent(Jenkins.get().getProxy(),
+                    sasIssuer.current(), sasProvider, agentConcurrency, batch, indexSession,
+                    indexFile == null ? null : indexFile.getRemote(), cacheDir == null ? null : cacheDir.getRemote()));
+            for (DownloadResult result : results) {
+                reportResult(result);
             }
-            final FilePath destFile = destinationFilePath(cloudFile.getFilePath());
+        } catch (IOException | URISyntaxException | InterruptedException | RuntimeException e) {
+            failedBatches.incrementAndGet();
+            e.printStackTrace(error(Messages.AzureStorageBuilder_download_err(
+                    getServiceData().getStorageAccountInfo().getStorageAccName())));
+            setRunUnstable();
+        }
+    }
 
-            final long startTime = System.currentTimeMillis();
-            try (OutputStream fos = destFile.write()) {
-                cloudFile.download(fos);
+    /**
+     * Sends the batches still open to the agent and waits for all the queued downloads to complete.
+     */
+    protected void waitForDownloadEnd() throws WAStorageException {
+        synchronized (this) {
+            for (List<DownloadObject> batch : openBatches.values()) {
+                enqueue(batch);
             }
-            final long endTime = System.currentTimeMillis();
-            println(String.format(
-                    "blob %s is downloaded to %s in %s",
-                    cloudFile.getFilePath(), destFile.getParent(), getTime(endTime - startTime)));
-
-            if (serviceData.isDeleteFromAzureAfterDownload()) {
-                if (cloudFile.exists()) {
-                    cloudFile.delete();
-                }
-                println("cloud file " + cloudFile.getFilePath() + " is deleted from Azure.");
+            openBatches.clear();
+            if (dispatcherPool == null) {
+                return;
             }
-        } catch (IOException | InterruptedException e) {
+            for (int i = 0; i < dispatchers; i++) {
+                enqueue(END_OF_LISTING);
+            }
+        }
+        try {
+            dispatcherPool.shutdown();
+            boolean executionFinished = dispatcherPool.awaitTermination(TIME_OUT, TIME_OUT_UNIT);
+            if (!executionFinished) {
+                throw new WAStorageException(Messages.AzureStorageBuilder_download_timeout(TIME_OUT, TIME_OUT_UNIT));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new WAStorageException(e.getMessage(), e);
+        } finally {
+            dispatcherPool.shutdownNow();
+            dispatcherPool = null;
+        }
+        if (indexFile != null) {
+            try {
+                indexFile.act(new DownloadIndex.CommitOnAgent(indexSession));
+                indexClosed = true;
+            } catch (IOException e) {
+                throw new WAStorageException(e.getMessage(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new WAStorageException(e.getMessage(), e);
+            }
+        }
+        finishDeletes();
+        if (failedBatches.getAndSet(0) > 0) {
+            throw new WAStorageException(Messages.AzureStorageBuilder_download_err(
+                    getServiceData().getStorageAccountInfo().getStorageAccName()));
         }
     }
 
-    protected void downloadBlob(BlobClientBase blob) throws WAStorageException {
-        try {
-            if (getServiceData().isVerbose()) {
-                println("Downloading file:" + blob.getBlobUrl());
+    /**
+     * Releases what the step holds, whether it completed or not. The read SAS issuers exported to the agent stop
+     * signing, so the clients the agent shares between steps never ask a step which has ended for a token.
+     */
+    protected void endDownload() {
+        synchronized (this) {
+            if (dispatcherPool != null) {
+                // the listing failed, the queued batches are dropped
+                dispatcherPool.shutdownNow();
+                dispatcherPool = null;
             }
+        }
+        for (SasTokenIssuer sasIssuer : readSasIssuers.values()) {
+            sasIssuer.revoke();
+        }
+        exportedSasProviders.clear();
+        if (indexFile != null && !indexClosed) {
+            discardIndexSession();
+        }
+    }
 
-            final FilePath destFile = destinationFilePath(blob.getBlobName());
-            final long startTime = System.currentTimeMillis();
-            try (OutputStream fos = destFile.write()) {
-                blob.download(fos);
+    /**
+     * Drops the index session the agent keeps for the step, which would otherwise stay in its memory. The index
+     * file is left as it was, so the next step downloads again what this one did not record.
+     */
+    private void discardIndexSession() {
+        // an interrupted step still has to reach the agent
+        boolean interrupted = Thread.interrupted();
+        try {
+            indexFile.act(new DownloadIndex.DiscardOnAgent(indexSession));
+            indexClosed = true;
+        } catch (IOException | InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Failed to discard the download index session " + indexSession, e);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
-            final long endTime = System.currentTimeMillis();
-            println(String.format("blob %s is downloaded to %s in %s",
-                    blob.getBlobName(), destFile.getParent(), getTime(endTime - startTime)));
+        }
+    }
 
-            if (getServiceData().isDeleteFromAzureAfterDownload()) {
-                if (blob.exists()) {
-                    blob.delete();
-                }
-                println("blob " + blob.getBlobName() + " is deleted from Azure.");
+    /**
+     * Waits for the blobs downloaded to be deleted. A blob which could not be deleted only makes the build
+     * unstable, since it was downloaded.
+     */
+    private void finishDeletes() throws WAStorageException {
+        List<Map.Entry<String, BlobBatchDeleter>> scopes;
+        synchronized (deleters) {
+            scopes = new ArrayList<>(deleters.entrySet());
+            deleters.clear();
+        }
+        for (Map.Entry<String, BlobBatchDeleter> scope : scopes) {
+            try {
+                println(Messages.DownloadService_deleted(scope.getValue().finish(),
+                        StringUtils.substringAfterLast(scope.getKey(), "|")));
+            } catch (WAStorageException e) {
+                println(Messages.DownloadService_deleted(scope.getValue().getDeleted(),
+                        StringUtils.substringAfterLast(scope.getKey(), "|")));
+                e.printStackTrace(error(Messages.AzureStorageBuilder_download_err(
+                        getServiceData().getStorageAccountInfo().getStorageAccName())));
+                setRunUnstable();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new WAStorageException(e.getMessage(), e);
             }
-        } catch (IOException | InterruptedException e) {
-            throw new WAStorageException(e.getMessage(), e);
         }
     }
 
-    protected boolean shouldDownload(
-            String includePattern,
-            String excludePattern,
-            String blobName,
-            boolean isFullPath) {
-        String[] includePatterns = includePattern.split(FP_SEPARATOR);
-        String[] excludePatterns = null;
-
-        if (excludePattern != null) {
-            excludePatterns = excludePattern.split(FP_SEPARATOR);
+    /**
+     * Queues the deletion of a downloaded blob. The deletions of a container are sent in batches while the
+     * downloads go on.
+     */
+    private void deleteAfterDownload(DownloadObject download)
+            throws IOException, URISyntaxException, InterruptedException {
+        BlobBatchDeleter deleter;
+        synchronized (deleters) {
+            deleter = deleters.get(download.getScope());
+            if (deleter == null) {
+                deleter = new BlobBatchDeleter(AzureUtils.getBlobContainerReference(
+                        accounts.get(download.getAccountName()), download.getContainerOrShareName(),
+                        false, true, null), getServiceData().getMaxConcurrency());
+                deleters.put(download.getScope(), deleter);
+            }
         }
-
-        return blobPathMatches(blobName, includePatterns, excludePatterns, isFullPath);
+        deleter.delete(download.getUrl());
     }
 
-    private FilePath destinationFilePath(String name) {
-        final DownloadServiceData serviceData = getServiceData();
-        final FilePath downloadDir = serviceData.getDownloadDir();
-        FilePath downloadFile = new FilePath(downloadDir, name);
-
-        // That filepath will contain all the directories and explicit virtual
-        // paths, so if the user wanted it flattened, grab just the file name and
-        // recreate the file path
-        if (serviceData.isFlattenDirectories()) {
-            downloadFile = new FilePath(downloadDir, downloadFile.getName());
+    private void reportResult(DownloadResult result)
+            throws IOException, URISyntaxException, InterruptedException {
+        final DownloadObject download = result.getDownload();
+        if (result.getError() != null) {
+            final String message = Messages.AzureStorageBuilder_download_err(
+                    getServiceData().getStorageAccountInfo().getStorageAccName()) + ":" + result.getError();
+            error(message);
+            println(message);
+            setRunUnstable();
+            return;
+        }
+        filesDownloaded.addAndGet(1);
+        if (result.isUnchanged()) {
+            println(Messages.DownloadService_unchanged(download.getSource()));
+            return;
+        }
+        String destination = download.getDestination();
+        String parent = destination.contains("/") ? destination.substring(0, destination.lastIndexOf('/')) : "";
+        println(String.format("blob %s is downloaded to %s in %s",
+                download.getSource(), new FilePath(downloadDir, parent),
+                getTime(result.getInterval())));
+        if (result.isDeleted()) {
+            println("blob " + download.getSource() + " is deleted from Azure.");
+        } else if (download.isDeleteAfterDownload()
+                && Constants.BLOB_STORAGE.equalsIgnoreCase(download.getStorageType())) {
+            deleteAfterDownload(download);
         }
-
-        return downloadFile;
     }
 
-    private boolean blobPathMatches(
-            String path,
-            String[] includePatterns,
-            String[] excludePatterns,
-            boolean isFullPath) {
-        if (!isFullPath) {
-            // If we don't have a full path, we can't check for exclusions
-            // yet.  Consider include: **/*, exclude **/foo.txt.  Both would match
-            // any dir.
-            return isPotentialMatch(path, includePatterns);
-        } else {
-            return isExactMatch(path, includePatterns)
-                    && (excludePatterns == null || !isExactMatch(path, excludePatterns));
-        }
+    /**
+     * Returns the issuer of the read SAS shared by every download from the container or share of the given one.
+     */
+    private SasTokenIssuer getReadSasIssuer(DownloadObject download) {
+        return readSasIssuers.computeIfAbsent(download.getScope(),
+                key -> SasTokenIssuer.forRead(accounts.get(download.getAccountName()), download.getStorageType(),
+                        download.getContainerOrShareName(), getServiceData().isDeleteFromAzureAfterDownload()
+                                && Constants.FILE_STORAGE.equalsIgnoreCase(download.getStorageType())));
     }
 
     /**
-     * Determines whether the path is a potential match to any of the provided
-     * patterns.
+     * Returns the literal prefixes every name matching the include patterns starts with, so only the matching part
+     * of a container or share has to be listed. For {@code releases/1.2.?/bin/**} the prefix is
+     * {@code releases/1.2.}; prefixes covered by a shorter one are dropped, so the listings never overlap. A single
+     * empty prefix means the whole container or share has to be listed.
      *
-     * @param path
-     * @param patterns
-     * @return
+     * @param includePattern comma separated include patterns
+     * @return the prefixes to list, sorted
      */
-    private boolean isPotentialMatch(String path, String[] patterns) {
-        AntPathMatcher matcher = new AntPathMatcher();
-        for (String pattern : patterns) {
-            if (matcher.matchStart(pattern, path)) {
-                return true;
+    static List<String> listingPrefixes(String includePattern) {
+        TreeSet<String> prefixes = new TreeSet<>();
+        for (String pattern : includePattern.split(FP_SEPARATOR)) {
+            String literal = pattern.trim();
+            int wildcard = StringUtils.indexOfAny(literal, WILDCARDS);
+            prefixes.add(wildcard < 0 ? literal : literal.substring(0, wildcard));
+        }
+        List<String> listings = new ArrayList<>();
+        for (String prefix : prefixes) {
+            // sorted, so a prefix covering this one was added just before it
+            if (listings.isEmpty() || !prefix.startsWith(listings.get(listings.size() - 1))) {
+                listings.add(prefix);
             }
         }
-        return false;
+        return listings;
     }
 
     /**
-     * Determines whether the path is an exact match to any of the provided
-     * patterns.
+     * Checks a name against the include and exclude patterns. The patterns are compiled on first use, so the
+     * names of a large listing are matched without splitting the patterns again or allocating anything.
      *
-     * @param path
-     * @param patterns
-     * @return
+     * @param includePattern comma separated include patterns
+     * @param excludePattern comma separated exclude patterns, may be {@code null}
+     * @param blobName       name of the blob or path of the file or directory
+     * @param isFullPath     {@code false} for a directory, which is kept if a name under it may be included
+     * @return whether to download the blob or file, or to descend into the directory
      */
-    private boolean isExactMatch(String path, String[] patterns) {
-        AntPathMatcher matcher = new AntPathMatcher();
-        for (String pattern : patterns) {
-            if (matcher.match(pattern, path)) {
-                return true;
-            }
+    protected boolean shouldDownload(
+            String includePattern,
+            String excludePattern,
+            String blobName,
+            boolean isFullPath) {
+        PathPatternMatcher includes = compiledPatterns.computeIfAbsent(includePattern, PathPatternMatcher::compile);
+        if (!isFullPath) {
+            // If we don't have a full path, we can't check for exclusions
+            // yet.  Consider include: **/*, exclude **/foo.txt.  Both would match
+            // any dir.
+            return includes.matchesStart(blobName);
         }
-        return false;
+        return includes.matches(blobName) && (excludePattern == null
+                || !compiledPatterns.computeIfAbsent(excludePattern, PathPatternMatcher::compile).matches(blobName));
     }
 
-    public int getFilesDownloaded() {
-        return filesDownloaded.get();
+    /**
+     * @return the path of the downloaded artifact relative to the download directory
+     */
+    private String destinationPath(String name) {
+        // That path contains all the directories and explicit virtual paths, so if the user wanted it flattened,
+        // keep just the file name
+        if (getServiceData().isFlattenDirectories()) {
+            return name.substring(name.lastIndexOf('/') + 1);
+        }
+        return name;
     }
 
-    public ExecutorService getExecutorService() {
-        return executorService;
+    public int getFilesDownloaded() {
+        return filesDownloaded.get();
     }
 }
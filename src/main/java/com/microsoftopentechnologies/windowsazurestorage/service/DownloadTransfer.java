@@ -0,0 +1,243 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.models.BlobDownloadHeaders;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.file.share.ShareFileClient;
+import com.azure.storage.file.share.models.ShareFileDownloadHeaders;
+import com.azure.storage.file.share.models.ShareFileProperties;
+import com.azure.storage.file.share.models.ShareFileRange;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Fetches a blob or a file of a file share into a local file on the agent, in ranges when it is large.
+ */
+abstract class DownloadTransfer {
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    protected final RangedDownload ranged;
+
+    DownloadTransfer(RangedDownload ranged) {
+        this.ranged = ranged;
+    }
+
+    /**
+     * Version of the source, as fetched or as read from its properties.
+     */
+    static final class Version {
+        private final long bytes;
+        private final String etag;
+        private final String contentMd5;
+
+        Version(long bytes, String etag, String contentMd5) {
+            this.bytes = bytes;
+            this.etag = etag;
+            this.contentMd5 = contentMd5;
+        }
+
+        /**
+         * @return the bytes downloaded, or the size of the source when read from its properties
+         */
+        long getBytes() {
+            return bytes;
+        }
+
+        String getEtag() {
+            return etag;
+        }
+
+        /**
+         * @return the base64 Content-MD5 of the source, {@code null} if it has none
+         */
+        String getContentMd5() {
+            return contentMd5;
+        }
+    }
+
+    /**
+     * Reads the properties of the source.
+     */
+    abstract Version properties();
+
+    /**
+     * Downloads the source into the target file, replacing it once the download is complete. The target may be a
+     * hard link to a read only copy of the download cache, so it is replaced by a new file rather than written
+     * through.
+     *
+     * @param listedSize  size of the source as listed, -1 if unknown
+     * @param target      the local file
+     * @param ifNoneMatch ETag of the local copy, to skip the download when the source still has it; {@code null}
+     *                    to download anyway
+     * @return the version downloaded, {@code null} when the source still has the given ETag
+     */
+    abstract Version fetch(long listedSize, File target, String ifNoneMatch) throws IOException, InterruptedException;
+
+    /**
+     * @return whether the source existed and was deleted
+     */
+    abstract boolean delete();
+
+    /**
+     * Writes a download into a file next to the target.
+     */
+    private interface PartialDownload {
+        /**
+         * @return the version written, {@code null} when nothing was downloaded
+         */
+        Version into(File partial) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Downloads into a partial file next to the target and moves it over the target once complete, so a failed
+     * download leaves the previous version of the target as it was.
+     */
+    private static Version replace(File target, PartialDownload download) throws IOException, InterruptedException {
+        Path partial = Paths.get(target.getPath() + PARTIAL_SUFFIX);
+        try {
+            Version version = download.into(partial.toFile());
+            if (version != null) {
+                Files.move(partial, target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+            return version;
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    static DownloadTransfer of(BlobClient blob, RangedDownload ranged) {
+        return new BlobTransfer(blob, ranged);
+    }
+
+    static DownloadTransfer of(ShareFileClient file, RangedDownload ranged) {
+        return new FileTransfer(file, ranged);
+    }
+
+    private static final class BlobTransfer extends DownloadTransfer {
+        private final BlobClient blob;
+
+        BlobTransfer(BlobClient blob, RangedDownload ranged) {
+            super(ranged);
+            this.blob = blob;
+        }
+
+        @Override
+        Version properties() {
+            BlobProperties properties = blob.getProperties();
+            return new Version(properties.getBlobSize(), properties.getETag(),
+                    DownloadIndex.encodeMd5(properties.getContentMd5()));
+        }
+
+        @Override
+        Version fetch(long listedSize, File target, String ifNoneMatch) throws IOException, InterruptedException {
+            if (ranged.isRanged(listedSize)) {
+                BlobProperties properties = blob.getProperties();
+                if (properties.getETag().equals(ifNoneMatch)) {
+                    return null;
+                }
+                // every range has to come from the same version of the blob
+                BlobRequestConditions sameVersion = new BlobRequestConditions().setIfMatch(properties.getETag());
+                return replace(target, partial -> new Version(ranged.download(properties.getBlobSize(),
+                        (offset, count, out) -> blob.downloadWithResponse(out, new BlobRange(offset, count),
+                                null, sameVersion, false, null, Context.NONE),
+                        partial), properties.getETag(), DownloadIndex.encodeMd5(properties.getContentMd5())));
+            }
+
+            BlobRequestConditions changed = ifNoneMatch == null ? null
+                    : new BlobRequestConditions().setIfNoneMatch(ifNoneMatch);
+            return replace(target, partial -> {
+                try (CountingOutputStream out = new CountingOutputStream(Files.newOutputStream(partial.toPath()))) {
+                    BlobDownloadHeaders headers = blob.downloadWithResponse(out, null, null, changed, false, null,
+                            Context.NONE).getDeserializedHeaders();
+                    return new Version(out.getByteCount(), headers.getETag(),
+                            DownloadIndex.encodeMd5(headers.getContentMd5()));
+                } catch (BlobStorageException e) {
+                    if (e.getStatusCode() != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        throw e;
+                    }
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        boolean delete() {
+            return blob.deleteIfExists();
+        }
+    }
+
+    private static final class FileTransfer extends DownloadTransfer {
+        private final ShareFileClient file;
+
+        FileTransfer(ShareFileClient file, RangedDownload ranged) {
+            super(ranged);
+            this.file = file;
+        }
+
+        @Override
+        Version properties() {
+            ShareFileProperties properties = file.getProperties();
+            return new Version(properties.getContentLength(), properties.getETag(),
+                    DownloadIndex.encodeMd5(properties.getContentMd5()));
+        }
+
+        @Override
+        Version fetch(long listedSize, File target, String ifNoneMatch) throws IOException, InterruptedException {
+            // Azure Files has no conditional download, the ETag is checked beforehand
+            if (ifNoneMatch != null || ranged.isRanged(listedSize)) {
+                ShareFileProperties properties = file.getProperties();
+                if (properties.getETag().equals(ifNoneMatch)) {
+                    return null;
+                }
+                if (ranged.isRanged(listedSize)) {
+                    return replace(target, partial -> new Version(ranged.download(properties.getContentLength(),
+                            (offset, count, out) -> file.downloadWithResponse(out,
+                                    new ShareFileRange(offset, offset + count - 1), false, null, Context.NONE),
+                            partial), properties.getETag(), DownloadIndex.encodeMd5(properties.getContentMd5())));
+                }
+            }
+
+            return replace(target, partial -> {
+                try (CountingOutputStream out = new CountingOutputStream(Files.newOutputStream(partial.toPath()))) {
+                    ShareFileDownloadHeaders headers = file.downloadWithResponse(out, null, false, null,
+                            Context.NONE).getDeserializedHeaders();
+                    return new Version(out.getByteCount(), headers.getETag(),
+                            DownloadIndex.encodeMd5(headers.getContentMd5()));
+                }
+            });
+        }
+
+        @Override
+        boolean delete() {
+            return file.deleteIfExists();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.util.Context;
+import com.azure.storage.file.share.ShareFileClient;
+import com.azure.storage.file.share.models.ShareFileHttpHeaders;
+import com.azure.storage.file.share.options.ShareFileUploadRangeOptions;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Uploads what is written to it as consecutive ranges of a file share file.
+ * <p>
+ * The content goes to a partial file next to the destination, named with {@link #PARTIAL_SUFFIX}, so the previous
+ * file stays as it was until the new one is complete. The SAS the agent writes with can create and write files but
+ * not delete or replace them, so the controller renames the committed partial file over the destination.
+ * <p>
+ * A file share file has a size fixed at creation, so the file is grown by doubling as the content comes in, then
+ * truncated to the size actually written and given its headers by {@link #commit()}. Ranges are written one after
+ * the other from a single buffer.
+ * <p>
+ * Closing the stream before committing leaves the partial file in the share, and the failure is reported with the
+ * file left.
+ */
+final class FileRangeOutputStream extends CommittableOutputStream {
+    /**
+     * Largest range accepted by Put Range.
+     */
+    static final int RANGE_SIZE = 4 * 1024 * 1024;
+    static final String PARTIAL_SUFFIX = ".partial";
+
+    private final ShareFileClient file;
+    private final ShareFileHttpHeaders headers;
+    private final byte[] buffer = new byte[RANGE_SIZE];
+    private int position;
+    private long offset;
+    private long size;
+    private boolean committed;
+    private boolean closed;
+
+    /**
+     * @param file    the partial file, replaced if it exists
+     * @param headers headers of the file once complete
+     */
+    FileRangeOutputStream(ShareFileClient file, ShareFileHttpHeaders headers) {
+        this.file = file;
+        this.headers = headers;
+        file.create(0);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        int from = off;
+        int remaining = len;
+        while (remaining > 0) {
+            int count = Math.min(remaining, RANGE_SIZE - position);
+            System.arraycopy(b, from, buffer, position, count);
+            position += count;
+            from += count;
+            remaining -= count;
+            if (position == RANGE_SIZE) {
+                writeRange();
+            }
+        }
+    }
+
+    @Override
+    void commit() {
+        writeRange();
+        file.setProperties(offset, headers, null, null);
+        size = offset;
+        committed = true;
+        close();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * @return whether the stream was closed without committing, leaving a partial file in the share
+     */
+    boolean isPartial() {
+        return closed && !committed;
+    }
+
+    private void writeRange() {
+        if (position == 0) {
+            return;
+        }
+        long end = offset + position;
+        if (end > size) {
+            size = Math.max(end, 2 * size);
+            // the headers are set once by commit
+            file.setProperties(size, null, null, null);
+        }
+        file.uploadRangeWithResponse(new ShareFileUploadRangeOptions(
+                new ByteArrayInputStream(buffer, 0, position), position).setOffset(offset), null, Context.NONE);
+        offset = end;
+        position = 0;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.microsoftopentechnologies.windowsazurestorage.AzureBlobProperties;
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Selects the files of a pattern on the agent and describes them in a single call: the workspace is scanned, files
+ * older than the start of the build can be left out, and each file comes back with its path relative to the
+ * workspace and, when asked, its detected content type. The controller then builds the upload without a call per
+ * file.
+ */
+final class ListUploadsOnAgent extends MasterToSlaveFileCallable<ListUploadsOnAgent.Listing> {
+    private static final long serialVersionUID = 1L;
+
+    private final String includes;
+    private final String excludes;
+    private final long modifiedSince;
+    private final boolean detectContentType;
+
+    /**
+     * @param includes          Ant patterns of the files to upload.
+     * @param excludes          Ant patterns of the files left out.
+     * @param modifiedSince     Files modified before this time are left out, {@link Long#MIN_VALUE} for none.
+     * @param detectContentType Whether the content type of each file is detected.
+     */
+    ListUploadsOnAgent(String includes, String excludes, long modifiedSince, boolean detectContentType) {
+        this.includes = includes;
+        this.excludes = excludes;
+        this.modifiedSince = modifiedSince;
+        this.detectContentType = detectContentType;
+    }
+
+    @Override
+    public Listing invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        FilePath[] paths = new FilePath(workspace).list(includes, excludes);
+        URI workspaceUri = workspace.toURI();
+        List<ListedFile> files = new ArrayList<>();
+        for (FilePath path : paths) {
+            File file = new File(path.getRemote());
+            if (modifiedSince != Long.MIN_VALUE && file.lastModified() < modifiedSince) {
+                continue;
+            }
+            String contentType = null;
+            if (detectContentType) {
+                try (InputStream stream = Files.newInputStream(file.toPath())) {
+                    contentType = AzureBlobProperties.detectContentType(file.getName(), stream);
+                }
+            }
+            files.add(new ListedFile(file.getPath(), workspaceUri.relativize(file.toURI()).getPath(),
+                    contentType));
+        }
+        return new Listing(paths.length, files);
+    }
+
+    /**
+     * Files matching a pattern.
+     */
+    static final class Listing implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int matched;
+        private final List<ListedFile> files;
+
+        Listing(int matched, List<ListedFile> files) {
+            this.matched = matched;
+            this.files = files;
+        }
+
+        /**
+         * @return the number of files matching the pattern, including the ones left out as not modified
+         */
+        int getMatched() {
+            return matched;
+        }
+
+        /**
+         * @return the files to upload
+         */
+        List<ListedFile> getFiles() {
+            return Collections.unmodifiableList(files);
+        }
+    }
+
+    /**
+     * A file to upload.
+     */
+    static final class ListedFile implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String remote;
+        private final String relativePath;
+        private final String contentType;
+
+        ListedFile(String remote, String relativePath, String contentType) {
+            this.remote = remote;
+            this.relativePath = relativePath;
+            this.contentType = contentType;
+        }
+
+        /**
+         * @return the absolute path of the file on the agent
+         */
+        String getRemote() {
+            return remote;
+        }
+
+        /**
+         * @return the path of the file relative to the workspace, with forward slashes
+         */
+        String getRelativePath() {
+            return relativePath;
+        }
+
+        /**
+         * @return the detected content type, {@code null} when not detected
+         */
+        String getContentType() {
+            return contentType;
+        }
+
+        FilePath toFilePath(FilePath workspace) {
+            return new FilePath(workspace.getChannel(), remote);
+        }
+    }
+}
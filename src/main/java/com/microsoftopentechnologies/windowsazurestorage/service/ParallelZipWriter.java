@@ -0,0 +1,207 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import hudson.util.IOUtils;
+import org.apache.commons.compress.archivers.zip.ParallelScatterZipCreator;
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.parallel.FileBasedScatterGatherBackingStore;
+import org.apache.commons.compress.parallel.ScatterGatherBackingStore;
+import org.apache.commons.compress.parallel.ScatterGatherBackingStoreSupplier;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes zip archives using every core of the machine.
+ * <p>
+ * Each entry is deflated on its own by a work stealing pool into a temporary scatter store, then the entries are
+ * copied to the output in the order they were found, so the archive is the same whatever the number of threads.
+ * Files which are already compressed are stored as they are, and entries or archives over 4 GiB use Zip64.
+ * The others are deflated at the level asked for, which goes up to 9 for zip.
+ * Directories get an entry of their own, as {@link hudson.FilePath#zip} gives them, so empty ones are kept.
+ * <p>
+ * The scatter store holds the whole compressed archive in temporary files until it is copied. They are created
+ * next to the archive, which is on a disk expected to hold it, and archives streamed straight to Azure use
+ * {@link SequentialZipWriter} instead.
+ */
+final class ParallelZipWriter implements ArchiveWriter {
+    /**
+     * Extensions of the files stored without compression, deflating them again costs time for no gain.
+     */
+    static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jar", "war", "ear", "hpi", "jpi", "apk", "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar",
+            "png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4", "woff", "woff2"));
+
+    private final int level;
+    private final int threads;
+    private final File scatterDir;
+
+    /**
+     * @param compressionLevel deflate level from 1 to 9, higher ones are capped to 9 and 0 is the default level
+     * @param threads          number of entries deflated at the same time
+     * @param scatterDir       directory of the temporary scatter files, {@code null} for the temporary directory of
+     *                         the JVM
+     */
+    ParallelZipWriter(int compressionLevel, int threads, File scatterDir) {
+        this.level = deflaterLevel(compressionLevel);
+        this.threads = Math.max(1, threads);
+        this.scatterDir = scatterDir;
+    }
+
+    @Override
+    public void write(File baseDir, DirScanner scanner, OutputStream out) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newWorkStealingPool(threads);
+        ScatterStores stores = new ScatterStores(scatterDir);
+        ParallelScatterZipCreator creator = new ParallelScatterZipCreator(executor, stores, level);
+        try {
+            scanner.scan(baseDir, new FileVisitor() {
+                @Override
+                public void visit(File f, String relativePath) throws IOException {
+                    if (f.isDirectory()) {
+                        creator.addArchiveEntry(newEntry(f, relativePath),
+                                () -> new ByteArrayInputStream(new byte[0]));
+                        return;
+                    }
+                    creator.addArchiveEntry(newEntry(f, relativePath), () -> {
+                        try {
+                            return Files.newInputStream(f.toPath());
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                }
+            });
+
+            try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(out)) {
+                zip.setUseZip64(Zip64Mode.AsNeeded);
+                creator.writeTo(zip);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to compress archive entry", e.getCause());
+            }
+        } finally {
+            // writeTo already did this unless the scan failed, the entries being deflated are then abandoned
+            executor.shutdownNow();
+            stores.close(executor);
+        }
+    }
+
+    /**
+     * Creates the entry of a file, stored as it is when it is already compressed, or of a directory.
+     */
+    static ZipArchiveEntry newEntry(File f, String relativePath) {
+        String name = relativePath.replace(File.separatorChar, '/');
+        ZipArchiveEntry entry = new ZipArchiveEntry(f.isDirectory() ? name + '/' : name);
+        entry.setMethod(f.isDirectory() || isCompressed(relativePath) ? ZipEntry.STORED : ZipEntry.DEFLATED);
+        entry.setTime(f.lastModified());
+        int mode = IOUtils.mode(f);
+        if (mode != -1) {
+            entry.setUnixMode(mode);
+        }
+        return entry;
+    }
+
+    /**
+     * Maps the compression level of the step to a {@link Deflater} level. The step allows the levels of Zstandard,
+     * which go beyond those of deflate.
+     */
+    static int deflaterLevel(int compressionLevel) {
+        if (compressionLevel <= 0) {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+        return Math.min(compressionLevel, Deflater.BEST_COMPRESSION);
+    }
+
+    static boolean isCompressed(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Creates the temporary scatter files of the deflating threads and deletes those still left once the archive
+     * is written or abandoned.
+     */
+    private static final class ScatterStores implements ScatterGatherBackingStoreSupplier {
+        private static final long TERMINATION_TIMEOUT_SECONDS = 60;
+
+        private final File directory;
+        private final List<ScatterGatherBackingStore> created = new ArrayList<>();
+
+        ScatterStores(File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public synchronized ScatterGatherBackingStore get() throws IOException {
+            ScatterGatherBackingStore store = new FileBasedScatterGatherBackingStore(
+                    File.createTempFile("azure-storage-scatter", ".tmp", directory));
+            created.add(store);
+            return store;
+        }
+
+        /**
+         * Waits for the threads to stop writing, then deletes the scatter files.
+         */
+        void close(ExecutorService executor) throws IOException {
+            try {
+                executor.awaitTermination(TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            List<ScatterGatherBackingStore> stores;
+            synchronized (this) {
+                stores = new ArrayList<>(created);
+                created.clear();
+            }
+            IOException failure = null;
+            for (ScatterGatherBackingStore store : stores) {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import org.springframework.util.AntPathMatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Comma separated Ant style patterns, compiled once per step and matched against many names, with the same
+ * results as {@link AntPathMatcher}.
+ * <p>
+ * Each pattern is split into its path segments up front: literal segments are compared in place, other segments
+ * are matched by a small {@code *}/{@code ?} automaton, and {@code **} matches any number of directories. Matching
+ * walks the name by index, so it neither splits the name nor allocates anything, and the first literal segment
+ * which differs rejects a name immediately. The rare patterns using {@code {...}} templates are left to a shared
+ * {@link AntPathMatcher}.
+ */
+final class PathPatternMatcher {
+    private static final String SEPARATOR = "/";
+    private static final char SEPARATOR_CHAR = '/';
+    private static final String ANY_DIRECTORIES = "**";
+    private static final AntPathMatcher TEMPLATE_MATCHER = new AntPathMatcher();
+
+    private final CompiledPattern[] patterns;
+
+    private PathPatternMatcher(CompiledPattern[] patterns) {
+        this.patterns = patterns;
+    }
+
+    /**
+     * @param patterns comma separated patterns, {@code null} for none
+     * @return the compiled patterns
+     */
+    static PathPatternMatcher compile(String patterns) {
+        if (patterns == null) {
+            return new PathPatternMatcher(new CompiledPattern[0]);
+        }
+        String[] split = patterns.split(StoragePluginService.FP_SEPARATOR);
+        CompiledPattern[] compiled = new CompiledPattern[split.length];
+        for (int i = 0; i < split.length; i++) {
+            compiled[i] = new CompiledPattern(split[i]);
+        }
+        return new PathPatternMatcher(compiled);
+    }
+
+    /**
+     * @param path a name
+     * @return whether any of the patterns matches the whole name
+     */
+    boolean matches(String path) {
+        for (CompiledPattern pattern : patterns) {
+            if (pattern.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param path name of a directory
+     * @return whether any of the patterns may match a name under the directory
+     */
+    boolean matchesStart(String path) {
+        for (CompiledPattern pattern : patterns) {
+            if (pattern.matchesStart(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class CompiledPattern {
+        private final String source;
+        private final boolean template;
+        private final boolean absolute;
+        private final boolean trailingSeparator;
+        private final boolean anyDirectories;
+        /**
+         * Segments of the pattern, {@code null} for {@code **}.
+         */
+        private final char[][] segments;
+        private final boolean[] literal;
+
+        CompiledPattern(String source) {
+            this.source = source;
+            this.template = source.indexOf('{') >= 0;
+            this.absolute = source.startsWith(SEPARATOR);
+            this.trailingSeparator = source.endsWith(SEPARATOR);
+
+            // like AntPathMatcher, empty segments are ignored
+            List<String> tokens = new ArrayList<>();
+            for (String token : source.split(SEPARATOR)) {
+                if (!token.isEmpty()) {
+                    tokens.add(token);
+                }
+            }
+            this.segments = new char[tokens.size()][];
+            this.literal = new boolean[tokens.size()];
+            boolean any = false;
+            for (int i = 0; i < tokens.size(); i++) {
+                String token = tokens.get(i);
+                if (ANY_DIRECTORIES.equals(token)) {
+                    any = true;
+                } else {
+                    segments[i] = token.toCharArray();
+                    literal[i] = token.indexOf('*') < 0 && token.indexOf('?') < 0;
+                }
+            }
+            this.anyDirectories = any;
+        }
+
+        boolean matches(String path) {
+            if (template) {
+                return TEMPLATE_MATCHER.match(source, path);
+            }
+            return path.startsWith(SEPARATOR) == absolute && matchFrom(path, 0, 0);
+        }
+
+        boolean matchesStart(String path) {
+            if (template) {
+                return TEMPLATE_MATCHER.matchStart(source, path);
+            }
+            if (path.startsWith(SEPARATOR) != absolute) {
+                return false;
+            }
+            int pos = 0;
+            for (int segment = 0; segment < segments.length; segment++) {
+                pos = skipSeparators(path, pos);
+                if (segments[segment] == null || pos == path.length()) {
+                    // either any directory may follow, or the name ends before the pattern does
+                    return true;
+                }
+                int end = segmentEnd(path, pos);
+                if (!matchSegment(segment, path, pos, end)) {
+                    return false;
+                }
+                pos = end;
+            }
+            return skipSeparators(path, pos) == path.length() && trailingSeparator == path.endsWith(SEPARATOR);
+        }
+
+        private boolean matchFrom(String path, int segment, int from) {
+            int pos = skipSeparators(path, from);
+            if (segment == segments.length) {
+                return pos == path.length() && (anyDirectories || trailingSeparator == path.endsWith(SEPARATOR));
+            }
+            if (segments[segment] == null) {
+                // ** stands for zero or more directories
+                while (true) {
+                    if (matchFrom(path, segment + 1, pos)) {
+                        return true;
+                    }
+                    if (pos == path.length()) {
+                        return false;
+                    }
+                    pos = skipSeparators(path, segmentEnd(path, pos));
+                }
+            }
+            if (pos == path.length()) {
+                // like AntPathMatcher, a trailing * also matches the directory itself
+                return !anyDirectories && segment == segments.length - 1 && isStar(segments[segment])
+                        && path.endsWith(SEPARATOR);
+            }
+            int end = segmentEnd(path, pos);
+            return matchSegment(segment, path, pos, end) && matchFrom(path, segment + 1, end);
+        }
+
+        private boolean matchSegment(int segment, String path, int start, int end) {
+            char[] pattern = segments[segment];
+            if (literal[segment]) {
+                if (pattern.length != end - start) {
+                    return false;
+                }
+                for (int i = 0; i < pattern.length; i++) {
+                    if (pattern[i] != path.charAt(start + i)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            return matchWildcards(pattern, path, start, end);
+        }
+
+        private static boolean isStar(char[] segment) {
+            return segment.length == 1 && segment[0] == '*';
+        }
+    }
+
+    /**
+     * Matches {@code *} (any characters) and {@code ?} (one character) against a segment of the path, backtracking
+     * only to the last {@code *}.
+     */
+    static boolean matchWildcards(char[] pattern, String path, int start, int end) {
+        int p = 0;
+        int i = start;
+        int star = -1;
+        int starMatch = start;
+        while (i < end) {
+            if (p < pattern.length && pattern[p] == '*') {
+                star = p++;
+                starMatch = i;
+            } else if (p < pattern.length && (pattern[p] == '?' || pattern[p] == path.charAt(i))) {
+                p++;
+                i++;
+            } else if (star >= 0) {
+                p = star + 1;
+                starMatch++;
+                i = starMatch;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length && pattern[p] == '*') {
+            p++;
+        }
+        return p == pattern.length;
+    }
+
+    private static int skipSeparators(String path, int from) {
+        int pos = from;
+        while (pos < path.length() && path.charAt(pos) == SEPARATOR_CHAR) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int segmentEnd(String path, int pos) {
+        int end = path.indexOf(SEPARATOR_CHAR, pos);
+        return end < 0 ? path.length() : end;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.exception.HttpResponseException;
+import com.azure.core.http.HttpResponse;
+import org.apache.http.HttpStatus;
+
+import java.io.IOException;
+
+/**
+ * Retries the transfer of a single range when it failed for a reason which may not last: an I/O error, a request
+ * timeout, throttling or a server error. Other failures, such as a missing file or a denied request, fail at once.
+ * Each attempt waits twice as long as the previous one, starting at {@value #BASE_DELAY_MILLIS} ms.
+ */
+final class RangeRetry {
+    static final long BASE_DELAY_MILLIS = 200;
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    /**
+     * One attempt at transferring the range.
+     */
+    interface Attempt {
+        void run() throws IOException;
+    }
+
+    /**
+     * @param maxAttempts number of attempts, the first one included
+     * @param attempt     transfers the range
+     */
+    static void run(int maxAttempts, Attempt attempt) throws IOException, InterruptedException {
+        long delay = BASE_DELAY_MILLIS;
+        for (int count = 1; ; count++) {
+            try {
+                attempt.run();
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (count >= maxAttempts || !isTransient(e)) {
+                    throw e;
+                }
+            }
+            Thread.sleep(delay);
+            delay *= 2;
+        }
+    }
+
+    /**
+     * Whether the failure may not happen again when the request is sent again.
+     */
+    static boolean isTransient(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof IOException) {
+                return true;
+            }
+            if (t instanceof HttpResponseException) {
+                HttpResponse response = ((HttpResponseException) t).getResponse();
+                if (response == null) {
+                    return false;
+                }
+                int status = response.getStatusCode();
+                return status >= HttpStatus.SC_INTERNAL_SERVER_ERROR || status == HttpStatus.SC_REQUEST_TIMEOUT
+                        || status == TOO_MANY_REQUESTS;
+            }
+        }
+        return false;
+    }
+
+    private RangeRetry() {
+        // hide constructor
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads a large blob or file as byte ranges fetched concurrently, each on its own connection, instead of a
+ * single stream. The destination is preallocated to its final size and every range is written in place with
+ * positional writes, so ranges may complete in any order. A range failing for a transient reason is fetched again
+ * on its own, with a growing delay and up to {@value #MAX_ATTEMPTS} times, without restarting the whole download.
+ * <p>
+ * The chunk size, the number of ranges in flight per object and the size below which a single stream is used are
+ * read from system properties of the agent JVM.
+ */
+final class RangedDownload {
+    static final long DEFAULT_CHUNK_SIZE = 8L * 1024 * 1024;
+    static final int DEFAULT_CONCURRENCY = 8;
+    static final long DEFAULT_THRESHOLD = 64L * 1024 * 1024;
+    static final int MAX_ATTEMPTS = 3;
+
+    private static final long MIB = 1024L * 1024;
+
+    private final long chunkSize;
+    private final int concurrency;
+    private final long threshold;
+
+    /**
+     * Fetches a byte range of the source.
+     */
+    interface RangeReader {
+        /**
+         * @param offset first byte of the range
+         * @param count  number of bytes of the range
+         * @param out    where the bytes of the range are written
+         */
+        void read(long offset, long count, OutputStream out) throws IOException;
+    }
+
+    /**
+     * @param chunkSize   size of the ranges
+     * @param concurrency ranges fetched at once for a single object
+     * @param threshold   objects up to this size are downloaded as a single stream
+     */
+    RangedDownload(long chunkSize, int concurrency, long threshold) {
+        this.chunkSize = Math.max(1, chunkSize);
+        this.concurrency = Math.max(1, concurrency);
+        this.threshold = threshold;
+    }
+
+    static RangedDownload fromSystemProperties() {
+        String prefix = RangedDownload.class.getName();
+        return new RangedDownload(
+                Long.getLong(prefix + ".chunkSizeMiB", DEFAULT_CHUNK_SIZE / MIB) * MIB,
+                Integer.getInteger(prefix + ".concurrency", DEFAULT_CONCURRENCY),
+                Long.getLong(prefix + ".thresholdMiB", DEFAULT_THRESHOLD / MIB) * MIB);
+    }
+
+    /**
+     * @param size size of the object
+     * @return whether the object is large enough to be downloaded in ranges
+     */
+    boolean isRanged(long size) {
+        return size > threshold && size > chunkSize && concurrency > 1;
+    }
+
+    /**
+     * Downloads the object into the destination file, replacing it. An existing destination is deleted first
+     * rather than written through, as it may be a hard link to a read only copy of the download cache.
+     *
+     * @param size        size of the object
+     * @param reader      fetches the ranges of the object
+     * @param destination the destination file
+     * @return the number of bytes downloaded
+     */
+    long download(long size, RangeReader reader, File destination) throws IOException, InterruptedException {
+        int ranges = (int) ((size + chunkSize - 1) / chunkSize);
+        Files.deleteIfExists(destination.toPath());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, ranges)));
+        try (RandomAccessFile file = new RandomAccessFile(destination, "rw")) {
+            file.setLength(size);
+            FileChannel channel = file.getChannel();
+            List<Future<Void>> futures = new ArrayList<>(ranges);
+            for (long offset = 0; offset < size; offset += chunkSize) {
+                final long rangeOffset = offset;
+                final long count = Math.min(chunkSize, size - offset);
+                futures.add(executor.submit(() -> {
+                    readRange(reader, channel, rangeOffset, count);
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            return size;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void readRange(RangeReader reader, FileChannel channel, long offset, long count)
+            throws IOException, InterruptedException {
+        RangeRetry.run(MAX_ATTEMPTS, () -> {
+            PositionalOutputStream out = new PositionalOutputStream(channel, offset);
+            reader.read(offset, count, out);
+            if (out.getPosition() - offset != count) {
+                throw new IOException(String.format("Range %d-%d returned %d bytes", offset,
+                        offset + count - 1, out.getPosition() - offset));
+            }
+        });
+    }
+
+    /**
+     * Writes to a file channel from a given position, without moving the position of the channel, so several
+     * streams can write to the same channel at once.
+     */
+    private static final class PositionalOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private long position;
+
+        PositionalOutputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        long getPosition() {
+            return position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Uploads a large file to a file share as byte ranges written concurrently, each on its own connection, instead of
+ * the sequential ranges of a single upload. A range failing for a transient reason is written again on its own,
+ * with a growing delay and up to {@value #MAX_ATTEMPTS} times, without restarting the whole upload. The MD5 of the
+ * file is computed while the ranges are in flight, so it can be set on the file once every range is written.
+ * <p>
+ * The range size and the size below which a file is uploaded by a single call are read from system properties of
+ * the agent JVM. The number of ranges in flight is given by the block budget of the step, shared with the other
+ * files being uploaded.
+ */
+final class RangedFileUpload {
+    /**
+     * Largest range Azure Files accepts in a single Put Range request.
+     */
+    static final long MAX_RANGE_SIZE = 4L * 1024 * 1024;
+    static final long DEFAULT_THRESHOLD = 16L * 1024 * 1024;
+    static final int MAX_ATTEMPTS = 3;
+
+    private static final long MIB = 1024L * 1024;
+
+    private final long rangeSize;
+    private final long threshold;
+
+    /**
+     * Writes a byte range of the file.
+     */
+    interface RangeWriter {
+        /**
+         * @param offset first byte of the range
+         * @param count  number of bytes of the range
+         * @param in     the bytes of the range
+         */
+        void write(long offset, long count, InputStream in) throws IOException;
+    }
+
+    /**
+     * @param rangeSize size of the ranges, at most {@link #MAX_RANGE_SIZE}
+     * @param threshold files up to this size are uploaded by a single call
+     */
+    RangedFileUpload(long rangeSize, long threshold) {
+        this.rangeSize = Math.min(MAX_RANGE_SIZE, Math.max(1, rangeSize));
+        this.threshold = threshold;
+    }
+
+    static RangedFileUpload fromSystemProperties() {
+        String prefix = RangedFileUpload.class.getName();
+        return new RangedFileUpload(
+                Long.getLong(prefix + ".rangeSizeKiB", MAX_RANGE_SIZE / 1024) * 1024,
+                Long.getLong(prefix + ".thresholdMiB", DEFAULT_THRESHOLD / MIB) * MIB);
+    }
+
+    long getRangeSize() {
+        return rangeSize;
+    }
+
+    /**
+     * @param size size of the file
+     * @return whether the file is large enough to be uploaded in ranges
+     */
+    boolean isRanged(long size) {
+        return size > threshold && size > rangeSize;
+    }
+
+    /**
+     * Uploads the file, whose remote copy must already be created with the size of the file.
+     *
+     * @param file        the local file
+     * @param concurrency ranges written at once
+     * @param writer      writes the ranges of the file
+     * @return the MD5 of the file
+     */
+    byte[] upload(File file, int concurrency, RangeWriter writer) throws IOException, InterruptedException {
+        long size = file.length();
+        int ranges = (int) ((size + rangeSize - 1) / rangeSize);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, ranges)));
+        try {
+            List<Future<Void>> futures = new ArrayList<>(ranges);
+            for (long offset = 0; offset < size; offset += rangeSize) {
+                final long rangeOffset = offset;
+                final long count = Math.min(rangeSize, size - offset);
+                futures.add(executor.submit(() -> {
+                    writeRange(writer, file, rangeOffset, count);
+                    return null;
+                }));
+            }
+            byte[] md5 = md5(file);
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            return md5;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void writeRange(RangeWriter writer, File file, long offset, long count)
+            throws IOException, InterruptedException {
+        RangeRetry.run(MAX_ATTEMPTS, () -> {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                channel.position(offset);
+                writer.write(offset, count, new BoundedInputStream(Channels.newInputStream(channel), count));
+            }
+        });
+    }
+
+    static byte[] md5(File file) throws IOException {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            return DigestUtils.md5(in);
+        }
+    }
+}
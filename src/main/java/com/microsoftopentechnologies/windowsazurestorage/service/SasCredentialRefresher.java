@@ -0,0 +1,160 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.credential.AzureSasCredential;
+import com.azure.core.http.HttpPipelineCallContext;
+import com.azure.core.http.HttpPipelineNextPolicy;
+import com.azure.core.http.HttpPipelineNextSyncPolicy;
+import com.azure.core.http.HttpPipelinePosition;
+import com.azure.core.http.HttpResponse;
+import com.azure.core.http.policy.HttpPipelinePolicy;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.SasToken;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the SAS credential used on the agent valid for the whole transfer. Before each request it checks whether
+ * the token is about to expire and, if so, asks the controller for a new one and updates the credential in place,
+ * so clients built with it pick the new token up on their next request.
+ * <p>
+ * Clients are shared between steps by {@link AgentClientRegistry}, so a later step can {@link #offer} its own token
+ * and provider to a refresher created by an earlier one. Every transfer holding the client keeps its provider until
+ * it {@link #release releases} it; a refresh asks the latest holder and falls back to the others when its step can
+ * no longer answer.
+ */
+final class SasCredentialRefresher implements HttpPipelinePolicy {
+    private static final long REFRESH_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final AzureSasCredential credential;
+    // providers of the transfers holding the client, compared by identity, latest last
+    private final List<SasTokenProvider> providers = new ArrayList<>();
+    private volatile boolean held = true;
+    private volatile long expiresOn;
+
+    SasCredentialRefresher(SasToken token, SasTokenProvider provider) {
+        this.credential = new AzureSasCredential(token.getToken());
+        this.providers.add(provider);
+        this.expiresOn = token.getExpiresOn();
+    }
+
+    AzureSasCredential getCredential() {
+        return credential;
+    }
+
+    /**
+     * Hands over the token and provider of a new transfer with the same scope and permissions.
+     */
+    synchronized void offer(SasToken token, SasTokenProvider provider) {
+        if (token.getExpiresOn() > expiresOn) {
+            credential.update(token.getToken());
+            expiresOn = token.getExpiresOn();
+        }
+        if (indexOf(provider) < 0) {
+            providers.add(provider);
+        }
+        held = true;
+    }
+
+    /**
+     * Forgets the provider of a transfer which no longer uses the client.
+     */
+    synchronized void release(SasTokenProvider provider) {
+        int index = indexOf(provider);
+        if (index >= 0) {
+            providers.remove(index);
+        }
+        held = !providers.isEmpty();
+    }
+
+    private int indexOf(SasTokenProvider provider) {
+        for (int i = 0; i < providers.size(); i++) {
+            if (providers.get(i) == provider) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean needsRefresh() {
+        return held && System.currentTimeMillis() + REFRESH_MARGIN_MILLIS >= expiresOn;
+    }
+
+    void ensureFresh() throws IOException {
+        if (!needsRefresh()) {
+            return;
+        }
+        synchronized (this) {
+            if (!needsRefresh()) {
+                return;
+            }
+            IOException failure = null;
+            for (int i = providers.size() - 1; i >= 0; i--) {
+                try {
+                    SasToken token = providers.get(i).refresh();
+                    credential.update(token.getToken());
+                    expiresOn = token.getExpiresOn();
+                    return;
+                } catch (IOException e) {
+                    // the step of this holder ended or its channel is gone, the others may still answer
+                    providers.remove(i);
+                    held = !providers.isEmpty();
+                    if (failure != null) {
+                        e.addSuppressed(failure);
+                    }
+                    failure = e;
+                }
+            }
+            throw failure;
+        }
+    }
+
+    private void ensureFreshUnchecked() {
+        try {
+            ensureFresh();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Mono<HttpResponse> process(HttpPipelineCallContext context, HttpPipelineNextPolicy next) {
+        if (!needsRefresh()) {
+            return next.process();
+        }
+        // the refresh is a blocking remote call, keep it off the I/O threads
+        return Mono.fromRunnable(this::ensureFreshUnchecked)
+                .subscribeOn(Schedulers.boundedElastic())
+                .then(Mono.defer(next::process));
+    }
+
+    @Override
+    public HttpResponse processSync(HttpPipelineCallContext context, HttpPipelineNextSyncPolicy next) {
+        ensureFreshUnchecked();
+        return next.processSync();
+    }
+
+    @Override
+    public HttpPipelinePosition getPipelinePosition() {
+        return HttpPipelinePosition.PER_CALL;
+    }
+}
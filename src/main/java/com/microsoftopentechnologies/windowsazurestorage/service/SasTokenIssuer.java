@@ -0,0 +1,164 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.storage.blob.sas.BlobContainerSasPermission;
+import com.azure.storage.file.share.sas.ShareSasPermission;
+import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInfo;
+import com.microsoftopentechnologies.windowsazurestorage.helper.AzureUtils;
+import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.SasToken;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Signs container (or share) scoped SAS tokens on the controller. Signing is done locally with the account key,
+ * so issuing a token never needs a request to the storage service. Tokens carry only the permissions the
+ * transfers of the step need: create and write for uploads, read (and delete when the artifacts are removed after
+ * download) for downloads.
+ */
+final class SasTokenIssuer implements SasTokenProvider {
+    private static final Logger LOGGER = Logger.getLogger(SasTokenIssuer.class.getName());
+    private static final int SAS_LIFETIME_HOURS = 1;
+    private static final long REUSE_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private final StorageAccountInfo storageAccount;
+    private final String storageType;
+    private final String containerOrShareName;
+    private final String permissions;
+    private final List<ExportedProvider> exports = new ArrayList<>();
+    private SasToken current;
+
+    private SasTokenIssuer(StorageAccountInfo storageAccount, String storageType, String containerOrShareName,
+                           String permissions) {
+        this.storageAccount = storageAccount;
+        this.storageType = storageType;
+        this.containerOrShareName = containerOrShareName;
+        this.permissions = permissions;
+    }
+
+    static SasTokenIssuer forWrite(StorageAccountInfo storageAccount, String storageType,
+                                   String containerOrShareName) {
+        return new SasTokenIssuer(storageAccount, storageType, containerOrShareName, "cw");
+    }
+
+    /**
+     * @param delete whether the token also allows deleting, for downloads removing the artifacts afterwards
+     */
+    static SasTokenIssuer forRead(StorageAccountInfo storageAccount, String storageType,
+                                  String containerOrShareName, boolean delete) {
+        return new SasTokenIssuer(storageAccount, storageType, containerOrShareName, delete ? "rd" : "r");
+    }
+
+    String getStorageType() {
+        return storageType;
+    }
+
+    String getContainerOrShareName() {
+        return containerOrShareName;
+    }
+
+    /**
+     * Signs a new token valid for {@value #SAS_LIFETIME_HOURS} hour(s).
+     */
+    SasToken issue() throws IOException {
+        OffsetDateTime expiresOn = OffsetDateTime.now().plusHours(SAS_LIFETIME_HOURS);
+        String token;
+        if (storageType.equalsIgnoreCase(Constants.BLOB_STORAGE)) {
+            BlobContainerSasPermission permission = BlobContainerSasPermission.parse(permissions);
+            token = AzureUtils.generateContainerSASToken(storageAccount, containerOrShareName, permission,
+                    expiresOn);
+        } else if (storageType.equalsIgnoreCase(Constants.FILE_STORAGE)) {
+            ShareSasPermission permission = ShareSasPermission.parse(permissions);
+            try {
+                token = AzureUtils.generateShareSASToken(storageAccount, containerOrShareName, permission,
+                        expiresOn);
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        } else {
+            throw new IllegalStateException("Unknown storage type. Please re-configure your job and build again.");
+        }
+        return new SasToken(token, expiresOn.toInstant().toEpochMilli());
+    }
+
+    /**
+     * Returns the token shared by all transfers of the current step, signing a new one only when the previous
+     * token is close to its expiry.
+     */
+    synchronized SasToken current() throws IOException {
+        if (current == null || current.getExpiresOn() < System.currentTimeMillis() + REUSE_MARGIN_MILLIS) {
+            current = issue();
+        }
+        return current;
+    }
+
+    @Override
+    public synchronized SasToken refresh() throws IOException {
+        LOGGER.log(Level.FINE, "Refreshing SAS token for {0}", containerOrShareName);
+        current = issue();
+        return current;
+    }
+
+    /**
+     * Makes this issuer callable from the other side of the given channel, until {@link #revoke()} is called.
+     *
+     * @param channel channel to the agent which runs the transfer
+     * @return a provider which can be shipped to the agent
+     */
+    synchronized SasTokenProvider export(VirtualChannel channel) {
+        ExportedProvider exported = new ExportedProvider(this);
+        exports.add(exported);
+        return channel.export(SasTokenProvider.class, exported);
+    }
+
+    /**
+     * Stops issuing tokens to the agents once the step has ended. The exported providers let go of this issuer,
+     * and with it of the account key, and answer with an error, so agents fall back to the provider of a step
+     * still running. Remoting drops them from its export table once the agents released them.
+     */
+    synchronized void revoke() {
+        for (ExportedProvider exported : exports) {
+            exported.issuer = null;
+        }
+        exports.clear();
+    }
+
+    private static final class ExportedProvider implements SasTokenProvider {
+        private volatile SasTokenIssuer issuer;
+
+        ExportedProvider(SasTokenIssuer issuer) {
+            this.issuer = issuer;
+        }
+
+        @Override
+        public SasToken refresh() throws IOException {
+            SasTokenIssuer target = issuer;
+            if (target == null) {
+                throw new IOException("The step which issued this SAS has ended");
+            }
+            return target.refresh();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.microsoftopentechnologies.windowsazurestorage.service.model.SasToken;
+
+import java.io.IOException;
+
+/**
+ * Issues SAS tokens to the agents. The implementation lives on the Jenkins controller, which holds the
+ * storage account key, and is exported to the agents over the remoting channel so that a long running
+ * transfer can ask for a new token before the current one expires.
+ */
+public interface SasTokenProvider {
+    /**
+     * Signs a new token with the same scope and permissions as the previous one.
+     *
+     * @return the new token
+     * @throws IOException if the token can not be signed or the channel is closed
+     */
+    SasToken refresh() throws IOException;
+}
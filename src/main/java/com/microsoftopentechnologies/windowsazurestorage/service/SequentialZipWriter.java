@@ -0,0 +1,78 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes zip archives one entry after the other, straight to the output. It is slower than
+ * {@link ParallelZipWriter} but needs neither temporary files nor memory growing with the archive, which is what an
+ * archive streamed to Azure from an agent with a small disk needs.
+ * <p>
+ * The output can not be rewound to write the CRC of a stored entry before its data, so the files which are already
+ * compressed are deflated without compression instead, which costs about as little.
+ */
+final class SequentialZipWriter implements ArchiveWriter {
+    private final int level;
+
+    /**
+     * @param compressionLevel deflate level from 1 to 9, higher ones are capped to 9 and 0 is the default level
+     */
+    SequentialZipWriter(int compressionLevel) {
+        this.level = ParallelZipWriter.deflaterLevel(compressionLevel);
+    }
+
+    @Override
+    public void write(File baseDir, DirScanner scanner, OutputStream out) throws IOException {
+        try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(out)) {
+            zip.setUseZip64(Zip64Mode.AsNeeded);
+            scanner.scan(baseDir, new FileVisitor() {
+                @Override
+                public void visit(File f, String relativePath) throws IOException {
+                    ZipArchiveEntry entry = ParallelZipWriter.newEntry(f, relativePath);
+                    if (f.isDirectory()) {
+                        // a stored entry needs its size and CRC up front, which are known for an empty one
+                        entry.setSize(0);
+                        entry.setCrc(0);
+                        zip.putArchiveEntry(entry);
+                        zip.closeArchiveEntry();
+                        return;
+                    }
+                    zip.setLevel(entry.getMethod() == ZipEntry.STORED
+                            ? Deflater.NO_COMPRESSION : level);
+                    entry.setMethod(ZipEntry.DEFLATED);
+                    // a known size lets the entry use Zip64 when it needs it
+                    entry.setSize(f.length());
+                    zip.putArchiveEntry(entry);
+                    Files.copy(f.toPath(), zip);
+                    zip.closeArchiveEntry();
+                }
+            });
+            zip.finish();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.storage.file.share.ShareClient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Creates the directories an upload to a file share needs. Azure Files has no implicit directories, so the parents
+ * of every file have to exist before the file is created.
+ * <p>
+ * The directories of the whole upload are computed once and created level by level, the directories of a level in
+ * parallel, so each directory costs a single request whatever the number of files it holds. Instances remember
+ * the directories reported {@link #created(Collection) created}, so the uploads of one step never create a
+ * directory twice; a directory whose creation failed is planned again by the next call.
+ */
+final class ShareDirectories {
+    static final int DEFAULT_PARALLELISM = 16;
+
+    private final Set<String> created = new HashSet<>();
+
+    /**
+     * Returns the directories holding the given files which are not known to exist yet, every parent before its
+     * children.
+     *
+     * @param filePaths paths of the files in the share
+     * @return the directories to create, ordered by depth
+     */
+    synchronized List<String> plan(Collection<String> filePaths) {
+        TreeMap<Integer, List<String>> levels = new TreeMap<>();
+        Set<String> planned = new HashSet<>();
+        for (String filePath : filePaths) {
+            int end = filePath.indexOf('/');
+            int depth = 0;
+            while (end > 0) {
+                String directory = filePath.substring(0, end);
+                depth++;
+                if (!created.contains(directory) && planned.add(directory)) {
+                    levels.computeIfAbsent(depth, d -> new ArrayList<>()).add(directory);
+                }
+                end = filePath.indexOf('/', end + 1);
+            }
+        }
+        List<String> directories = new ArrayList<>();
+        levels.values().forEach(directories::addAll);
+        return directories;
+    }
+
+    /**
+     * Records directories which exist, once their creation succeeded.
+     *
+     * @param directories directories returned by {@link #plan(Collection)} and created
+     */
+    synchronized void created(Collection<String> directories) {
+        created.addAll(directories);
+    }
+
+    /**
+     * Creates the directories, tolerating the ones which already exist. A level is started only once the level
+     * above is complete.
+     *
+     * @param share          the share
+     * @param directories    the directories to create, ordered by depth as returned by {@link #plan(Collection)}
+     * @param maxConcurrency ceiling of the parallel transfers of the step, 0 for none
+     */
+    static void create(ShareClient share, List<String> directories, int maxConcurrency) throws IOException {
+        if (directories.isEmpty()) {
+            return;
+        }
+        int parallelism = maxConcurrency > 0 ? Math.min(maxConcurrency, DEFAULT_PARALLELISM) : DEFAULT_PARALLELISM;
+        ExecutorService executorService = Executors.newFixedThreadPool(parallelism);
+        try {
+            int start = 0;
+            while (start < directories.size()) {
+                int end = start;
+                int depth = depth(directories.get(start));
+                List<Future<?>> level = new ArrayList<>();
+                while (end < directories.size() && depth(directories.get(end)) == depth) {
+                    String directory = directories.get(end++);
+                    level.add(executorService.submit(() -> share.getDirectoryClient(directory).createIfNotExists()));
+                }
+                for (Future<?> future : level) {
+                    future.get();
+                }
+                start = end;
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to create directories in file share " + share.getShareName(),
+                    e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private static int depth(String directory) {
+        int depth = 1;
+        for (int i = directory.indexOf('/'); i >= 0; i = directory.indexOf('/', i + 1)) {
+            depth++;
+        }
+        return depth;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.storage.file.share.ShareDirectoryClient;
+import com.azure.storage.file.share.models.ShareFileItem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walks the directory tree of a file share with several directory listings in flight. Every directory is a task
+ * of a bounded work-stealing pool, so a wide tree is listed in parallel and an idle thread takes over the
+ * directories queued by a busy one. Directories the visitor rejects are not listed at all, and files are handed
+ * to the visitor as soon as their directory is listed.
+ */
+final class ShareTraversal {
+    static final int DEFAULT_PARALLELISM = 16;
+
+    private final int parallelism;
+
+    /**
+     * Callbacks of a traversal, called concurrently from the threads of the traversal.
+     */
+    interface Visitor {
+        /**
+         * @param path path of the directory in the share, ending with a slash
+         * @return whether to list the directory
+         */
+        boolean enterDirectory(String path);
+
+        /**
+         * @param directory the directory holding the file
+         * @param file      the file as listed
+         * @param path      path of the file in the share
+         */
+        void visitFile(ShareDirectoryClient directory, ShareFileItem file, String path);
+
+        /**
+         * Called once the whole tree under a directory was walked, so directories are left bottom-up.
+         *
+         * @param directory the directory
+         */
+        default void leaveDirectory(ShareDirectoryClient directory) {
+        }
+    }
+
+    /**
+     * @param maxConcurrency ceiling of the parallel transfers of the step, 0 for none
+     */
+    ShareTraversal(int maxConcurrency) {
+        this.parallelism = maxConcurrency > 0 ? Math.min(maxConcurrency, DEFAULT_PARALLELISM) : DEFAULT_PARALLELISM;
+    }
+
+    /**
+     * Walks the tree under a directory and waits for the whole tree to be listed.
+     *
+     * @param start      the directory to start from
+     * @param namePrefix only the entries of the start directory whose name starts with it are visited, {@code null}
+     *                   for all of them
+     * @param visitor    called for the directories and files found
+     */
+    void walk(ShareDirectoryClient start, String namePrefix, Visitor visitor) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ListDirectory(start, namePrefix, visitor));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    static String childPath(String directoryPath, String name) {
+        return directoryPath.isEmpty() ? name : directoryPath + "/" + name;
+    }
+
+    private static final class ListDirectory extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final transient ShareDirectoryClient directory;
+        private final String namePrefix;
+        private final transient Visitor visitor;
+
+        ListDirectory(ShareDirectoryClient directory, String namePrefix, Visitor visitor) {
+            this.directory = directory;
+            this.namePrefix = namePrefix;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            List<ListDirectory> subdirectories = new ArrayList<>();
+            for (ShareFileItem item : directory.listFilesAndDirectories(namePrefix, null, null, null)) {
+                String path = childPath(directory.getDirectoryPath(), item.getName());
+                if (!item.isDirectory()) {
+                    visitor.visitFile(directory, item, path);
+                } else if (visitor.enterDirectory(path + "/")) {
+                    ListDirectory subdirectory = new ListDirectory(directory.getSubdirectoryClient(item.getName()),
+                            null, visitor);
+                    // queued for any idle thread while this one goes on with the listing
+                    subdirectory.fork();
+                    subdirectories.add(subdirectory);
+                }
+            }
+            for (ListDirectory subdirectory : subdirectories) {
+                subdirectory.join();
+            }
+            visitor.leaveDirectory(directory);
+        }
+    }
+}
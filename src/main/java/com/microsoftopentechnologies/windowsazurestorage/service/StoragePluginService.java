@@ -15,12 +15,19 @@
 
 package com.microsoftopentechnologies.windowsazurestorage.service;
 
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.microsoftopentechnologies.windowsazurestorage.Messages;
+import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInfo;
 import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.helper.AzureStorageAccount;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.ServiceData;
 import hudson.model.Result;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 
 import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class StoragePluginService<T extends ServiceData> {
 
@@ -31,6 +38,7 @@ public abstract class StoragePluginService<T extends ServiceData> {
     protected static final String FP_SEPARATOR = ",";
 
     private T serviceData;
+    private final Map<String, StorageAccountInfo> recordedAccounts = new ConcurrentHashMap<>();
 
     protected StoragePluginService(T serviceData) {
         this.serviceData = serviceData;
@@ -55,6 +63,31 @@ public abstract class StoragePluginService<T extends ServiceData> {
                 + " (HH:mm:ss.S)";
     }
 
+    /**
+     * Returns the storage account an artifact was uploaded to. Credentials are looked up in the context of the job
+     * running the step, so it never reads with credentials it could not use itself, and their use is tracked
+     * against the run. Artifacts recorded without credentials use the account of the step, as do those whose
+     * credentials are out of reach, with a warning.
+     *
+     * @param credentialsId credentials recorded with the artifact
+     * @return the account to read the artifact from
+     */
+    protected StorageAccountInfo getRecordedAccount(String credentialsId) {
+        if (StringUtils.isBlank(credentialsId)) {
+            return serviceData.getStorageAccountInfo();
+        }
+        return recordedAccounts.computeIfAbsent(credentialsId, id -> {
+            AzureStorageAccount credentials = AzureStorageAccount.getStorageAccount(serviceData.getRun().getParent(),
+                    id);
+            if (credentials == null) {
+                println(Messages.StoragePluginService_credentials_unavailable(id));
+                return serviceData.getStorageAccountInfo();
+            }
+            CredentialsProvider.track(serviceData.getRun(), credentials);
+            return AzureStorageAccount.convertToStorageAccountInfo(credentials.getStorageCred());
+        });
+    }
+
     public T getServiceData() {
         return serviceData;
     }
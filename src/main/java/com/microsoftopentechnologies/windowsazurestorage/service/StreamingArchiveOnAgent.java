@@ -0,0 +1,124 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.storage.blob.BlobUrlParts;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+import com.azure.storage.file.share.ShareFileClient;
+import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ArchiveFormat;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.SasToken;
+import hudson.ProxyConfiguration;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.http.HttpStatus;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Archives the workspace files on the agent straight into the archive blob or file, without writing the archive
+ * to the agent disk first. An archive file is written as a partial file the caller renames once it is complete.
+ */
+final class StreamingArchiveOnAgent extends MasterToSlaveFileCallable<UploadService.UploadResult> {
+    private static final long serialVersionUID = 4106392367015872943L;
+    private static final int BLOCKS_IN_FLIGHT = 4;
+
+    private final ProxyConfiguration proxy;
+    private final SasToken sasToken;
+    private final SasTokenProvider sasTokenProvider;
+    private final ArchiveFormat format;
+    private final int compressionLevel;
+    private final String includes;
+    private final String excludes;
+    private final UploadService.UploadObject archive;
+
+    /**
+     * @param proxy            Jenkins proxy configuration.
+     * @param sasToken         Container or share scoped SAS.
+     * @param sasTokenProvider Provider used to renew the SAS before it expires.
+     * @param format           Format of the archive.
+     * @param compressionLevel Compression level, 0 for the default of the format.
+     * @param includes         Ant patterns of the files to archive.
+     * @param excludes         Ant patterns of the files left out of the archive.
+     * @param archive          The blob or file to write, its source is ignored.
+     */
+    StreamingArchiveOnAgent(ProxyConfiguration proxy, SasToken sasToken, SasTokenProvider sasTokenProvider,
+                            ArchiveFormat format, int compressionLevel, String includes, String excludes,
+                            UploadService.UploadObject archive) {
+        this.proxy = proxy;
+        this.sasToken = sasToken;
+        this.sasTokenProvider = sasTokenProvider;
+        this.format = format;
+        this.compressionLevel = compressionLevel;
+        this.includes = includes;
+        this.excludes = excludes;
+        this.archive = archive;
+    }
+
+    @Override
+    public UploadService.UploadResult invoke(File workspace, VirtualChannel channel)
+            throws IOException, InterruptedException {
+        try {
+            return stream(workspace);
+        } finally {
+            AgentClientRegistry.release(sasTokenProvider);
+        }
+    }
+
+    private UploadService.UploadResult stream(File workspace) throws IOException, InterruptedException {
+        long startTime = System.currentTimeMillis();
+        long bytes;
+        CommittableOutputStream target = open();
+        try (CommittableOutputStream committable = target;
+             CountingOutputStream out = new CountingOutputStream(CloseShieldOutputStream.wrap(committable))) {
+            ArchiveWriter.createStreaming(format, compressionLevel).write(workspace,
+                    new DirScanner.Glob(includes, excludes), out);
+            bytes = out.getByteCount();
+            committable.commit();
+        } catch (IOException | RuntimeException e) {
+            if (target.isPartial()) {
+                throw new IOException("Failed to stream the archive, the partial file " + archive.getUrl()
+                        + FileRangeOutputStream.PARTIAL_SUFFIX + " is left in the file share", e);
+            }
+            throw e;
+        }
+        return new UploadService.UploadResult(HttpStatus.SC_CREATED, null, archive.getName(), archive.getUrl(),
+                bytes, archive.getStorageType(), startTime, System.currentTimeMillis());
+    }
+
+    private CommittableOutputStream open() throws IOException {
+        if (Constants.FILE_STORAGE.equals(archive.getStorageType())) {
+            ShareFileClient file = AgentClientRegistry.getShareServiceClient(proxy, archive.getUrl(),
+                            archive.getContainerOrShareName(), sasToken, sasTokenProvider)
+                    .getShareClient(archive.getContainerOrShareName())
+                    .getFileClient(archive.getName() + FileRangeOutputStream.PARTIAL_SUFFIX);
+            return new FileRangeOutputStream(file, UploadService.UploadThread.getShareFileHttpHeaders(archive));
+        }
+        String containerName = BlobUrlParts.parse(archive.getUrl()).getBlobContainerName();
+        BlockBlobClient blob = AgentClientRegistry.getBlobServiceClient(proxy, archive.getUrl(), containerName,
+                        sasToken, sasTokenProvider)
+                .getBlobContainerClient(containerName)
+                .getBlobClient(archive.getName())
+                .getBlockBlobClient();
+        return new BlockStagingOutputStream(blob, UploadService.UploadThread.getBlobHttpHeaders(archive),
+                archive.getMetadata(), (int) BlockBudget.BLOCK_SIZE, BLOCKS_IN_FLIGHT);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+/**
+ * Writes {@code tar.zst} archives. The tar entries are streamed one after the other into a zstd stream compressed
+ * by as many worker threads as there are cores, which is several times faster than deflate for a better ratio on
+ * typical build output.
+ */
+final class TarZstdWriter implements ArchiveWriter {
+    /**
+     * Level used by the zstd command line by default.
+     */
+    static final int DEFAULT_LEVEL = 3;
+    static final int MAX_LEVEL = 19;
+
+    private final int level;
+    private final int workers;
+
+    /**
+     * @param level   zstd compression level, 0 for {@value #DEFAULT_LEVEL}
+     * @param workers number of compression threads
+     */
+    TarZstdWriter(int level, int workers) {
+        this.level = level > 0 ? Math.min(level, MAX_LEVEL) : DEFAULT_LEVEL;
+        this.workers = Math.max(1, workers);
+    }
+
+    @Override
+    public void write(File baseDir, DirScanner scanner, OutputStream out) throws IOException {
+        ZstdOutputStream zstd = new ZstdOutputStream(out);
+        zstd.setLevel(level);
+        zstd.setWorkers(workers);
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(zstd)) {
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+            scanner.scan(baseDir, new FileVisitor() {
+                @Override
+                public void visit(File f, String relativePath) throws IOException {
+                    tar.putArchiveEntry(new TarArchiveEntry(f, relativePath.replace(File.separatorChar, '/')));
+                    if (!f.isDirectory()) {
+                        Files.copy(f.toPath(), tar);
+                    }
+                    tar.closeArchiveEntry();
+                }
+            });
+            tar.finish();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.exception.HttpResponseException;
+import com.azure.core.http.HttpResponse;
+import org.apache.http.HttpStatus;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Decides how many transfers of a job may run at the same time.
+ * <p>
+ * The limit starts low and grows by one transfer for every window in which the throughput improved. It is halved
+ * when the storage service answers with {@code 503 ServerBusy} or {@code 500 OperationTimedOut}, and reduced by a
+ * quarter when the latency per MiB rises well above the best one seen without any throughput gain. The latency is
+ * measured per MiB so that a window of large files does not look slower than a window of small ones; a transfer
+ * counts for at least one MiB, as a small file costs a request whatever its size. The limit never exceeds
+ * the ceiling of the job, and all the jobs of a JVM together never run more than
+ * {@link #GLOBAL_MAX_CONCURRENCY} transfers.
+ */
+final class TransferConcurrencyController {
+    static final int GLOBAL_MAX_CONCURRENCY = Math.max(1, Integer.getInteger(
+            TransferConcurrencyController.class.getName() + ".globalMaxConcurrency", 64));
+
+    private static final Semaphore GLOBAL_PERMITS = new Semaphore(GLOBAL_MAX_CONCURRENCY, true);
+    private static final String OPERATION_TIMED_OUT = "OperationTimedOut";
+    private static final String ERROR_CODE_HEADER = "x-ms-error-code";
+    private static final int INITIAL_CONCURRENCY = 8;
+    private static final int MIN_WINDOW_SAMPLES = 4;
+    private static final double THROTTLED_FACTOR = 0.5;
+    private static final double SLOW_DOWN_FACTOR = 0.75;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double MIN_THROUGHPUT_GAIN = 1.05;
+    private static final long MIN_SAMPLE_BYTES = 1024L * 1024;
+
+    private final int ceiling;
+    private final LongSupplier clock;
+
+    private int limit;
+    private int inFlight;
+
+    private long windowStart;
+    private int windowSamples;
+    private long windowBytes;
+    private long windowWeightedBytes;
+    private long windowLatency;
+    private boolean windowThrottled;
+    private double lastThroughput;
+    private double bestLatency = Double.MAX_VALUE;
+
+    /**
+     * @param maxConcurrency ceiling of the job, or 0 to only use the global one
+     */
+    TransferConcurrencyController(int maxConcurrency) {
+        this(maxConcurrency, System::currentTimeMillis);
+    }
+
+    TransferConcurrencyController(int maxConcurrency, LongSupplier clock) {
+        this.ceiling = maxConcurrency > 0 ? Math.min(maxConcurrency, GLOBAL_MAX_CONCURRENCY) : GLOBAL_MAX_CONCURRENCY;
+        this.clock = clock;
+        this.limit = Math.min(INITIAL_CONCURRENCY, ceiling);
+        this.windowStart = clock.getAsLong();
+    }
+
+    /**
+     * The most transfers this controller will ever allow at once, used to size the thread pools.
+     */
+    int getCeiling() {
+        return ceiling;
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Runs a transfer once the current limit allows it and feeds its outcome back into the limit.
+     *
+     * @param transfer   the upload or download
+     * @param bytesMoved tells the number of bytes moved from the result of the transfer
+     * @param <T>        result type of the transfer
+     * @return the result of the transfer
+     */
+    <T> T run(Callable<T> transfer, ToLongFunction<? super T> bytesMoved) throws Exception {
+        acquire();
+        long start = clock.getAsLong();
+        long bytes = -1;
+        Exception failure = null;
+        try {
+            T result = transfer.call();
+            bytes = bytesMoved.applyAsLong(result);
+            return result;
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            release(bytes, clock.getAsLong() - start, failure);
+        }
+    }
+
+    private void acquire() throws InterruptedException {
+        synchronized (this) {
+            while (inFlight >= limit) {
+                wait();
+            }
+            inFlight++;
+        }
+        try {
+            GLOBAL_PERMITS.acquire();
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                inFlight--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private void release(long bytes, long latency, Exception failure) {
+        GLOBAL_PERMITS.release();
+        synchronized (this) {
+            inFlight--;
+            if (isThrottled(failure)) {
+                onThrottled();
+            } else if (bytes >= 0) {
+                onCompleted(bytes, latency);
+            }
+            notifyAll();
+        }
+    }
+
+    private void onThrottled() {
+        // the transfers already in flight will most likely be throttled too, back off once per window
+        if (!windowThrottled) {
+            limit = Math.max(1, (int) (limit * THROTTLED_FACTOR));
+            resetWindow();
+            windowThrottled = true;
+        }
+    }
+
+    private void onCompleted(long bytes, long latency) {
+        windowSamples++;
+        windowBytes += bytes;
+        windowWeightedBytes += Math.max(MIN_SAMPLE_BYTES, bytes);
+        windowLatency += latency;
+        if (windowSamples < Math.max(MIN_WINDOW_SAMPLES, limit)) {
+            return;
+        }
+
+        long elapsed = Math.max(1, clock.getAsLong() - windowStart);
+        double throughput = (double) windowBytes / elapsed;
+        double latencyPerMib = (double) windowLatency * MIN_SAMPLE_BYTES / windowWeightedBytes;
+        boolean improved = throughput >= lastThroughput * MIN_THROUGHPUT_GAIN;
+        if (!windowThrottled) {
+            if (improved) {
+                limit = Math.min(ceiling, limit + 1);
+            } else if (latencyPerMib > bestLatency * LATENCY_TOLERANCE) {
+                limit = Math.max(1, (int) (limit * SLOW_DOWN_FACTOR));
+            }
+        }
+        bestLatency = Math.min(bestLatency, latencyPerMib);
+        lastThroughput = throughput;
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        windowStart = clock.getAsLong();
+        windowSamples = 0;
+        windowBytes = 0;
+        windowWeightedBytes = 0;
+        windowLatency = 0;
+        windowThrottled = false;
+    }
+
+    /**
+     * Whether the failure is the storage service asking the client to slow down.
+     */
+    static boolean isThrottled(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof HttpResponseException) {
+                HttpResponse response = ((HttpResponseException) t).getResponse();
+                if (response == null) {
+                    return false;
+                }
+                int status = response.getStatusCode();
+                return status == HttpStatus.SC_SERVICE_UNAVAILABLE
+                        || (status == HttpStatus.SC_INTERNAL_SERVER_ERROR
+                        && OPERATION_TIMED_OUT.equals(response.getHeaderValue(ERROR_CODE_HEADER)));
+            }
+        }
+        return false;
+    }
+}
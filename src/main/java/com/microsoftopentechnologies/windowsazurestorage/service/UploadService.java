@@ -15,28 +15,26 @@
 
 package com.microsoftopentechnologies.windowsazurestorage.service;
 
-import com.azure.core.credential.AzureSasCredential;
 import com.azure.core.http.rest.Response;
 import com.azure.core.util.Context;
 import com.azure.storage.blob.BlobClient;
 import com.azure.storage.blob.BlobContainerClient;
-import com.azure.storage.blob.BlobServiceClient;
-import com.azure.storage.blob.BlobServiceClientBuilder;
 import com.azure.storage.blob.BlobUrlParts;
 import com.azure.storage.blob.models.BlobHttpHeaders;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.BlobStorageException;
 import com.azure.storage.blob.models.BlockBlobItem;
 import com.azure.storage.blob.options.BlobUploadFromFileOptions;
-import com.azure.storage.blob.sas.BlobSasPermission;
-import com.azure.storage.file.share.ShareFileClient;
-import com.azure.storage.file.share.sas.ShareFileSasPermission;
+import com.azure.storage.file.share.models.ShareFileHttpHeaders;
 import com.microsoftopentechnologies.windowsazurestorage.AzureBlob;
 import com.microsoftopentechnologies.windowsazurestorage.AzureBlobMetadataPair;
 import com.microsoftopentechnologies.windowsazurestorage.Messages;
-import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInfo;
 import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
-import com.microsoftopentechnologies.windowsazurestorage.helper.AzureUtils;
 import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ArchiveFormat;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.PartialBlobProperties;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.SasToken;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadPlan;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadServiceData;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadType;
 import hudson.EnvVars;
@@ -44,7 +42,6 @@ import hudson.FilePath;
 import hudson.ProxyConfiguration;
 import hudson.Util;
 import hudson.remoting.VirtualChannel;
-import io.jenkins.plugins.azuresdk.HttpClientRetriever;
 import jenkins.MasterToSlaveFileCallable;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpStatus;
@@ -52,11 +49,10 @@ import org.apache.http.HttpStatus;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
-import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
@@ -68,19 +64,17 @@ import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 public abstract class UploadService extends StoragePluginService<UploadServiceData> {
     protected static final String ZIP_FOLDER_NAME = "artifactsArchive";
-    protected static final String ZIP_NAME = "archive.zip";
     private static final int UPLOAD_THREAD_COUNT = 16;
     private static final int KEEP_ALIVE_TIME = 1;
     private static final int TIME_OUT = 1;
     private static final TimeUnit TIME_OUT_UNIT = TimeUnit.DAYS;
-    private static final Logger LOGGER = Logger.getLogger(UploadService.class.getName());
 
     private AtomicInteger filesUploaded = new AtomicInteger(0);
+    private SasTokenIssuer writeSasIssuer;
+    private UploadPlan uploadPlan;
     private ExecutorService executorService = new ThreadPoolExecutor(UPLOAD_THREAD_COUNT, UPLOAD_THREAD_COUNT,
             KEEP_ALIVE_TIME, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>());
 
@@ -88,53 +82,6 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
         super(serviceData);
     }
 
-    /**
-     * A task to upload Azure Share Files by storage sdk.
-     */
-    class FileUploadThread implements Runnable {
-        private ShareFileClient uploadItem;
-        private FilePath filePath;
-        private List<AzureBlob> azureBlobs;
-
-        /**
-         * Default constructor of FileUploadThread.
-         *
-         * @param uploadItem Target Share File which will be uploaded to.
-         * @param filePath   The local file needed to be uploaded.
-         * @param azureBlobs Records of uploaded files.
-         */
-        FileUploadThread(ShareFileClient uploadItem, FilePath filePath, List<AzureBlob> azureBlobs) {
-            this.uploadItem = uploadItem;
-            this.filePath = filePath;
-            this.azureBlobs = azureBlobs;
-        }
-
-        @Override
-        public void run() {
-            try {
-                AzureBlob azureBlob;
-                uploadCloudFile(uploadItem, filePath);
-                azureBlob = new AzureBlob(
-                        uploadItem.getShareName(),
-                        uploadItem.getFileUrl(),
-                        filePath.length(),
-                        Constants.FILE_STORAGE,
-                        getServiceData().getCredentialsId(),
-                        uploadItem.getShareName()
-                        );
-                filesUploaded.addAndGet(1);
-                azureBlobs.add(azureBlob);
-            } catch (WAStorageException | InterruptedException | IOException e) {
-                LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                final String message = Messages.AzureStorageBuilder_download_err(
-                        getServiceData().getStorageAccountInfo().getStorageAccName()) + ":" + e.getMessage();
-                e.printStackTrace(error(message));
-                println(message);
-                setRunUnstable();
-            }
-        }
-    }
-
     /**
      * Data object for https uploading command.
      */
@@ -143,12 +90,13 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
         private String name;
         private FilePath src;
         private String url;
-        private String sas;
         private String storageType;
         private String storageAccount;
         private String containerOrShareName;
         private PartialBlobProperties blobProperties;
         private Map<String, String> metadata;
+        private String contentMd5;
+        private boolean createOnly;
 
         /**
          * Default Constructor for UploadObject.
@@ -156,23 +104,21 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
          * @param name           The name of the uploaded object.
          * @param src            The location of the uploaded object.
          * @param url            The target the url where the file will be uploaded to.
-         * @param sas            Share Access Signature for upload authentication.
          * @param storageType    The storage type for the object, now only support Azure Blob.
          * @param storageAccount Storage account name for data tracing.
          */
-        public UploadObject(String name, FilePath src, String url, String sas, String storageType,
+        public UploadObject(String name, FilePath src, String url, String storageType,
                             String storageAccount, PartialBlobProperties blobProperties, Map<String, String> metadata) {
-            this(name, src, url, sas, storageType, storageAccount, null, blobProperties, metadata);
+            this(name, src, url, storageType, storageAccount, null, blobProperties, metadata);
         }
 
-        public UploadObject(String name, FilePath src, String url, String sas, String storageType,
+        public UploadObject(String name, FilePath src, String url, String storageType,
                             String storageAccount, String containerOrShareName,
                             PartialBlobProperties blobProperties, Map<String, String> metadata
         ) {
             this.name = name;
             this.src = src;
             this.url = url;
-            this.sas = sas;
             this.storageType = storageType;
             this.storageAccount = storageAccount;
             this.containerOrShareName = containerOrShareName;
@@ -192,10 +138,6 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
             return url;
         }
 
-        public String getSas() {
-            return sas;
-        }
-
         public String getStorageType() {
             return storageType;
         }
@@ -215,6 +157,29 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
         public Map<String, String> getMetadata() {
             return metadata;
         }
+
+        /**
+         * Base64 encoded MD5 of the content, stored with the blob when set.
+         */
+        public String getContentMd5() {
+            return contentMd5;
+        }
+
+        public void setContentMd5(String contentMd5) {
+            this.contentMd5 = contentMd5;
+        }
+
+        /**
+         * Whether the blob is only written when it does not exist yet, as done for content addressed blobs which
+         * never change once written.
+         */
+        public boolean isCreateOnly() {
+            return createOnly;
+        }
+
+        public void setCreateOnly(boolean createOnly) {
+            this.createOnly = createOnly;
+        }
     }
 
     /**
@@ -295,24 +260,52 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
     static final class UploadOnSlave extends MasterToSlaveFileCallable<List<UploadResult>> {
         private static final long serialVersionUID = -7284277515594786765L;
         private final ProxyConfiguration proxy;
+        private final SasToken sasToken;
+        private final SasTokenProvider sasTokenProvider;
+        private final int maxConcurrency;
+        private final int blockBudget;
         private final List<UploadObject> uploadObjects;
 
-        UploadOnSlave(ProxyConfiguration proxy, List<UploadObject> uploadObjects) {
+        /**
+         * @param proxy            Jenkins proxy configuration.
+         * @param sasToken         Container scoped SAS shared by all the uploads.
+         * @param sasTokenProvider Provider used to renew the SAS before it expires.
+         * @param maxConcurrency   Ceiling of the parallel uploads, 0 for the global one.
+         * @param blockBudget      Block requests allowed in flight for all the files, 0 for the default.
+         * @param uploadObjects    Files to upload.
+         */
+        UploadOnSlave(ProxyConfiguration proxy, SasToken sasToken, SasTokenProvider sasTokenProvider,
+                      int maxConcurrency, int blockBudget, List<UploadObject> uploadObjects) {
             this.proxy = proxy;
+            this.sasToken = sasToken;
+            this.sasTokenProvider = sasTokenProvider;
+            this.maxConcurrency = maxConcurrency;
+            this.blockBudget = blockBudget;
             this.uploadObjects = uploadObjects;
         }
 
         @Override
         public List<UploadResult> invoke(File f, VirtualChannel channel)
                 throws IOException, InterruptedException {
-            ExecutorService agentExecutorService = new ThreadPoolExecutor(UPLOAD_THREAD_COUNT, UPLOAD_THREAD_COUNT,
-                    KEEP_ALIVE_TIME, TimeUnit.SECONDS, new LinkedBlockingDeque<>());
+            try {
+                return upload();
+            } finally {
+                AgentClientRegistry.release(sasTokenProvider);
+            }
+        }
+
+        private List<UploadResult> upload() throws IOException, InterruptedException {
+            TransferConcurrencyController concurrency = new TransferConcurrencyController(maxConcurrency);
+            BlockBudget blocks = new BlockBudget(blockBudget, concurrency.getCeiling());
+            ExecutorService agentExecutorService = new ThreadPoolExecutor(concurrency.getCeiling(),
+                    concurrency.getCeiling(), KEEP_ALIVE_TIME, TimeUnit.SECONDS, new LinkedBlockingDeque<>());
 
             List<Future<UploadResult>> futures = new ArrayList<>();
-            for (UploadObject uploadObject : uploadObjects) {
+            for (UploadObject uploadObject : largestFirst(uploadObjects)) {
+                BlobContainerClient containerClient = getContainerClient(uploadObject);
 
                 Future<UploadResult> future = agentExecutorService.submit(
-                        new UploadThread(proxy, uploadObject)
+                        new UploadThread(containerClient, concurrency, blocks, uploadObject)
                 );
                 futures.add(future);
             }
@@ -329,6 +322,26 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
             }
             return results;
         }
+
+        /**
+         * Orders the files from the largest to the smallest, so a large file does not start last and keep the
+         * step running long after the small ones are done.
+         */
+        static List<UploadObject> largestFirst(List<UploadObject> uploadObjects) {
+            Map<UploadObject, Long> sizes = new HashMap<>();
+            for (UploadObject uploadObject : uploadObjects) {
+                sizes.put(uploadObject, new File(uploadObject.getSrc().getRemote()).length());
+            }
+            List<UploadObject> ordered = new ArrayList<>(uploadObjects);
+            ordered.sort(Comparator.comparing(sizes::get, Comparator.reverseOrder()));
+            return ordered;
+        }
+
+        private BlobContainerClient getContainerClient(UploadObject uploadObject) throws IOException {
+            String containerName = BlobUrlParts.parse(uploadObject.getUrl()).getBlobContainerName();
+            return AgentClientRegistry.getBlobServiceClient(proxy, uploadObject.getUrl(), containerName,
+                    sasToken, sasTokenProvider).getBlobContainerClient(containerName);
+        }
     }
 
     /**
@@ -367,63 +380,73 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
         }
     }
 
-    protected String generateWriteSASURL(StorageAccountInfo storageAccountInfo, String fileName,
-                                         String storageType, String name)
-            throws MalformedURLException, URISyntaxException {
-        if (storageType.equalsIgnoreCase(Constants.BLOB_STORAGE)) {
-
-            return AzureUtils.generateBlobSASURL(storageAccountInfo, name, fileName,
-                    new BlobSasPermission().setWritePermission(true));
-        } else if (storageType.equalsIgnoreCase(Constants.FILE_STORAGE)) {
-            return AzureUtils.generateFileSASURL(storageAccountInfo, name, fileName,
-                    new ShareFileSasPermission().setWritePermission(true));
+    /**
+     * Returns the issuer of the write SAS shared by every transfer of this step. The SAS is scoped to the
+     * whole container or share, so it is signed once instead of once per file.
+     *
+     * @param storageType          blob or file storage
+     * @param containerOrShareName target container or share
+     * @return the SAS issuer
+     */
+    SasTokenIssuer getWriteSasIssuer(String storageType, String containerOrShareName) {
+        if (writeSasIssuer == null) {
+            writeSasIssuer = SasTokenIssuer.forWrite(
+                    getServiceData().getStorageAccountInfo(), storageType, containerOrShareName);
         }
-        throw new IllegalStateException("Unknown storage type. Please re-configure your job and build again.");
+        return writeSasIssuer;
     }
 
     /**
      * A task to upload files to Azure Storage by using https.
      */
     static class UploadThread implements Callable<UploadResult> {
-        private final ProxyConfiguration proxyConfiguration;
+        private final BlobContainerClient containerClient;
+        private final TransferConcurrencyController concurrency;
+        private final BlockBudget blocks;
         private UploadObject uploadObject;
 
-        UploadThread(ProxyConfiguration proxyConfiguration, UploadObject uploadObject) {
-            this.proxyConfiguration = proxyConfiguration;
+        UploadThread(BlobContainerClient containerClient, TransferConcurrencyController concurrency,
+                     BlockBudget blocks, UploadObject uploadObject) {
+            this.containerClient = containerClient;
+            this.concurrency = concurrency;
+            this.blocks = blocks;
             this.uploadObject = uploadObject;
         }
 
-        private BlobServiceClient getBlobServiceClient() {
-            return new BlobServiceClientBuilder()
-                    .credential(new AzureSasCredential(uploadObject.getSas()))
-                    .httpClient(HttpClientRetriever.get(proxyConfiguration))
-                    .endpoint(uploadObject.getUrl())
-                    .buildClient();
+        @Override
+        public UploadResult call() throws Exception {
+            return concurrency.run(this::upload, UploadResult::getByteSize);
         }
 
-        @Override
-        public UploadResult call() {
+        private UploadResult upload() throws InterruptedException {
             FilePath src = uploadObject.getSrc();
             File file = new File(src.getRemote());
             long length = file.length();
 
-            BlobServiceClient blobServiceClient = getBlobServiceClient();
-
-            BlobUrlParts blobUrlParts = BlobUrlParts.parse(uploadObject.getUrl());
-
-            BlobContainerClient containerClient = blobServiceClient
-                    .getBlobContainerClient(blobUrlParts.getBlobContainerName());
-
             BlobClient blockBlobClient = containerClient
                     .getBlobClient(uploadObject.getName());
 
             long startTime = System.currentTimeMillis();
 
-            BlobUploadFromFileOptions options = new BlobUploadFromFileOptions(file.getAbsolutePath())
-                    .setHeaders(getBlobHttpHeaders())
-                    .setMetadata(uploadObject.getMetadata());
-            Response<BlockBlobItem> block = blockBlobClient
-                    .uploadFromFileWithResponse(options, null, Context.NONE);
+            Response<BlockBlobItem> block;
+            try (BlockBudget.Allocation allocation = blocks.allocate(length)) {
+                BlobUploadFromFileOptions options = new BlobUploadFromFileOptions(file.getAbsolutePath())
+                        .setParallelTransferOptions(allocation.toTransferOptions())
+                        .setHeaders(getBlobHttpHeaders(uploadObject))
+                        .setMetadata(uploadObject.getMetadata());
+                if (uploadObject.isCreateOnly()) {
+                    options.setRequestConditions(new BlobRequestConditions().setIfNoneMatch(Constants.ANY_ETAG));
+                }
+                block = blockBlobClient.uploadFromFileWithResponse(options, null, Context.NONE);
+            } catch (BlobStorageException e) {
+                if (uploadObject.isCreateOnly() && isAlreadyCreated(e)) {
+                    // the content is already stored, by an earlier build or one racing this one; the write SAS
+                    // of the agent cannot read blob properties, so this is found out by the conditional upload
+                    return new UploadResult(HttpStatus.SC_OK, null, uploadObject.getName(), uploadObject.getUrl(),
+                            length, uploadObject.getStorageType(), startTime, System.currentTimeMillis());
+                }
+                throw e;
+            }
 
             if (!uploadObject.getMetadata().isEmpty()) {
                 blockBlobClient.setMetadata(uploadObject.getMetadata());
@@ -436,22 +459,56 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
                     startTime, endTime);
         }
 
-        private BlobHttpHeaders getBlobHttpHeaders() {
+        private static boolean isAlreadyCreated(BlobStorageException e) {
+            return e.getStatusCode() == HttpStatus.SC_CONFLICT
+                    || e.getStatusCode() == HttpStatus.SC_PRECONDITION_FAILED;
+        }
+
+        static BlobHttpHeaders getBlobHttpHeaders(UploadObject uploadObject) {
             PartialBlobProperties blobProperties = uploadObject.blobProperties;
             BlobHttpHeaders method = new BlobHttpHeaders();
             method.setCacheControl(blobProperties.getCacheControl());
             method.setContentType(blobProperties.getContentType());
             method.setContentEncoding(blobProperties.getContentEncoding());
             method.setContentLanguage(blobProperties.getContentLanguage());
+            if (uploadObject.getContentMd5() != null) {
+                method.setContentMd5(Base64.getDecoder().decode(uploadObject.getContentMd5()));
+            }
             return method;
 
         }
+
+        /**
+         * Headers of a file share file, from the blob properties of the upload when it has some.
+         */
+        static ShareFileHttpHeaders getShareFileHttpHeaders(UploadObject uploadObject) {
+            ShareFileHttpHeaders headers = new ShareFileHttpHeaders();
+            PartialBlobProperties blobProperties = uploadObject.blobProperties;
+            if (blobProperties != null) {
+                headers.setCacheControl(blobProperties.getCacheControl())
+                        .setContentType(blobProperties.getContentType())
+                        .setContentEncoding(blobProperties.getContentEncoding())
+                        .setContentLanguage(blobProperties.getContentLanguage());
+            }
+            return headers;
+        }
     }
 
-    protected abstract void uploadIndividuals(String embeddedVP, FilePath[] paths,
-                                              FilePath workspace) throws WAStorageException;
+    /**
+     * Records a file stored for this build without an upload result of its own, such as a file whose content was
+     * already stored, so it is still listed with the build artifacts.
+     */
+    protected void recordBlob(String name, String url, long size, String storageType) {
+        UploadServiceData serviceData = getServiceData();
+        String containerOrFileShareName = storageType.equals(Constants.FILE_STORAGE)
+                ? serviceData.getFileShareName() : serviceData.getContainerName();
+        serviceData.getIndividualBlobs().add(new AzureBlob(name, url, size, storageType,
+                serviceData.getCredentialsId(), containerOrFileShareName));
+        filesUploaded.addAndGet(1);
+    }
 
-    protected abstract void uploadIndividuals(String embeddedVP, FilePath[] paths) throws WAStorageException;
+    protected abstract void uploadIndividuals(String embeddedVP, List<ListUploadsOnAgent.ListedFile> files,
+                                              FilePath workspace) throws WAStorageException;
 
     protected abstract void uploadArchive(String archiveIncludes) throws WAStorageException;
 
@@ -481,6 +538,7 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
                 println(Messages.WAStoragePublisher_uploading());
             }
 
+            final UploadPlan plan = getUploadPlan();
             final StringBuilder archiveIncludes = new StringBuilder();
 
             StringTokenizer strTokens = new StringTokenizer(serviceData.getFilePath(), FP_SEPARATOR);
@@ -505,30 +563,21 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
                 }
 
                 // List all the paths without the zip archives.
-                FilePath[] paths = workspacePath.list(fileName, excludedFilesAndZip());
-                FilePath[] uploadPaths = paths;
-
-                if (serviceData.isOnlyUploadModifiedArtifacts()) {
-                    List<FilePath> modifiedPathsList = new ArrayList<>();
-                    for (FilePath path : paths) {
-                        if (path.lastModified() >= serviceData.getRun().getStartTimeInMillis()) {
-                            modifiedPathsList.add(path);
-                        }
-                    }
-                    uploadPaths = modifiedPathsList.toArray(new FilePath[0]);
-                }
+                final boolean individuals = serviceData.getUploadType() != UploadType.ZIP;
+                ListUploadsOnAgent.Listing listing = workspacePath.act(new ListUploadsOnAgent(fileName,
+                        excludedFilesAndZip(), plan.getModifiedSince(), individuals && plan.isDetectContentType()));
 
                 archiveIncludes.append(",").append(fileName);
-                filesNeedUpload += uploadPaths.length;
-                filesCount += paths.length;
+                filesNeedUpload += listing.getFiles().size();
+                filesCount += listing.getMatched();
 
-                if (uploadPaths.length != 0 && serviceData.getUploadType() != UploadType.ZIP) {
+                if (!listing.getFiles().isEmpty() && individuals) {
                     // the uploadType is either INDIVIDUAL or BOTH, upload included individual files thus.
-                    uploadIndividuals(embeddedVP, uploadPaths, workspacePath);
+                    uploadIndividuals(embeddedVP, listing.getFiles(), workspacePath);
                 }
             }
 
-            // if uploadType is BOTH or ZIP, create an archive.zip and upload
+            // if uploadType is BOTH or ZIP, create an archive and upload
             if (filesCount != 0 && (serviceData.getUploadType() != UploadType.INDIVIDUAL)) {
                 uploadArchive(archiveIncludes.toString());
                 // archive file should not be included in downloaded file count
@@ -540,6 +589,11 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
             waitForUploadEnd();
         } catch (IOException | InterruptedException e) {
             throw new WAStorageException(e.getMessage(), e);
+        } finally {
+            if (writeSasIssuer != null) {
+                // the agents may still hold the exported issuer, it must not sign anything once the step is over
+                writeSasIssuer.revoke();
+            }
         }
         if (serviceData.getUploadType() != UploadType.ZIP && filesUploaded.get() != filesNeedUpload) {
             throw new WAStorageException(String.format("Only %d/%d files are successfully uploaded.",
@@ -558,37 +612,30 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
         }
     }
 
-    protected void uploadCloudFile(ShareFileClient fileClient, FilePath localPath)
-            throws WAStorageException {
-        long startTime = System.currentTimeMillis();
-        File file = new File(localPath.getRemote());
-        try {
-            long bytes = Files.size(file.toPath());
-            fileClient.create(bytes);
-
-            fileClient.uploadFromFile(file.getAbsolutePath());
-
-            long endTime = System.currentTimeMillis();
-            if (getServiceData().isVerbose()) {
-                println("Uploaded file with uri " + fileClient.getFileUrl() + " in " + getTime(endTime - startTime));
-            }
-        } catch (Exception e) {
-            throw new WAStorageException("Failed uploading file", e);
-        }
-    }
-
     protected String excludedFilesAndZip() {
         final UploadServiceData serviceData = getServiceData();
         // Make sure we exclude the tempPath from archiving.
-        String excludesWithoutZip = "**/" + ZIP_FOLDER_NAME + "*/" + ZIP_NAME;
+        StringBuilder archives = new StringBuilder();
+        for (ArchiveFormat format : ArchiveFormat.values()) {
+            archives.append(archives.length() == 0 ? "" : ",")
+                    .append("**/").append(ZIP_FOLDER_NAME).append("*/").append(format.getFileName());
+        }
+        String excludesWithoutZip = archives.toString();
         if (serviceData.getExcludedFilesPath() != null) {
             excludesWithoutZip = serviceData.getExcludedFilesPath() + "," + excludesWithoutZip;
         }
         return excludesWithoutZip;
     }
 
-    protected String removePrefix(URI srcURI, UploadServiceData serviceData) {
-        String tmp = srcURI.getPath();
+    /**
+     * Name of the archive file, in the format selected for this upload.
+     */
+    protected String getArchiveName() {
+        return getServiceData().getArchiveFormat().getFileName();
+    }
+
+    protected String removePrefix(String relativePath, UploadServiceData serviceData) {
+        String tmp = relativePath;
         String removePrefixPath = serviceData.getRemovePrefixPath();
         if (!StringUtils.isBlank(removePrefixPath)) {
             if (tmp.startsWith(removePrefixPath)) {
@@ -606,21 +653,15 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
     }
 
     /**
-     * Convert the path on local file system to relative path on azure storage.
+     * Convert the path of a file relative to the workspace to relative path on azure storage.
      *
-     * @param path       the local path
-     * @param embeddedVP the embedded virtual path
-     * @return
+     * @param relativePath the path relative to the workspace, with forward slashes
+     * @param embeddedVP   the embedded virtual path
+     * @return the path on azure storage
      */
-    protected String getItemPath(FilePath path, String embeddedVP, UploadServiceData serviceData)
-            throws IOException, InterruptedException {
-        final URI workspaceURI = serviceData.getRemoteWorkspace().toURI();
-
-        // Remove the workspace bit of this path
-        final URI srcURI = workspaceURI.relativize(path.toURI());
-
+    protected String getItemPath(String relativePath, String embeddedVP, UploadServiceData serviceData) {
         // Remove the prefix if specified
-        final String srcURIPath = removePrefix(srcURI, serviceData);
+        final String srcURIPath = removePrefix(relativePath, serviceData);
 
         String prefix;
         if (StringUtils.isBlank(serviceData.getVirtualPath())) {
@@ -637,9 +678,43 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
 
     protected Map<String, String> updateMetadata(Map<String, String> metadata)
             throws IOException, InterruptedException {
-        final UploadServiceData serviceData = getServiceData();
-        final EnvVars env = serviceData.getRun().getEnvironment(serviceData.getTaskListener());
+        metadata.putAll(getUploadPlan().getMetadata());
+        return metadata;
+    }
 
+    /**
+     * Whether the uploaded files carry the blob properties of the step, so their content type may have to be
+     * detected.
+     */
+    protected boolean isContentTypeStored() {
+        return true;
+    }
+
+    /**
+     * Resolves the build environment, the blob properties and the metadata of the step once, for all its files.
+     */
+    protected UploadPlan getUploadPlan() throws IOException, InterruptedException {
+        if (uploadPlan == null) {
+            final UploadServiceData serviceData = getServiceData();
+            final EnvVars env = serviceData.getRun().getEnvironment(serviceData.getTaskListener());
+
+            PartialBlobProperties blobProperties = new PartialBlobProperties("UTF-8", null, null, null);
+            boolean detectContentType = false;
+            if (serviceData.getBlobProperties() != null) {
+                blobProperties = serviceData.getBlobProperties().resolve(env);
+                detectContentType = isContentTypeStored() && serviceData.getBlobProperties().getDetectContentType()
+                        && StringUtils.isBlank(blobProperties.getContentType());
+            }
+            long modifiedSince = serviceData.isOnlyUploadModifiedArtifacts()
+                    ? serviceData.getRun().getStartTimeInMillis() : Long.MIN_VALUE;
+            uploadPlan = new UploadPlan(blobProperties, detectContentType, resolveMetadata(env), modifiedSince);
+        }
+        return uploadPlan;
+    }
+
+    private Map<String, String> resolveMetadata(EnvVars env) {
+        final UploadServiceData serviceData = getServiceData();
+        final Map<String, String> metadata = new HashMap<>();
         if (serviceData.getAzureBlobMetadata() != null) {
             for (AzureBlobMetadataPair pair : serviceData.getAzureBlobMetadata()) {
                 final String resolvedKey = Util.replaceMacro(pair.getKey(), env);
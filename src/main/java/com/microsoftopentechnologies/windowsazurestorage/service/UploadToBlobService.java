@@ -18,33 +18,56 @@ package com.microsoftopentechnologies.windowsazurestorage.service;
 import com.azure.core.http.rest.PagedIterable;
 import com.azure.storage.blob.BlobContainerClient;
 import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobItemProperties;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.ListBlobsOptions;
 import com.azure.storage.blob.specialized.BlockBlobClient;
-import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInfo;
+import com.microsoftopentechnologies.windowsazurestorage.AzureBlob;
+import com.microsoftopentechnologies.windowsazurestorage.Messages;
 import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
 import com.microsoftopentechnologies.windowsazurestorage.helper.AzureUtils;
 import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ArtifactManifest;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.PartialBlobProperties;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadPlan;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadServiceData;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadType;
-import hudson.EnvVars;
 import hudson.FilePath;
-import hudson.util.DirScanner;
+import hudson.model.Run;
 import jenkins.model.Jenkins;
-import org.apache.commons.lang3.NotImplementedException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.MessageDigestAlgorithms;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpStatus;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
 /**
  * Service to upload files to Azure Blob Storage.
  */
 public class UploadToBlobService extends UploadService {
+    /**
+     * Blobs with no directory in common are looked up one by one up to this number, rather than listed.
+     */
+    static final int MAX_SINGLE_LOOKUPS = 100;
 
+    private final ArtifactManifest manifest = new ArtifactManifest();
+    private String manifestName;
+    private boolean cleanedUp;
 
     public UploadToBlobService(UploadServiceData serviceData) {
         super(serviceData);
@@ -61,31 +84,43 @@ public class UploadToBlobService extends UploadService {
             }
 
             final FilePath workspacePath = serviceData.getRemoteWorkspace();
-            // Create a temp dir for the upload
-            final FilePath tempDir = workspacePath.createTempDir(ZIP_FOLDER_NAME, null);
-            final FilePath zipPath = tempDir.child(ZIP_NAME);
-
-            // zip included files into archive.zip file.
-            final DirScanner.Glob globScanner = new DirScanner.Glob(archiveIncludes, excludedFilesAndZip());
-            workspacePath.zip(zipPath.write(), globScanner);
-
             // When uploading the zip, do not add in the tempDir to the azure
-            String blobURI = zipPath.getName();
+            String blobURI = getArchiveName();
             if (!StringUtils.isBlank(serviceData.getVirtualPath())) {
                 blobURI = serviceData.getVirtualPath() + blobURI;
             }
 
             final BlockBlobClient blob = container.getBlobClient(blobURI).getBlockBlobClient();
-
-            List<UploadObject> uploadObjects = new ArrayList<>();
             PartialBlobProperties blobProperties = new PartialBlobProperties(
                     "UTF-8", null, null, null);
-            UploadObject uploadObject = generateUploadObject(zipPath, serviceData.getStorageAccountInfo(),
-                    blob, container.getBlobContainerName(), blobProperties, updateMetadata(new HashMap<>()));
+
+            if (serviceData.isStreamArchive()) {
+                UploadObject archive = generateUploadObject(null, blob, blobProperties,
+                        updateMetadata(new HashMap<>()));
+                SasTokenIssuer sasIssuer = getWriteSasIssuer(Constants.BLOB_STORAGE, container.getBlobContainerName());
+                UploadResult result = workspacePath.act(new StreamingArchiveOnAgent(Jenkins.get().proxy,
+                        sasIssuer.current(), sasIssuer.export(workspacePath.getChannel()),
+                        serviceData.getArchiveFormat(), serviceData.getCompressionLevel(), archiveIncludes,
+                        excludedFilesAndZip(), archive));
+                updateAzureBlobs(Collections.singletonList(result), serviceData.getArchiveBlobs());
+                return;
+            }
+
+            // Create a temp dir for the upload
+            final FilePath tempDir = workspacePath.createTempDir(ZIP_FOLDER_NAME, null);
+            final FilePath zipPath = tempDir.child(getArchiveName());
+
+            // archive included files into the archive file.
+            workspacePath.act(new ArchiveOnAgent(serviceData.getArchiveFormat(), serviceData.getCompressionLevel(),
+                    archiveIncludes, excludedFilesAndZip(), zipPath.getRemote()));
+
+            List<UploadObject> uploadObjects = new ArrayList<>();
+            UploadObject uploadObject = generateUploadObject(zipPath, blob, blobProperties,
+                    updateMetadata(new HashMap<>()));
             uploadObjects.add(uploadObject);
 
-            UploadOnSlave uploadOnSlave = new UploadOnSlave(Jenkins.get().proxy, uploadObjects);
-            List<UploadResult> results = workspacePath.act(uploadOnSlave);
+            List<UploadResult> results = workspacePath.act(createUploadOnSlave(container, workspacePath,
+                    uploadObjects));
 
             updateAzureBlobs(results, serviceData.getArchiveBlobs());
 
@@ -95,21 +130,24 @@ public class UploadToBlobService extends UploadService {
         }
     }
 
-    private UploadObject generateUploadObject(FilePath path, StorageAccountInfo accountInfo,
-                                              BlockBlobClient blob, String containerName,
+    private UploadObject generateUploadObject(FilePath path, BlockBlobClient blob,
                                               PartialBlobProperties blobProperties,
-                                              Map<String, String> metadata) throws Exception {
-        String sas = generateWriteSASURL(accountInfo, blob.getBlobName(),
-                Constants.BLOB_STORAGE, containerName);
-
-        return new UploadObject(blob.getBlobName(), path, blob.getBlobUrl(), sas, Constants.BLOB_STORAGE,
+                                              Map<String, String> metadata) {
+        return new UploadObject(blob.getBlobName(), path, blob.getBlobUrl(), Constants.BLOB_STORAGE,
                 blob.getAccountName(), blobProperties,
                 metadata);
     }
 
+    private UploadOnSlave createUploadOnSlave(BlobContainerClient container, FilePath workspace,
+                                              List<UploadObject> uploadObjects) throws IOException {
+        SasTokenIssuer sasIssuer = getWriteSasIssuer(Constants.BLOB_STORAGE, container.getBlobContainerName());
+        return new UploadOnSlave(Jenkins.get().proxy, sasIssuer.current(), sasIssuer.export(workspace.getChannel()),
+                getServiceData().getMaxConcurrency(), getServiceData().getBlockBudget(), uploadObjects);
+    }
+
     @Override
-    protected void uploadIndividuals(String embeddedVP, FilePath[] paths, FilePath workspace)
-            throws WAStorageException {
+    protected void uploadIndividuals(String embeddedVP, List<ListUploadsOnAgent.ListedFile> files,
+                                     FilePath workspace) throws WAStorageException {
         final UploadServiceData serviceData = getServiceData();
         try {
             final BlobContainerClient container = getCloudBlobContainer();
@@ -118,19 +156,26 @@ public class UploadToBlobService extends UploadService {
                 cleanupContainer(container);
             }
 
+            final UploadPlan plan = getUploadPlan();
             List<UploadObject> uploadObjects = new ArrayList<>();
-            for (FilePath src : paths) {
-                final String blobPath = getItemPath(src, embeddedVP, serviceData);
+            for (ListUploadsOnAgent.ListedFile file : files) {
+                final String blobPath = getItemPath(file.getRelativePath(), embeddedVP, serviceData);
                 final BlockBlobClient blob = container.getBlobClient(blobPath).getBlockBlobClient();
-                PartialBlobProperties blobProperties = configureBlobProperties(src);
 
-                UploadObject uploadObject = generateUploadObject(src, serviceData.getStorageAccountInfo(),
-                        blob, container.getBlobContainerName(), blobProperties, updateMetadata(new HashMap<>()));
+                UploadObject uploadObject = generateUploadObject(file.toFilePath(workspace), blob,
+                        plan.blobProperties(file.getContentType()), updateMetadata(new HashMap<>()));
                 uploadObjects.add(uploadObject);
             }
 
-            UploadOnSlave uploadOnSlave = new UploadOnSlave(Jenkins.get().proxy, uploadObjects);
-            List<UploadResult> results = workspace.act(uploadOnSlave);
+            if (serviceData.isContentAddressable()) {
+                uploadContentAddressed(container, workspace, uploadObjects);
+                return;
+            }
+            if (serviceData.isOnlyUploadChangedContent()) {
+                uploadObjects = skipUnchangedContent(container, workspace, uploadObjects);
+            }
+
+            List<UploadResult> results = workspace.act(createUploadOnSlave(container, workspace, uploadObjects));
 
             updateAzureBlobs(results, serviceData.getIndividualBlobs());
 
@@ -139,24 +184,164 @@ public class UploadToBlobService extends UploadService {
         }
     }
 
-    @Deprecated
-    @Override
-    protected void uploadIndividuals(String embeddedVP, FilePath[] paths) throws WAStorageException {
-        throw new NotImplementedException();
+    /**
+     * Stores each file under the SHA-256 of its content and records the names it was published under in the
+     * manifest of this step. Files with the same content, in this build or any other, are uploaded once: existing
+     * content blobs are skipped, and two builds racing to create the same one both succeed thanks to
+     * {@code If-None-Match: *}.
+     */
+    private void uploadContentAddressed(BlobContainerClient container, FilePath workspace,
+                                        List<UploadObject> uploadObjects) throws IOException, InterruptedException {
+        final UploadServiceData serviceData = getServiceData();
+        List<String> paths = new ArrayList<>();
+        for (UploadObject uploadObject : uploadObjects) {
+            paths.add(uploadObject.getSrc().getRemote());
+        }
+        Map<String, byte[]> hashes = workspace.act(new ContentDigestOnAgent(paths, MessageDigestAlgorithms.SHA_256));
+
+        Map<String, UploadObject> contentObjects = new LinkedHashMap<>();
+        Map<UploadObject, String> contentHashes = new HashMap<>();
+        for (UploadObject uploadObject : uploadObjects) {
+            String sha256 = Hex.encodeHexString(hashes.get(uploadObject.getSrc().getRemote()));
+            contentHashes.put(uploadObject, sha256);
+            contentObjects.computeIfAbsent(sha256, key -> {
+                BlockBlobClient blob = container.getBlobClient(ArtifactManifest.contentKey(key)).getBlockBlobClient();
+                UploadObject contentObject = generateUploadObject(uploadObject.getSrc(), blob,
+                        uploadObject.getBlobProperties(), uploadObject.getMetadata());
+                contentObject.setCreateOnly(true);
+                return contentObject;
+            });
+        }
+
+        List<UploadResult> results = workspace.act(createUploadOnSlave(container, workspace,
+                new ArrayList<>(contentObjects.values())));
+        Map<String, UploadResult> stored = new HashMap<>();
+        for (UploadResult result : results) {
+            if (result.getStatusCode() == HttpStatus.SC_CREATED || result.getStatusCode() == HttpStatus.SC_OK) {
+                stored.put(result.getName(), result);
+            }
+        }
+
+        for (UploadObject uploadObject : uploadObjects) {
+            String sha256 = contentHashes.get(uploadObject);
+            UploadResult result = stored.get(ArtifactManifest.contentKey(sha256));
+            if (result != null) {
+                manifest.add(uploadObject.getName(), sha256, result.getByteSize());
+                recordBlob(uploadObject.getName(), result.getUrl(), result.getByteSize(), Constants.BLOB_STORAGE);
+            }
+        }
+        println(Messages.UploadService_content_addressed(uploadObjects.size(), contentObjects.size()));
+
+        BlockBlobClient manifestBlob = container.getBlobClient(getManifestName()).getBlockBlobClient();
+        byte[] json = manifest.toJson().getBytes(StandardCharsets.UTF_8);
+        manifestBlob.upload(new ByteArrayInputStream(json), json.length, true);
+        serviceData.setManifestBlob(new AzureBlob(manifestBlob.getBlobName(), manifestBlob.getBlobUrl(), json.length,
+                Constants.BLOB_STORAGE, serviceData.getCredentialsId(), container.getBlobContainerName()));
     }
 
-    private PartialBlobProperties configureBlobProperties(
-            final FilePath src) throws IOException, InterruptedException {
-        final UploadServiceData serviceData = getServiceData();
-        final EnvVars env = serviceData.getRun().getEnvironment(serviceData.getTaskListener());
+    private String getManifestName() {
+        if (manifestName == null) {
+            Run<?, ?> run = getServiceData().getRun();
+            manifestName = ArtifactManifest.MANIFEST_PREFIX + run.getParent().getFullName() + Constants.FWD_SLASH
+                    + run.getNumber() + Constants.FWD_SLASH + UUID.randomUUID() + ".json";
+        }
+        return manifestName;
+    }
+
+    /**
+     * Hashes the files on the agent and drops the ones whose MD5 matches the blob already stored at their target
+     * path. The stored blobs are read as chosen by {@link #listingPrefixes}, and the files to upload carry their MD5
+     * so it is stored with the blob.
+     *
+     * @return the files which still need to be uploaded
+     */
+    private List<UploadObject> skipUnchangedContent(BlobContainerClient container, FilePath workspace,
+                                                    List<UploadObject> uploadObjects)
+            throws IOException, InterruptedException {
+        List<String> names = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        for (UploadObject uploadObject : uploadObjects) {
+            names.add(uploadObject.getName());
+            paths.add(uploadObject.getSrc().getRemote());
+        }
+
+        Map<String, BlobItemProperties> stored = new HashMap<>();
+        List<String> lookups = new ArrayList<>();
+        for (String prefix : listingPrefixes(names, lookups)) {
+            for (BlobItem blobItem : container.listBlobs(new ListBlobsOptions().setPrefix(prefix), null)) {
+                stored.put(blobItem.getName(), blobItem.getProperties());
+            }
+        }
+        for (String name : lookups) {
+            try {
+                BlobProperties properties = container.getBlobClient(name).getProperties();
+                stored.put(name, new BlobItemProperties().setContentMd5(properties.getContentMd5())
+                        .setContentLength(properties.getBlobSize()));
+            } catch (BlobStorageException e) {
+                if (e.getStatusCode() != HttpStatus.SC_NOT_FOUND) {
+                    throw e;
+                }
+            }
+        }
 
-        // Set blob properties
-        if (serviceData.getBlobProperties() != null) {
-            return serviceData.getBlobProperties().configure(src, env);
+        Map<String, byte[]> hashes = workspace.act(new ContentDigestOnAgent(paths, MessageDigestAlgorithms.MD5));
+        List<UploadObject> changed = new ArrayList<>();
+        for (UploadObject uploadObject : uploadObjects) {
+            String contentMd5 = Base64.getEncoder().encodeToString(hashes.get(uploadObject.getSrc().getRemote()));
+            BlobItemProperties properties = stored.get(uploadObject.getName());
+            if (properties != null && properties.getContentMd5() != null
+                    && contentMd5.equals(Base64.getEncoder().encodeToString(properties.getContentMd5()))) {
+                recordBlob(uploadObject.getName(), uploadObject.getUrl(), properties.getContentLength(),
+                        Constants.BLOB_STORAGE);
+            } else {
+                uploadObject.setContentMd5(contentMd5);
+                changed.add(uploadObject);
+            }
         }
+        println(Messages.UploadService_unchanged_skipped(uploadObjects.size() - changed.size()));
+        return changed;
+    }
 
-        return new PartialBlobProperties("UTF-8", null, null, null);
+    /**
+     * Chooses how the stored blobs are read: by listing the deepest directory common to all of them, or when they
+     * have none, which would list the whole container, by listing each top level directory they are in. Blobs at
+     * the root of the container, or all of them when they are few, are looked up one by one instead.
+     *
+     * @param blobNames the blobs to read
+     * @param lookups   receives the blobs to look up one by one
+     * @return the prefixes to list
+     */
+    static List<String> listingPrefixes(List<String> blobNames, List<String> lookups) {
+        String directory = commonDirectory(blobNames);
+        if (!directory.isEmpty()) {
+            return Collections.singletonList(directory);
+        }
+        if (blobNames.size() <= MAX_SINGLE_LOOKUPS) {
+            lookups.addAll(blobNames);
+            return Collections.emptyList();
+        }
+        Set<String> prefixes = new LinkedHashSet<>();
+        for (String name : blobNames) {
+            int slash = name.indexOf(Constants.FWD_SLASH);
+            if (slash < 0) {
+                lookups.add(name);
+            } else {
+                prefixes.add(name.substring(0, slash + 1));
+            }
+        }
+        return new ArrayList<>(prefixes);
+    }
 
+    /**
+     * Returns the deepest virtual directory containing all the given blobs, ending with a slash, or an empty
+     * string when they have no directory in common.
+     */
+    static String commonDirectory(List<String> blobNames) {
+        if (blobNames.isEmpty()) {
+            return "";
+        }
+        String prefix = StringUtils.getCommonPrefix(blobNames.toArray(new String[0]));
+        return prefix.substring(0, prefix.lastIndexOf(Constants.FWD_SLASH) + 1);
     }
 
     private BlobContainerClient getCloudBlobContainer() throws URISyntaxException, IOException {
@@ -171,28 +356,63 @@ public class UploadToBlobService extends UploadService {
         return container;
     }
 
-    private void cleanupContainer(BlobContainerClient container) throws
-            IOException, URISyntaxException {
+    /**
+     * Deletes the previous contents of the container or virtual path, once per step: later calls do nothing, so
+     * the uploads of a file pattern are never deleted by the cleanup of the next one.
+     */
+    private void cleanupContainer(BlobContainerClient container) throws WAStorageException, InterruptedException {
         final UploadServiceData serviceData = getServiceData();
+        if (cleanedUp) {
+            return;
+        }
+        cleanedUp = true;
         // Delete previous contents if cleanup is needed
         if (serviceData.isCleanUpContainerOrShare()) {
             println("Clean up existing blobs in container " + serviceData.getContainerName());
             deleteBlobs(container, container.listBlobs());
         } else if (serviceData.isCleanUpVirtualPath() && StringUtils.isNotBlank(serviceData.getVirtualPath())) {
             println("Clean up existing blobs in container path " + serviceData.getVirtualPath());
-            deleteBlobs(container, container.listBlobsByHierarchy(serviceData.getVirtualPath()));
+            deleteBlobs(container, container.listBlobs(
+                    new ListBlobsOptions().setPrefix(serviceData.getVirtualPath()), null));
         }
     }
 
     /**
-     * Deletes contents of container.
+     * Content addressed blobs and manifests are shared by every build publishing to the container, so the cleanup
+     * of one step never deletes them.
+     */
+    static boolean isSharedContent(String blobName) {
+        return blobName.startsWith(ArtifactManifest.CONTENT_PREFIX)
+                || blobName.startsWith(ArtifactManifest.MANIFEST_PREFIX);
+    }
+
+    /**
+     * Deletes contents of container, in batches sent while the next pages are listed.
      *
      * @param container the blob container client
      * @param blobItems list of blobs to delete
      */
-    private void deleteBlobs(BlobContainerClient container, PagedIterable<BlobItem> blobItems) {
-        for (BlobItem blobItem : blobItems) {
-            container.getBlobClient(blobItem.getName()).delete();
+    private void deleteBlobs(BlobContainerClient container, PagedIterable<BlobItem> blobItems)
+            throws WAStorageException, InterruptedException {
+        BlobBatchDeleter deleter = new BlobBatchDeleter(container, getServiceData().getMaxConcurrency());
+        try {
+            for (BlobItem blobItem : blobItems) {
+                if (!isSharedContent(blobItem.getName())) {
+                    deleter.delete(container.getBlobClient(blobItem.getName()).getBlobUrl());
+                }
+            }
+        } catch (RuntimeException | InterruptedException e) {
+            // the listing failed, wait for the batches sent so far without hiding why
+            try {
+                deleter.finish();
+            } catch (WAStorageException | InterruptedException deleteFailure) {
+                e.addSuppressed(deleteFailure);
+            }
+            throw e;
+        }
+        int deleted = deleter.finish();
+        if (getServiceData().isVerbose()) {
+            println(Messages.UploadService_cleaned_up(deleted));
         }
     }
 }
@@ -15,26 +15,25 @@
 
 package com.microsoftopentechnologies.windowsazurestorage.service;
 
-import com.azure.core.credential.AzureSasCredential;
-import com.azure.core.http.rest.PagedIterable;
+import com.azure.core.util.Context;
 import com.azure.storage.file.share.ShareClient;
 import com.azure.storage.file.share.ShareDirectoryClient;
 import com.azure.storage.file.share.ShareFileClient;
 import com.azure.storage.file.share.ShareServiceClient;
-import com.azure.storage.file.share.ShareServiceClientBuilder;
+import com.azure.storage.file.share.models.ShareFileHttpHeaders;
 import com.azure.storage.file.share.models.ShareFileItem;
-import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInfo;
+import com.azure.storage.file.share.options.ShareFileRenameOptions;
+import com.azure.storage.file.share.options.ShareFileUploadRangeOptions;
 import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
 import com.microsoftopentechnologies.windowsazurestorage.helper.AzureUtils;
 import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.PartialBlobProperties;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.SasToken;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadServiceData;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadType;
 import hudson.FilePath;
 import hudson.ProxyConfiguration;
 import hudson.remoting.VirtualChannel;
-import hudson.util.DirScanner;
-import io.jenkins.plugins.azuresdk.HttpClientRetriever;
 import jenkins.MasterToSlaveFileCallable;
 import jenkins.model.Jenkins;
 import org.apache.commons.lang3.StringUtils;
@@ -45,33 +44,31 @@ import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import org.apache.http.HttpStatus;
 
 public class UploadToFileService extends UploadService {
 
+    private final ShareDirectories directories = new ShareDirectories();
+    private boolean cleanedUp;
+
     public UploadToFileService(UploadServiceData serviceData) {
         super(serviceData);
     }
 
     @Override
-    protected void uploadIndividuals(String embeddedVP, FilePath[] paths, FilePath workspace)
-            throws WAStorageException {
-        uploadIndividuals(embeddedVP, paths);
-    }
-
-    @Override
-    protected void uploadIndividuals(String embeddedVP, FilePath[] paths) throws WAStorageException {
+    protected void uploadIndividuals(String embeddedVP, List<ListUploadsOnAgent.ListedFile> files,
+                                     FilePath workspace) throws WAStorageException {
         final UploadServiceData serviceData = getServiceData();
-        FilePath workspace = getServiceData().getRemoteWorkspace();
         try {
             final ShareClient fileShare = getCloudFileShare();
             UploadType uploadType = serviceData.getUploadType();
@@ -80,20 +77,23 @@ public class UploadToFileService extends UploadService {
             }
 
             List<UploadObject> uploadObjects = new ArrayList<>();
+            List<String> filePaths = new ArrayList<>();
 
-            for (FilePath src : paths) {
-                final String filePath = getItemPath(src, embeddedVP, serviceData);
-                ShareDirectoryClient rootDirectoryClient = fileShare.getRootDirectoryClient();
+            ShareDirectoryClient rootDirectoryClient = fileShare.getRootDirectoryClient();
+            for (ListUploadsOnAgent.ListedFile file : files) {
+                final String filePath = getItemPath(file.getRelativePath(), embeddedVP, serviceData);
                 final ShareFileClient cloudFile = rootDirectoryClient.getFileClient(filePath);
-                ensureDirExist(fileShare, filePath);
+                filePaths.add(filePath);
 
-                UploadObject uploadObject = generateUploadObject(src, serviceData.getStorageAccountInfo(),
-                        cloudFile, fileShare.getShareName(), null, updateMetadata(new HashMap<>()));
+                UploadObject uploadObject = generateUploadObject(file.toFilePath(workspace), cloudFile,
+                        fileShare.getShareName(), null, updateMetadata(new HashMap<>()));
                 uploadObjects.add(uploadObject);
             }
 
-            List<UploadResult> results = workspace
-                    .act(new UploadOnAgent(Jenkins.get().getProxy(), uploadObjects));
+            List<String> newDirectories = directories.plan(filePaths);
+            List<UploadResult> results = workspace.act(createUploadOnAgent(fileShare, workspace, newDirectories,
+                    uploadObjects));
+            directories.created(newDirectories);
 
             updateAzureBlobs(results, serviceData.getIndividualBlobs());
         } catch (URISyntaxException | IOException | InterruptedException e) {
@@ -101,14 +101,26 @@ public class UploadToFileService extends UploadService {
         }
     }
 
-    private UploadObject generateUploadObject(FilePath path, StorageAccountInfo accountInfo,
-                                              ShareFileClient client, String shareName,
-                                              PartialBlobProperties properties,
-                                              Map<String, String> metadata)
-            throws MalformedURLException, URISyntaxException {
-        String sas = generateWriteSASURL(accountInfo, client.getFilePath(), Constants.FILE_STORAGE, shareName);
+    /**
+     * Files in a share have no blob properties, so their content type is never detected.
+     */
+    @Override
+    protected boolean isContentTypeStored() {
+        return false;
+    }
+
+    private UploadOnAgent createUploadOnAgent(ShareClient fileShare, FilePath workspace, List<String> dirs,
+                                              List<UploadObject> uploadObjects) throws IOException {
+        SasTokenIssuer sasIssuer = getWriteSasIssuer(Constants.FILE_STORAGE, fileShare.getShareName());
+        return new UploadOnAgent(Jenkins.get().getProxy(), sasIssuer.current(),
+                sasIssuer.export(workspace.getChannel()), getServiceData().getMaxConcurrency(),
+                getServiceData().getBlockBudget(), dirs, uploadObjects);
+    }
 
-        return new UploadObject(client.getFilePath(), path, client.getFileUrl(), sas, Constants.FILE_STORAGE,
+    private UploadObject generateUploadObject(FilePath path, ShareFileClient client, String shareName,
+                                              PartialBlobProperties properties,
+                                              Map<String, String> metadata) {
+        return new UploadObject(client.getFilePath(), path, client.getFileUrl(), Constants.FILE_STORAGE,
                 client.getAccountName(), shareName, properties, metadata);
     }
 
@@ -117,51 +129,104 @@ public class UploadToFileService extends UploadService {
         private static final int ERROR_ON_UPLOAD = 500;
 
         private final ProxyConfiguration proxy;
+        private final SasToken sasToken;
+        private final SasTokenProvider sasTokenProvider;
+        private final int maxConcurrency;
+        private final int blockBudget;
+        private final List<String> directories;
         private final List<UploadObject> uploadObjects;
 
-        UploadOnAgent(ProxyConfiguration proxy, List<UploadObject> uploadObjects) {
+        /**
+         * @param blockBudget range requests allowed in flight for all the large files, 0 for the default
+         * @param directories directories to create before uploading, ordered by depth
+         */
+        UploadOnAgent(ProxyConfiguration proxy, SasToken sasToken, SasTokenProvider sasTokenProvider,
+                      int maxConcurrency, int blockBudget, List<String> directories,
+                      List<UploadObject> uploadObjects) {
             this.proxy = proxy;
+            this.sasToken = sasToken;
+            this.sasTokenProvider = sasTokenProvider;
+            this.maxConcurrency = maxConcurrency;
+            this.blockBudget = blockBudget;
+            this.directories = directories;
             this.uploadObjects = uploadObjects;
         }
 
-        private ShareServiceClient getFileShareClient(UploadObject uploadObject) {
-            return new ShareServiceClientBuilder()
-                    .credential(new AzureSasCredential(uploadObject.getSas()))
-                    .httpClient(HttpClientRetriever.get(proxy))
-                    .endpoint(uploadObject.getUrl())
-                    .buildClient();
+        @Override
+        public List<UploadResult> invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            try {
+                return upload();
+            } finally {
+                AgentClientRegistry.release(sasTokenProvider);
+            }
         }
 
-        @Override
-        public List<UploadResult> invoke(File f, VirtualChannel channel) {
-            return uploadObjects.parallelStream()
-                    .map(uploadObject -> {
-                        ShareServiceClient fileShareClient = getFileShareClient(uploadObject);
-
-                        ShareClient shareClient = fileShareClient
-                                .getShareClient(uploadObject.getContainerOrShareName());
-                        ShareFileClient fileClient = shareClient.getFileClient(uploadObject.getName());
-                        return uploadCloudFile(fileClient, uploadObject);
-
-                    })
-                    .collect(Collectors.toList());
+        private List<UploadResult> upload() throws IOException, InterruptedException {
+            if (uploadObjects.isEmpty()) {
+                return new ArrayList<>();
+            }
+            UploadObject first = uploadObjects.get(0);
+            ShareServiceClient fileShareClient = AgentClientRegistry.getShareServiceClient(proxy, first.getUrl(),
+                    first.getContainerOrShareName(), sasToken, sasTokenProvider);
+            ShareDirectories.create(fileShareClient.getShareClient(first.getContainerOrShareName()), directories,
+                    maxConcurrency);
+
+            TransferConcurrencyController concurrency = new TransferConcurrencyController(maxConcurrency);
+            BlockBudget ranges = new BlockBudget(blockBudget, concurrency.getCeiling());
+            RangedFileUpload ranged = RangedFileUpload.fromSystemProperties();
+            ExecutorService agentExecutorService = Executors.newFixedThreadPool(concurrency.getCeiling());
+            List<Future<UploadResult>> futures = new ArrayList<>();
+            for (UploadObject uploadObject : uploadObjects) {
+                ShareClient shareClient = fileShareClient.getShareClient(uploadObject.getContainerOrShareName());
+                ShareFileClient fileClient = shareClient.getFileClient(uploadObject.getName());
+                futures.add(agentExecutorService.submit(() -> uploadCloudFile(fileClient, uploadObject,
+                        concurrency, ranges, ranged)));
+            }
+
+            List<UploadResult> results = new ArrayList<>();
+            try {
+                for (Future<UploadResult> future : futures) {
+                    results.add(future.get());
+                }
+            } catch (ExecutionException e) {
+                throw new IOException(e);
+            } finally {
+                agentExecutorService.shutdownNow();
+            }
+            return results;
         }
 
-        private UploadResult uploadCloudFile(ShareFileClient fileClient, UploadObject uploadObject) {
+        private UploadResult uploadCloudFile(ShareFileClient fileClient, UploadObject uploadObject,
+                                             TransferConcurrencyController concurrency, BlockBudget ranges,
+                                             RangedFileUpload ranged) {
             long startTime = System.currentTimeMillis();
             File file = new File(uploadObject.getSrc().getRemote());
             try {
-                long bytes = Files.size(file.toPath());
-                fileClient.create(bytes);
-
-                fileClient.uploadFromFile(file.getAbsolutePath());
-
-                long endTime = System.currentTimeMillis();
-
-                return new UploadResult(HttpStatus.SC_CREATED, null,
-                        uploadObject.getName(),
-                        uploadObject.getUrl(), file.length(), uploadObject.getStorageType(),
-                        startTime, endTime);
+                return concurrency.run(() -> {
+                    long uploadStart = System.currentTimeMillis();
+                    long bytes = Files.size(file.toPath());
+                    fileClient.create(bytes);
+
+                    if (ranged.isRanged(bytes)) {
+                        byte[] md5;
+                        try (BlockBudget.Allocation allocation = ranges.allocate(bytes, ranged.getRangeSize())) {
+                            md5 = ranged.upload(file, allocation.getConcurrency(), (offset, count, in) ->
+                                    fileClient.uploadRangeWithResponse(
+                                            new ShareFileUploadRangeOptions(in, count).setOffset(offset),
+                                            null, Context.NONE));
+                        }
+                        fileClient.setProperties(bytes, new ShareFileHttpHeaders().setContentMd5(md5), null, null);
+                    } else {
+                        fileClient.uploadFromFile(file.getAbsolutePath());
+                    }
+
+                    long endTime = System.currentTimeMillis();
+
+                    return new UploadResult(HttpStatus.SC_CREATED, null,
+                            uploadObject.getName(),
+                            uploadObject.getUrl(), bytes, uploadObject.getStorageType(),
+                            uploadStart, endTime);
+                }, UploadResult::getByteSize);
             } catch (Exception e) {
                 LOGGER.log(Level.SEVERE, "Failed uploading file", e);
                 return new UploadResult(ERROR_ON_UPLOAD,
@@ -187,26 +252,50 @@ public class UploadToFileService extends UploadService {
             }
 
             final FilePath workspacePath = serviceData.getRemoteWorkspace();
-            // Create a temp dir for the upload
-            final FilePath tempDir = workspacePath.createTempDir(ZIP_FOLDER_NAME, null);
-            final FilePath zipPath = tempDir.child(ZIP_NAME);
-
-            // zip included files into archive.zip file.
-            final DirScanner.Glob globScanner = new DirScanner.Glob(archiveIncludes, excludedFilesAndZip());
-            workspacePath.zip(zipPath.write(), globScanner);
-
             // When uploading the zip, do not add in the tempDir to the azure
-            String azureFileName = zipPath.getName();
+            String azureFileName = getArchiveName();
             if (!StringUtils.isBlank(serviceData.getVirtualPath())) {
                 azureFileName = serviceData.getVirtualPath() + azureFileName;
             }
 
             final ShareFileClient cloudFile = fileShare.getRootDirectoryClient().getFileClient(azureFileName);
-            Future<?> archiveUploadFuture = getExecutorService().submit(new FileUploadThread(cloudFile,
-                    zipPath, serviceData.getArchiveBlobs()));
-            archiveUploadFuture.get();
+            final List<String> archiveDirectories = directories.plan(Collections.singletonList(azureFileName));
+            if (serviceData.isStreamArchive()) {
+                ShareDirectories.create(fileShare, archiveDirectories, serviceData.getMaxConcurrency());
+                directories.created(archiveDirectories);
+                UploadObject archive = generateUploadObject(null, cloudFile, fileShare.getShareName(), null,
+                        updateMetadata(new HashMap<>()));
+                SasTokenIssuer sasIssuer = getWriteSasIssuer(Constants.FILE_STORAGE, fileShare.getShareName());
+                UploadResult result = workspacePath.act(new StreamingArchiveOnAgent(Jenkins.get().getProxy(),
+                        sasIssuer.current(), sasIssuer.export(workspacePath.getChannel()),
+                        serviceData.getArchiveFormat(), serviceData.getCompressionLevel(), archiveIncludes,
+                        excludedFilesAndZip(), archive));
+                // the agent can not replace files, the complete archive is moved over the previous one here
+                fileShare.getRootDirectoryClient().getFileClient(azureFileName + FileRangeOutputStream.PARTIAL_SUFFIX)
+                        .renameWithResponse(new ShareFileRenameOptions(azureFileName).setReplaceIfExists(true),
+                                null, Context.NONE);
+                updateAzureBlobs(Collections.singletonList(result), serviceData.getArchiveBlobs());
+                return;
+            }
+
+            // Create a temp dir for the upload
+            final FilePath tempDir = workspacePath.createTempDir(ZIP_FOLDER_NAME, null);
+            final FilePath zipPath = tempDir.child(getArchiveName());
+
+            // archive included files into the archive file.
+            workspacePath.act(new ArchiveOnAgent(serviceData.getArchiveFormat(), serviceData.getCompressionLevel(),
+                    archiveIncludes, excludedFilesAndZip(), zipPath.getRemote()));
+
+            UploadObject archive = generateUploadObject(zipPath, cloudFile, fileShare.getShareName(), null,
+                    updateMetadata(new HashMap<>()));
+            List<UploadResult> results = workspacePath.act(createUploadOnAgent(fileShare, workspacePath,
+                    archiveDirectories, Collections.singletonList(archive)));
+            directories.created(archiveDirectories);
+
+            updateAzureBlobs(results, serviceData.getArchiveBlobs());
+
             tempDir.deleteRecursive();
-        } catch (IOException | InterruptedException | URISyntaxException | ExecutionException e) {
+        } catch (IOException | InterruptedException | URISyntaxException e) {
             throw new WAStorageException("Fail to upload individual files to blob", e);
         }
     }
@@ -222,58 +311,53 @@ public class UploadToFileService extends UploadService {
         return fileShare;
     }
 
+    /**
+     * Deletes the previous contents of the share or virtual path, once per step: later calls do nothing, so the
+     * uploads of a file pattern are never deleted by the cleanup of the next one.
+     */
     private void cleanupFileShare(ShareClient fileShare) throws URISyntaxException {
         final UploadServiceData serviceData = getServiceData();
+        if (cleanedUp) {
+            return;
+        }
+        cleanedUp = true;
         // Delete previous contents if cleanup is needed
         if (serviceData.isCleanUpContainerOrShare() && fileShare.exists()) {
             println("Clean up existing files in file share " + serviceData.getFileShareName());
-            deleteFiles(fileShare, fileShare.getRootDirectoryClient().listFilesAndDirectories());
+            deleteTree(fileShare.getRootDirectoryClient());
         } else if (serviceData.isCleanUpVirtualPath()
                 && StringUtils.isNotBlank(serviceData.getVirtualPath()) && fileShare.exists()) {
             ShareDirectoryClient directory = fileShare.getDirectoryClient(serviceData.getVirtualPath());
             if (directory.exists()) {
                 println("Clean up existing files in file share directory " + serviceData.getVirtualPath());
-                deleteFiles(fileShare, directory.listFilesAndDirectories());
+                deleteTree(directory);
             }
         }
     }
 
-    private void ensureDirExist(ShareClient shareClient, String filePath) {
-        ShareDirectoryClient rootDirectoryClient = shareClient.getRootDirectoryClient();
-        if (!rootDirectoryClient.exists()) {
-            rootDirectoryClient.create();
-        }
-
-        String[] directories = filePath.split("/");
-        if (directories.length > 1) {
-            // remove filename
-            if (!filePath.endsWith("/")) {
-                directories = Arrays.copyOf(directories, directories.length - 1);
+    /**
+     * Deletes every file and directory under the directory, and the directory itself unless it is the root of the
+     * share. Subdirectories are listed and emptied in parallel, each directory being deleted once its whole tree
+     * is.
+     */
+    private void deleteTree(ShareDirectoryClient directory) {
+        new ShareTraversal(getServiceData().getMaxConcurrency()).walk(directory, null, new ShareTraversal.Visitor() {
+            @Override
+            public boolean enterDirectory(String path) {
+                return true;
             }
 
-            for (int i = 0; i < directories.length; i++) {
-                String path = getPath(directories, i);
-                ShareDirectoryClient directoryClient = shareClient.getDirectoryClient(path);
-                if (!directoryClient.exists()) {
-                    directoryClient.create();
-                }
+            @Override
+            public void visitFile(ShareDirectoryClient parent, ShareFileItem file, String path) {
+                parent.getFileClient(file.getName()).deleteIfExists();
             }
-        }
-    }
-
-    private String getPath(String[] directories, int i) {
-        String[] partialDirPath = Arrays.copyOfRange(directories, 0, i + 1);
-        return String.join("/", partialDirPath);
-    }
 
-    private void deleteFiles(ShareClient fileShare, PagedIterable<ShareFileItem> fileItems)  {
-        for (final ShareFileItem fileItem : fileItems) {
-            if (fileItem.isDirectory()) {
-                final ShareDirectoryClient directory = fileShare.getDirectoryClient(fileItem.getName());
-                deleteFiles(fileShare, directory.listFilesAndDirectories());
-            } else {
-                fileShare.getFileClient(fileItem.getName()).delete();
+            @Override
+            public void leaveDirectory(ShareDirectoryClient emptied) {
+                if (!emptied.getDirectoryPath().isEmpty()) {
+                    emptied.deleteIfExists();
+                }
             }
-        }
+        });
     }
 }
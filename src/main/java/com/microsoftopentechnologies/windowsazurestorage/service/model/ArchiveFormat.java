@@ -0,0 +1,38 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service.model;
+
+/**
+ * Format of the archive uploaded with the individual artifacts.
+ */
+public enum ArchiveFormat {
+    ZIP("archive.zip"),
+    TAR_ZSTD("archive.tar.zst");
+
+    private final String fileName;
+
+    ArchiveFormat(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * Name of the archive in the container or share, under the virtual path.
+     */
+    public String getFileName() {
+        return fileName;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service.model;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Maps the artifact names of a build to the content addressed blobs holding them.
+ * <p>
+ * In content addressable mode every file is stored once under {@code cas/sha256/ab/cd/abcd...}, whatever job or
+ * build published it, and each upload step writes a small manifest under {@code cas/manifests/} listing the names
+ * it published.
+ */
+public final class ArtifactManifest {
+    public static final String CONTENT_PREFIX = "cas/sha256/";
+    public static final String MANIFEST_PREFIX = "cas/manifests/";
+
+    private static final int VERSION = 1;
+    private static final int FAN_OUT_LENGTH = 2;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * Returns the name of the blob holding the content with the given digest. The first four hex digits of the
+     * digest are used as two levels of virtual directories so listings of the store stay small.
+     *
+     * @param sha256Hex hex encoded SHA-256 of the content
+     * @return the blob name
+     */
+    public static String contentKey(String sha256Hex) {
+        return CONTENT_PREFIX + sha256Hex.substring(0, FAN_OUT_LENGTH) + "/"
+                + sha256Hex.substring(FAN_OUT_LENGTH, 2 * FAN_OUT_LENGTH) + "/" + sha256Hex;
+    }
+
+    public synchronized void add(String name, String sha256Hex, long size) {
+        entries.put(name, new Entry(sha256Hex, size));
+    }
+
+    /**
+     * @return the content addressed blob holding each artifact, by artifact name
+     */
+    public synchronized Map<String, String> getContentKeys() {
+        Map<String, String> keys = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            keys.put(entry.getKey(), contentKey(entry.getValue().sha256));
+        }
+        return Collections.unmodifiableMap(keys);
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public synchronized String toJson() {
+        JSONArray artifacts = new JSONArray();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            JSONObject artifact = new JSONObject();
+            artifact.put("name", entry.getKey());
+            artifact.put("sha256", entry.getValue().sha256);
+            artifact.put("size", entry.getValue().size);
+            artifacts.add(artifact);
+        }
+        JSONObject manifest = new JSONObject();
+        manifest.put("version", VERSION);
+        manifest.put("artifacts", artifacts);
+        return manifest.toString();
+    }
+
+    public static ArtifactManifest fromJson(String json) {
+        ArtifactManifest manifest = new ArtifactManifest();
+        JSONArray artifacts = JSONObject.fromObject(json).getJSONArray("artifacts");
+        for (int i = 0; i < artifacts.size(); i++) {
+            JSONObject artifact = artifacts.getJSONObject(i);
+            manifest.add(artifact.getString("name"), artifact.getString("sha256"), artifact.getLong("size"));
+        }
+        return manifest;
+    }
+
+    private static final class Entry {
+        private final String sha256;
+        private final long size;
+
+        Entry(String sha256, long size) {
+            this.sha256 = sha256;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service.model;
+
+import com.microsoftopentechnologies.windowsazurestorage.AzureBlob;
+import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInfo;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.copyartifact.BuildSelector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Settings of a server side copy of the artifacts of a build. The storage account of the service data is the one
+ * holding the artifacts of the source build, the destination may be another one.
+ */
+public class CopyServiceData extends ServiceData {
+    private String projectName;
+    private BuildSelector buildSelector;
+    private String includeFilesPattern;
+    private String excludeFilesPattern;
+    private boolean includeArchiveZips;
+    private StorageAccountInfo destinationStorageAccountInfo;
+    private String destinationCredentialsId;
+    private String containerName;
+    private String virtualPath;
+    private final List<AzureBlob> copiedBlobs = Collections.synchronizedList(new ArrayList<>());
+
+    public CopyServiceData(Run<?, ?> run,
+                           TaskListener taskListener,
+                           StorageAccountInfo storageAccountInfo) {
+        super(run, null, null, taskListener, storageAccountInfo);
+    }
+
+    public String getProjectName() {
+        return projectName;
+    }
+
+    public void setProjectName(String projectName) {
+        this.projectName = projectName;
+    }
+
+    public BuildSelector getBuildSelector() {
+        return buildSelector;
+    }
+
+    public void setBuildSelector(BuildSelector buildSelector) {
+        this.buildSelector = buildSelector;
+    }
+
+    public String getIncludeFilesPattern() {
+        return includeFilesPattern;
+    }
+
+    public void setIncludeFilesPattern(String includeFilesPattern) {
+        this.includeFilesPattern = includeFilesPattern;
+    }
+
+    public String getExcludeFilesPattern() {
+        return excludeFilesPattern;
+    }
+
+    public void setExcludeFilesPattern(String excludeFilesPattern) {
+        this.excludeFilesPattern = excludeFilesPattern;
+    }
+
+    public boolean isIncludeArchiveZips() {
+        return includeArchiveZips;
+    }
+
+    public void setIncludeArchiveZips(boolean includeArchiveZips) {
+        this.includeArchiveZips = includeArchiveZips;
+    }
+
+    public StorageAccountInfo getDestinationStorageAccountInfo() {
+        return destinationStorageAccountInfo;
+    }
+
+    public void setDestinationStorageAccountInfo(StorageAccountInfo destinationStorageAccountInfo) {
+        this.destinationStorageAccountInfo = destinationStorageAccountInfo;
+    }
+
+    public String getDestinationCredentialsId() {
+        return destinationCredentialsId;
+    }
+
+    public void setDestinationCredentialsId(String destinationCredentialsId) {
+        this.destinationCredentialsId = destinationCredentialsId;
+    }
+
+    public String getContainerName() {
+        return containerName;
+    }
+
+    public void setContainerName(String containerName) {
+        this.containerName = containerName;
+    }
+
+    public String getVirtualPath() {
+        return virtualPath;
+    }
+
+    public void setVirtualPath(String virtualPath) {
+        this.virtualPath = virtualPath;
+    }
+
+    /**
+     * The blobs created by the copy, to be recorded on the current build.
+     */
+    public List<AzureBlob> getCopiedBlobs() {
+        return copiedBlobs;
+    }
+}
@@ -36,6 +36,8 @@ public class DownloadServiceData extends ServiceData {
     private String fileShare;
     private String downloadDirLoc;
     private boolean flattenDirectories;
+    private boolean incremental;
+    private boolean cacheOnAgent;
     private boolean deleteFromAzureAfterDownload;
     private String downloadType;
     private String projectName;
@@ -100,6 +102,22 @@ public class DownloadServiceData extends ServiceData {
         this.flattenDirectories = flattenDirectories;
     }
 
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public boolean isCacheOnAgent() {
+        return cacheOnAgent;
+    }
+
+    public void setCacheOnAgent(boolean cacheOnAgent) {
+        this.cacheOnAgent = cacheOnAgent;
+    }
+
     public String getContainerName() {
         return containerName;
     }
@@ -0,0 +1,45 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service.model;
+
+import java.io.Serializable;
+
+/**
+ * A shared access signature together with the time it stops being valid.
+ */
+public class SasToken implements Serializable {
+    private static final long serialVersionUID = 2471539034729551184L;
+
+    private final String token;
+    private final long expiresOn;
+
+    /**
+     * @param token     The SAS query string, without the leading question mark.
+     * @param expiresOn Expiry time of the token in epoch milliseconds.
+     */
+    public SasToken(String token, long expiresOn) {
+        this.token = token;
+        this.expiresOn = expiresOn;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public long getExpiresOn() {
+        return expiresOn;
+    }
+}
@@ -29,6 +29,7 @@ public abstract class ServiceData {
     private final TaskListener taskListener;
     private final StorageAccountInfo storageAccountInfo;
     private boolean verbose;
+    private int maxConcurrency;
 
     protected ServiceData(Run<?, ?> run,
                           FilePath workspace,
@@ -50,6 +51,17 @@ public abstract class ServiceData {
         this.verbose = verbose;
     }
 
+    /**
+     * Upper bound of the transfers run at the same time for this job, 0 when only the global bound applies.
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
     public StorageAccountInfo getStorageAccountInfo() {
         return storageAccountInfo;
     }
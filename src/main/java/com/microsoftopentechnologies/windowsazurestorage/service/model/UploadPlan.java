@@ -0,0 +1,69 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.microsoftopentechnologies.windowsazurestorage.service.model;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settings of an upload step resolved once on the controller: the blob properties and metadata shared by every
+ * uploaded file, and what the agent needs to know to select and describe the files. Building the upload objects
+ * from it needs no further call to the agent nor to the build environment.
+ */
+public final class UploadPlan {
+    private final PartialBlobProperties blobProperties;
+    private final boolean detectContentType;
+    private final Map<String, String> metadata;
+    private final long modifiedSince;
+
+    /**
+     * @param blobProperties    properties of every uploaded blob
+     * @param detectContentType whether the content type of each file is detected on the agent
+     * @param metadata          metadata of every uploaded file
+     * @param modifiedSince     files modified before this time are left out, {@link Long#MIN_VALUE} for none
+     */
+    public UploadPlan(PartialBlobProperties blobProperties, boolean detectContentType, Map<String, String> metadata,
+                      long modifiedSince) {
+        this.blobProperties = blobProperties;
+        this.detectContentType = detectContentType;
+        this.metadata = Collections.unmodifiableMap(new HashMap<>(metadata));
+        this.modifiedSince = modifiedSince;
+    }
+
+    /**
+     * @param detectedContentType content type detected on the agent, {@code null} to keep the configured one
+     * @return the properties of a blob, a new instance the caller may change
+     */
+    public PartialBlobProperties blobProperties(String detectedContentType) {
+        return new PartialBlobProperties(blobProperties.getContentEncoding(), blobProperties.getContentLanguage(),
+                blobProperties.getCacheControl(),
+                detectedContentType != null ? detectedContentType : blobProperties.getContentType());
+    }
+
+    public boolean isDetectContentType() {
+        return detectContentType;
+    }
+
+    public Map<String, String> getMetadata() {
+        return metadata;
+    }
+
+    public long getModifiedSince() {
+        return modifiedSince;
+    }
+}
@@ -41,10 +41,17 @@ public class UploadServiceData extends ServiceData {
     private String removePrefixPath;
     private UploadType uploadType;
     private boolean onlyUploadModifiedArtifacts;
+    private boolean onlyUploadChangedContent;
+    private boolean contentAddressable;
+    private boolean streamArchive;
+    private ArchiveFormat archiveFormat = ArchiveFormat.ZIP;
+    private int compressionLevel;
+    private AzureBlob manifestBlob;
     private final List<AzureBlob> individualBlobs = Collections.synchronizedList(new ArrayList<>());
     private final List<AzureBlob> archiveBlobs = Collections.synchronizedList(new ArrayList<>());
     private List<AzureBlobMetadataPair> azureBlobMetadata;
     private String credentialsId;
+    private int blockBudget;
 
     public UploadServiceData(Run<?, ?> run,
                              FilePath workspace,
@@ -179,4 +186,72 @@ public class UploadServiceData extends ServiceData {
     public void setOnlyUploadModifiedArtifacts(boolean onlyUploadModifiedArtifacts) {
         this.onlyUploadModifiedArtifacts = onlyUploadModifiedArtifacts;
     }
+
+    /**
+     * Whether files are stored once under their content hash, with a manifest mapping their names to it.
+     */
+    public boolean isContentAddressable() {
+        return contentAddressable;
+    }
+
+    public void setContentAddressable(boolean contentAddressable) {
+        this.contentAddressable = contentAddressable;
+    }
+
+    /**
+     * The manifest written by this upload in content addressable mode, {@code null} otherwise.
+     */
+    public AzureBlob getManifestBlob() {
+        return manifestBlob;
+    }
+
+    public void setManifestBlob(AzureBlob manifestBlob) {
+        this.manifestBlob = manifestBlob;
+    }
+
+    /**
+     * Whether the archive is zipped straight into the storage service instead of a temporary file on the agent.
+     */
+    public boolean isStreamArchive() {
+        return streamArchive;
+    }
+
+    public void setStreamArchive(boolean streamArchive) {
+        this.streamArchive = streamArchive;
+    }
+
+    public ArchiveFormat getArchiveFormat() {
+        return archiveFormat;
+    }
+
+    public void setArchiveFormat(ArchiveFormat archiveFormat) {
+        this.archiveFormat = archiveFormat == null ? ArchiveFormat.ZIP : archiveFormat;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public boolean isOnlyUploadChangedContent() {
+        return onlyUploadChangedContent;
+    }
+
+    public void setOnlyUploadChangedContent(boolean onlyUploadChangedContent) {
+        this.onlyUploadChangedContent = onlyUploadChangedContent;
+    }
+
+    /**
+     * Block requests the agent may have in flight for all the uploaded files, 0 for the default.
+     */
+    public int getBlockBudget() {
+        return blockBudget;
+    }
+
+    public void setBlockBudget(int blockBudget) {
+        this.blockBudget = blockBudget;
+    }
 }
@@ -0,0 +1,63 @@
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ServiceClientCacheTest {
+
+    @Test
+    void testClientIsReusedForSameKey() {
+        ServiceClientCache<Object> cache = new ServiceClientCache<>(4);
+        AtomicInteger built = new AtomicInteger();
+
+        Object first = cache.get("account", "https://account.blob.core.windows.net/", "default", "fp1",
+                () -> new Object[]{built.incrementAndGet()});
+        Object second = cache.get("account", "https://account.blob.core.windows.net/", "default", "fp1",
+                () -> new Object[]{built.incrementAndGet()});
+
+        assertSame(first, second);
+        assertEquals(1, built.get());
+    }
+
+    @Test
+    void testRetryProfileIsPartOfTheKey() {
+        ServiceClientCache<Object> cache = new ServiceClientCache<>(4);
+
+        Object withRetry = cache.get("account", "endpoint", "default", "fp1", Object::new);
+        Object withoutRetry = cache.get("account", "endpoint", "none", "fp1", Object::new);
+
+        assertNotSame(withRetry, withoutRetry);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void testChangedCredentialReplacesClient() {
+        ServiceClientCache<Object> cache = new ServiceClientCache<>(4);
+
+        Object oldKey = cache.get("account", "endpoint", "default", "fp1", Object::new);
+        Object newKey = cache.get("account", "endpoint", "default", "fp2", Object::new);
+
+        assertNotSame(oldKey, newKey);
+        assertEquals(1, cache.size());
+        assertSame(newKey, cache.get("account", "endpoint", "default", "fp2", Object::new));
+    }
+
+    @Test
+    void testLeastRecentlyUsedClientIsEvicted() {
+        ServiceClientCache<Object> cache = new ServiceClientCache<>(2);
+
+        Object a = cache.get("a", "endpoint", "default", "fp", Object::new);
+        cache.get("b", "endpoint", "default", "fp", Object::new);
+        // touch a so b becomes the eldest entry
+        cache.get("a", "endpoint", "default", "fp", Object::new);
+        cache.get("c", "endpoint", "default", "fp", Object::new);
+
+        assertEquals(2, cache.size());
+        assertSame(a, cache.get("a", "endpoint", "default", "fp", Object::new));
+    }
+}
@@ -0,0 +1,88 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import hudson.FilePath;
+import hudson.util.DirScanner;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the single threaded {@link FilePath#zip} used before with {@link ParallelZipWriter}, on a mix of
+ * compressible build output and already compressed jars.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ArchiveBenchmark {
+    private static final String[] WORDS = {"build", "test", "artifact", "INFO", "compile", "jenkins", "azure"};
+
+    @Param({"64"})
+    public int files;
+
+    @Param({"4"})
+    public int fileSizeMb;
+
+    private File workspace;
+
+    @Setup
+    public void setUp() throws Exception {
+        workspace = Files.createTempDirectory("archive-benchmark").toFile();
+        Random random = new Random(files);
+        int size = fileSizeMb * 1024 * 1024;
+        for (int i = 0; i < files; i++) {
+            byte[] content;
+            String name;
+            if (i % 4 == 0) {
+                content = new byte[size];
+                random.nextBytes(content);
+                name = "lib/module-" + i + ".jar";
+            } else {
+                StringBuilder text = new StringBuilder(size);
+                while (text.length() < size) {
+                    text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(1000)).append('\n');
+                }
+                content = text.toString().getBytes(StandardCharsets.UTF_8);
+                name = "logs/output-" + i + ".log";
+            }
+            File file = new File(workspace, name);
+            Files.createDirectories(file.getParentFile().toPath());
+            Files.write(file.toPath(), content);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(workspace);
+    }
+
+    @Benchmark
+    public void filePathZip() throws Exception {
+        new FilePath(workspace).zip(OutputStream.nullOutputStream(), new DirScanner.Glob("**/*", null));
+    }
+
+    @Benchmark
+    public void parallelZip() throws Exception {
+        new ParallelZipWriter(0, Runtime.getRuntime().availableProcessors(), null).write(workspace,
+                new DirScanner.Glob("**/*", null), OutputStream.nullOutputStream());
+    }
+}
@@ -0,0 +1,21 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of this package matching the {@code benchmark} system property, for example
+ * {@code mvn test -Dtest=BenchmarkRunnerTest -Dbenchmark=ArchiveBenchmark}. Skipped otherwise.
+ */
+class BenchmarkRunnerTest {
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = ".+")
+    void runBenchmarks() throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(getClass().getPackage().getName() + "\\..*" + System.getProperty("benchmark") + ".*")
+                .build()).run();
+    }
+}
@@ -0,0 +1,91 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.http.rest.Response;
+import com.azure.storage.blob.batch.BlobBatch;
+import com.azure.storage.blob.batch.BlobBatchClient;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BlobBatchDeleterTest {
+    private static final String URL = "https://account.blob.core.windows.net/artifacts/";
+
+    @Test
+    void testBlobsAreDeletedInFullBatches() throws Exception {
+        BlobBatchClient batchClient = batchClient(new HashMap<>());
+        BlobBatchDeleter deleter = new BlobBatchDeleter(batchClient, 2);
+
+        for (int i = 0; i < BlobBatchDeleter.MAX_BATCH_SIZE + 1; i++) {
+            deleter.delete(URL + i);
+        }
+
+        assertEquals(BlobBatchDeleter.MAX_BATCH_SIZE + 1, deleter.finish());
+        verify(batchClient, times(2)).submitBatchWithResponse(any(BlobBatch.class), eq(false), isNull(), any());
+    }
+
+    @Test
+    void testFailuresAreReportedTogetherAndSuccessesCounted() throws Exception {
+        Map<String, Integer> statuses = new HashMap<>();
+        statuses.put(URL + "gone", 404);
+        statuses.put(URL + "leased", 412);
+        statuses.put(URL + "forbidden", 403);
+        BlobBatchDeleter deleter = new BlobBatchDeleter(batchClient(statuses), 0);
+
+        deleter.delete(URL + "a");
+        deleter.delete(URL + "leased");
+        deleter.delete(URL + "gone");
+        deleter.delete(URL + "forbidden");
+        deleter.delete(URL + "b");
+
+        WAStorageException e = assertThrows(WAStorageException.class, deleter::finish);
+        assertEquals(2, deleter.getDeleted());
+        assertTrue(e.getMessage().contains(URL + "leased"));
+        assertTrue(e.getMessage().contains(URL + "forbidden"));
+        assertFalse(e.getMessage().contains(URL + "gone"));
+    }
+
+    /**
+     * A batch client answering every deletion with 202 Accepted, or the status given for its URL.
+     */
+    @SuppressWarnings("unchecked")
+    private static BlobBatchClient batchClient(Map<String, Integer> statuses) {
+        BlobBatchClient batchClient = mock(BlobBatchClient.class);
+        when(batchClient.getBlobBatch()).thenAnswer(invocation -> {
+            BlobBatch batch = mock(BlobBatch.class);
+            when(batch.deleteBlob(anyString(), isNull(), isNull())).thenAnswer(call -> {
+                int status = statuses.getOrDefault(call.<String>getArgument(0), 202);
+                Response<Void> response = mock(Response.class);
+                if (status < 300) {
+                    when(response.getStatusCode()).thenReturn(status);
+                } else {
+                    BlobStorageException error = mock(BlobStorageException.class);
+                    when(error.getStatusCode()).thenReturn(status);
+                    when(error.getMessage()).thenReturn("Status code " + status);
+                    when(response.getStatusCode()).thenThrow(error);
+                }
+                return response;
+            });
+            return batch;
+        });
+        when(batchClient.submitBatchWithResponse(any(BlobBatch.class), anyBoolean(), isNull(), any()))
+                .thenReturn(null);
+        return batchClient;
+    }
+}
@@ -0,0 +1,73 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.storage.blob.models.ParallelTransferOptions;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BlockBudgetTest {
+    private static final long MB = 1024L * 1024;
+
+    @Test
+    void testSmallFileTakesSingleRequest() throws Exception {
+        BlockBudget budget = new BlockBudget(8, 1);
+
+        try (BlockBudget.Allocation allocation = budget.allocate(MB)) {
+            assertEquals(1, allocation.getConcurrency());
+            assertEquals(7, budget.available());
+        }
+        assertEquals(8, budget.available());
+    }
+
+    @Test
+    void testLargeFilesShareTheBudget() throws Exception {
+        BlockBudget budget = new BlockBudget(8, 2);
+
+        try (BlockBudget.Allocation first = budget.allocate(1024 * MB);
+             BlockBudget.Allocation second = budget.allocate(3 * BlockBudget.BLOCK_SIZE);
+             BlockBudget.Allocation third = budget.allocate(MB)) {
+            assertEquals(4, first.getConcurrency());
+            assertEquals(3, second.getConcurrency());
+            assertEquals(1, third.getConcurrency());
+            assertEquals(0, budget.available());
+        }
+        assertEquals(8, budget.available());
+    }
+
+    @Test
+    void testLargeFileLeavesOneRequestForSmallFiles() throws Exception {
+        BlockBudget budget = new BlockBudget(8, 1);
+
+        try (BlockBudget.Allocation large = budget.allocate(1024 * MB)) {
+            assertEquals(7, large.getConcurrency());
+            try (BlockBudget.Allocation small = budget.allocate(MB)) {
+                assertEquals(1, small.getConcurrency());
+            }
+        }
+        assertEquals(8, budget.available());
+    }
+
+    @Test
+    void testTransferOptions() throws Exception {
+        BlockBudget budget = new BlockBudget(0, 1);
+
+        try (BlockBudget.Allocation allocation = budget.allocate(3 * BlockBudget.BLOCK_SIZE)) {
+            ParallelTransferOptions options = allocation.toTransferOptions();
+            assertEquals(3, options.getMaxConcurrency());
+            assertEquals(BlockBudget.BLOCK_SIZE, options.getBlockSizeLong());
+            assertEquals(BlockBudget.BLOCK_SIZE, options.getMaxSingleUploadSizeLong());
+        }
+        assertEquals(BlockBudget.DEFAULT_BUDGET, budget.available());
+    }
+
+    @Test
+    void testBlockSizeKeepsBlobUnderBlockLimit() {
+        assertEquals(BlockBudget.BLOCK_SIZE, BlockBudget.blockSizeFor(0));
+        assertEquals(BlockBudget.BLOCK_SIZE, BlockBudget.blockSizeFor(100 * 1024 * MB));
+
+        long huge = 1024L * 1024 * MB;
+        long blockSize = BlockBudget.blockSizeFor(huge);
+        assertEquals(huge / BlockBudget.MAX_BLOCKS_PER_BLOB + 1, blockSize);
+        assertEquals(BlockBudget.MAX_BLOCK_SIZE, BlockBudget.blockSizeFor(Long.MAX_VALUE / 2));
+    }
+}
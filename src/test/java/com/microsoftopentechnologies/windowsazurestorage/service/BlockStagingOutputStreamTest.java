@@ -0,0 +1,77 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.util.Context;
+import com.azure.storage.blob.options.BlockBlobCommitBlockListOptions;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class BlockStagingOutputStreamTest {
+
+    @Test
+    void testContentIsStagedInBlocksAndCommittedInOrder() throws Exception {
+        BlockBlobClient blob = mock(BlockBlobClient.class);
+        Map<String, String> staged = new ConcurrentHashMap<>();
+        doAnswer(invocation -> {
+            InputStream data = invocation.getArgument(1);
+            staged.put(invocation.getArgument(0), IOUtils.toString(data, StandardCharsets.UTF_8));
+            return null;
+        }).when(blob).stageBlock(anyString(), any(InputStream.class), anyLong());
+
+        try (BlockStagingOutputStream out = new BlockStagingOutputStream(blob, null, Collections.emptyMap(), 4, 2)) {
+            out.write("hello world".getBytes(StandardCharsets.UTF_8));
+            out.commit();
+        }
+
+        ArgumentCaptor<BlockBlobCommitBlockListOptions> options =
+                ArgumentCaptor.forClass(BlockBlobCommitBlockListOptions.class);
+        verify(blob).commitBlockListWithResponse(options.capture(), eq(null), eq(Context.NONE));
+        assertEquals(Arrays.asList(BlockStagingOutputStream.blockId(0), BlockStagingOutputStream.blockId(1),
+                BlockStagingOutputStream.blockId(2)), options.getValue().getBase64BlockIds());
+        assertEquals("hell", staged.get(BlockStagingOutputStream.blockId(0)));
+        assertEquals("o wo", staged.get(BlockStagingOutputStream.blockId(1)));
+        assertEquals("rld", staged.get(BlockStagingOutputStream.blockId(2)));
+    }
+
+    @Test
+    void testFailedBlockIsNotCommitted() throws Exception {
+        BlockBlobClient blob = mock(BlockBlobClient.class);
+        doThrow(new IllegalStateException("boom")).when(blob).stageBlock(anyString(), any(InputStream.class),
+                anyLong());
+
+        try (BlockStagingOutputStream out = new BlockStagingOutputStream(blob, null, Collections.emptyMap(), 4, 1)) {
+            assertThrows(IOException.class, () -> {
+                out.write("hello".getBytes(StandardCharsets.UTF_8));
+                out.commit();
+            });
+        }
+        verify(blob, never()).commitBlockListWithResponse(any(), any(), any());
+    }
+
+    @Test
+    void testBlockIdsHaveTheSameLength() {
+        assertEquals(BlockStagingOutputStream.blockId(0).length(),
+                BlockStagingOutputStream.blockId(BlockBudget.MAX_BLOCKS_PER_BLOB - 1).length());
+    }
+}
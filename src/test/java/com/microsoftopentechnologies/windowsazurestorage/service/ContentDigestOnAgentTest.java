@@ -0,0 +1,52 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.MessageDigestAlgorithms;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ContentDigestOnAgentTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testMd5MatchesAzureContentMd5() throws Exception {
+        File hello = new File(tempDir, "hello.txt");
+        Files.write(hello.toPath(), "hello".getBytes(StandardCharsets.UTF_8));
+        File empty = new File(tempDir, "empty.txt");
+        Files.write(empty.toPath(), new byte[0]);
+
+        Map<String, byte[]> hashes = new ContentDigestOnAgent(
+                Arrays.asList(hello.getAbsolutePath(), empty.getAbsolutePath()), MessageDigestAlgorithms.MD5)
+                .invoke(tempDir, null);
+
+        assertEquals("XUFAKrxLKna5cZ2REBfFkg==",
+                Base64.getEncoder().encodeToString(hashes.get(hello.getAbsolutePath())));
+        assertEquals("1B2M2Y8AsgTpgAmY7PhCfg==",
+                Base64.getEncoder().encodeToString(hashes.get(empty.getAbsolutePath())));
+    }
+
+    @Test
+    void testSha256() throws Exception {
+        File hello = new File(tempDir, "hello.txt");
+        Files.write(hello.toPath(), "hello".getBytes(StandardCharsets.UTF_8));
+
+        Map<String, byte[]> hashes = new ContentDigestOnAgent(
+                Collections.singletonList(hello.getAbsolutePath()), MessageDigestAlgorithms.SHA_256)
+                .invoke(tempDir, null);
+
+        assertEquals("2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824",
+                Hex.encodeHexString(hashes.get(hello.getAbsolutePath())));
+    }
+}
@@ -0,0 +1,93 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.microsoftopentechnologies.windowsazurestorage.AzureBlob;
+import com.microsoftopentechnologies.windowsazurestorage.AzureBlobAction;
+import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.CopyServiceData;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CopyFromBuildServiceTest {
+
+    @Test
+    void testShouldCopy() {
+        assertTrue(shouldCopy("**/*", null, "dist/app.jar"));
+        assertTrue(shouldCopy("**/*.jar, **/*.war", "", "dist/app.war"));
+        assertFalse(shouldCopy("**/*.jar", null, "dist/app.war"));
+        assertFalse(shouldCopy("**/*", "**/*-sources.jar", "dist/app-sources.jar"));
+        assertFalse(shouldCopy("", null, "dist/app.jar"));
+    }
+
+    @Test
+    void testSelectArtifactsFiltersByPattern() {
+        CopyFromBuildService service = service("dist/**/*.jar", "**/*-sources.jar", false);
+        AzureBlobAction action = new AzureBlobAction(Arrays.asList(
+                blob("dist/app.jar"), blob("dist/lib/dep.jar"), blob("dist/app-sources.jar"), blob("README.md")),
+                blob("archive.zip"), false, null);
+
+        assertEquals(Arrays.asList("dist/app.jar", "dist/lib/dep.jar"), names(service.selectArtifacts(action)));
+    }
+
+    @Test
+    void testSelectArtifactsIncludesArchiveWhenAsked() {
+        AzureBlobAction action = new AzureBlobAction(new ArrayList<>(Collections.singletonList(blob("dist/app.jar"))),
+                blob("archive.zip"), false, null);
+
+        assertEquals(Collections.singletonList("dist/app.jar"),
+                names(service("**/*", null, false).selectArtifacts(action)));
+        assertEquals(Arrays.asList("dist/app.jar", "archive.zip"),
+                names(service("**/*", null, true).selectArtifacts(action)));
+    }
+
+    @Test
+    void testNothingToCopyWithoutArtifacts() {
+        CopyFromBuildService service = service("**/*", null, true);
+
+        assertTrue(service.selectArtifacts(null).isEmpty());
+        assertTrue(service.selectArtifacts(new AzureBlobAction(new ArrayList<>(), null, false, null)).isEmpty());
+        assertTrue(service("**/*.war", null, true).selectArtifacts(new AzureBlobAction(
+                Collections.singletonList(blob("dist/app.jar")), null, false, null)).isEmpty());
+    }
+
+    @Test
+    void testDestinationNameKeepsDirectoriesUnderVirtualPath() {
+        assertEquals("dist/lib/dep.jar", CopyFromBuildService.destinationName("", "dist/lib/dep.jar"));
+        assertEquals("dist/lib/dep.jar", CopyFromBuildService.destinationName(null, "dist/lib/dep.jar"));
+        assertEquals("release/1.0/dist/lib/dep.jar",
+                CopyFromBuildService.destinationName("release/1.0/", "dist/lib/dep.jar"));
+    }
+
+    private static boolean shouldCopy(String includes, String excludes, String name) {
+        return CopyFromBuildService.shouldCopy(CopyFromBuildService.compilePatterns(includes),
+                CopyFromBuildService.compilePatterns(excludes), name);
+    }
+
+    private static CopyFromBuildService service(String includes, String excludes, boolean includeArchiveZips) {
+        CopyServiceData data = new CopyServiceData(null, null, null);
+        data.setIncludeFilesPattern(includes);
+        data.setExcludeFilesPattern(excludes);
+        data.setIncludeArchiveZips(includeArchiveZips);
+        return new CopyFromBuildService(data);
+    }
+
+    private static AzureBlob blob(String name) {
+        return new AzureBlob(name, "https://account.blob.core.windows.net/artifacts/" + name, 1,
+                Constants.BLOB_STORAGE, "source-credentials", "artifacts");
+    }
+
+    private static List<String> names(List<AzureBlob> blobs) {
+        List<String> names = new ArrayList<>();
+        for (AzureBlob blob : blobs) {
+            names.add(blob.getBlobName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,132 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ArtifactManifest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DownloadCacheTest {
+    private static final String URL = "https://account.blob.core.windows.net/artifacts/lib/a.jar";
+    private static final String HELLO = "md5-5d41402abc4b2a76b9719d911017c592";
+    private static final String OLDER = "md5-6a3a6f6e33217afa6373df9d6b2e8a00";
+    private static final String NEWER = "md5-0c10f4a0c12ba89211235026b861263d";
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testKeyPrefersContentIdentity() {
+        String sha256 = "ab" + "cd".repeat(31);
+        assertEquals("sha256-" + sha256,
+                DownloadCache.key(ArtifactManifest.contentKey(sha256), URL, "\"0x1\"", "XUFAKrxLKna5cZ2REBfFkg=="));
+        assertEquals("md5-5d41402abc4b2a76b9719d911017c592",
+                DownloadCache.key("lib/a.jar", URL, "\"0x1\"", "XUFAKrxLKna5cZ2REBfFkg=="));
+        assertTrue(DownloadCache.key("lib/a.jar", URL, "\"0x1\"", null).startsWith("etag-"));
+        assertNull(DownloadCache.key("lib/a.jar", URL, null, null));
+    }
+
+    @Test
+    void testContentIsFetchedOnceAndLinked() throws Exception {
+        DownloadCache cache = new DownloadCache(new File(tempDir, "cache"), Long.MAX_VALUE);
+        AtomicInteger fills = new AtomicInteger();
+        File first = new File(tempDir, "ws1/a.jar");
+        File second = new File(tempDir, "ws2/a.jar");
+        first.getParentFile().mkdirs();
+        second.getParentFile().mkdirs();
+
+        assertTrue(cache.materialize(HELLO, 5, first, target -> fill(target, "hello", fills)));
+        assertFalse(cache.materialize(HELLO, 5, second, target -> fill(target, "hello", fills)));
+
+        assertEquals(1, fills.get());
+        assertEquals("hello", new String(Files.readAllBytes(second.toPath()), StandardCharsets.UTF_8));
+        assertTrue(Files.isSameFile(first.toPath(), second.toPath()));
+    }
+
+    @Test
+    void testConcurrentDownloadsOfTheSameContentFetchOnce() throws Exception {
+        DownloadCache cache = new DownloadCache(new File(tempDir, "cache"), Long.MAX_VALUE);
+        AtomicInteger fills = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                File destination = new File(tempDir, "copy" + i);
+                futures.add(executor.submit(() -> cache.materialize(HELLO, -1, destination,
+                        target -> fill(target, "hello", fills))));
+            }
+            for (Future<Boolean> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, fills.get());
+    }
+
+    @Test
+    void testLeastRecentlyUsedCopiesAreEvicted() throws Exception {
+        DownloadCache cache = new DownloadCache(new File(tempDir, "cache"), 8);
+        AtomicInteger fills = new AtomicInteger();
+        cache.materialize(OLDER, 5, new File(tempDir, "old"), target -> fill(target, "older", fills));
+        File oldLock = new File(tempDir, "cache/objects/6a/" + OLDER + ".lock");
+        assertTrue(oldLock.setLastModified(oldLock.lastModified() - 60_000));
+        cache.materialize(NEWER, 5, new File(tempDir, "new"), target -> fill(target, "newer", fills));
+
+        cache.evict();
+
+        assertFalse(new File(tempDir, "cache/objects/6a/" + OLDER).exists());
+        assertFalse(oldLock.exists());
+        assertTrue(new File(tempDir, "cache/objects/0c/" + NEWER).exists());
+        assertTrue(new File(tempDir, "old").exists());
+    }
+
+    @Test
+    void testContentNotMatchingItsKeyIsDiscarded() throws Exception {
+        DownloadCache cache = new DownloadCache(new File(tempDir, "cache"), Long.MAX_VALUE);
+        AtomicInteger fills = new AtomicInteger();
+        File poisoned = new File(tempDir, "poisoned");
+
+        assertThrows(IOException.class,
+                () -> cache.materialize(HELLO, 4, poisoned, target -> fill(target, "evil", fills)));
+
+        assertFalse(poisoned.exists());
+        assertFalse(new File(tempDir, "cache/objects/5d/" + HELLO).exists());
+        String[] left = new File(tempDir, "cache/tmp").list();
+        assertEquals(0, left == null ? 0 : left.length);
+    }
+
+    @Test
+    void testLockOfFailedFillIsEvicted() throws Exception {
+        DownloadCache cache = new DownloadCache(new File(tempDir, "cache"), 0);
+        assertThrows(IOException.class, () -> cache.materialize(HELLO, 5, new File(tempDir, "a"), target -> {
+            throw new IOException("fetch failed");
+        }));
+        File lock = new File(tempDir, "cache/objects/5d/" + HELLO + ".lock");
+        assertTrue(lock.exists());
+
+        cache.evict();
+
+        assertFalse(lock.exists());
+    }
+
+    private static void fill(File target, String content, AtomicInteger fills) throws IOException {
+        fills.incrementAndGet();
+        Files.write(target.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
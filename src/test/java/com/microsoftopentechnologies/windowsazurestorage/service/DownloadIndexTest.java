@@ -0,0 +1,102 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DownloadIndexTest {
+    private static final String SOURCE = "blob|artifacts|lib/a.jar";
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testCommitKeepsPreviousEntries() throws Exception {
+        File indexFile = new File(tempDir, "ws@tmp/" + DownloadIndex.FILE_NAME);
+        File a = write("a.jar", "a");
+        File b = write("b.jar", "b");
+
+        DownloadIndex first = DownloadIndex.open("first", indexFile);
+        first.record("a.jar", SOURCE, "\"0x1\"", "md5-a", a);
+        DownloadIndex.commit("first", indexFile);
+
+        DownloadIndex second = DownloadIndex.open("second", indexFile);
+        second.record("b.jar", "blob|artifacts|lib/b.jar", "\"0x2\"", null, b);
+        DownloadIndex.commit("second", indexFile);
+
+        Map<String, DownloadIndex.Entry> entries = DownloadIndex.read(indexFile);
+        assertEquals(2, entries.size());
+        assertEquals("\"0x1\"", entries.get("a.jar").getEtag());
+        assertEquals("\"0x2\"", entries.get("b.jar").getEtag());
+        assertEquals(1, indexFile.getParentFile().list().length);
+    }
+
+    @Test
+    void testIntactEntryRequiresUntouchedLocalFile() throws Exception {
+        File indexFile = new File(tempDir, DownloadIndex.FILE_NAME);
+        File a = write("a.jar", "a");
+        DownloadIndex index = DownloadIndex.open("intact", indexFile);
+        index.record("a.jar", SOURCE, "\"0x1\"", null, a);
+        DownloadIndex.commit("intact", indexFile);
+
+        DownloadIndex next = DownloadIndex.open("next", indexFile);
+        assertNotNull(next.intactEntry("a.jar", SOURCE, a));
+        assertNull(next.intactEntry("a.jar", "blob|other|lib/a.jar", a));
+        assertNull(next.intactEntry("b.jar", SOURCE, a));
+
+        Files.write(a.toPath(), "changed".getBytes(StandardCharsets.UTF_8));
+        assertNull(next.intactEntry("a.jar", SOURCE, a));
+        DownloadIndex.commit("next", indexFile);
+    }
+
+    @Test
+    void testDiscardLeavesIndexUnchanged() throws Exception {
+        File indexFile = new File(tempDir, DownloadIndex.FILE_NAME);
+        File a = write("a.jar", "a");
+
+        DownloadIndex failed = DownloadIndex.open("failed", indexFile);
+        failed.record("a.jar", SOURCE, "\"0x1\"", null, a);
+        DownloadIndex.discard("failed");
+
+        assertFalse(indexFile.exists());
+        DownloadIndex reopened = DownloadIndex.open("failed", indexFile);
+        assertNull(reopened.intactEntry("a.jar", SOURCE, a));
+        DownloadIndex.discard("failed");
+    }
+
+    @Test
+    void testMatchesListing() {
+        DownloadIndex.Entry entry = new DownloadIndex.Entry(SOURCE, "\"0x1\"", "md5", 1, 0);
+
+        assertTrue(entry.matchesListing("\"0x1\"", null));
+        assertFalse(entry.matchesListing("\"0x2\"", "md5"));
+        assertTrue(entry.matchesListing(null, "md5"));
+        assertFalse(entry.matchesListing(null, null));
+        assertTrue(entry.matches("\"0x1\""));
+        assertFalse(entry.matches(null));
+    }
+
+    @Test
+    void testUnreadableIndexIsEmpty() throws Exception {
+        File indexFile = write(DownloadIndex.FILE_NAME, "not json");
+
+        assertTrue(DownloadIndex.read(indexFile).isEmpty());
+        assertTrue(DownloadIndex.read(new File(tempDir, "missing.json")).isEmpty());
+    }
+
+    private File write(String name, String content) throws Exception {
+        File file = new File(tempDir, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
@@ -0,0 +1,30 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DownloadServiceTest {
+
+    @Test
+    void testListingPrefixStopsAtFirstWildcard() {
+        assertEquals(Collections.singletonList("releases/1.2."),
+                DownloadService.listingPrefixes("releases/1.2.*/bin/**"));
+        assertEquals(Collections.singletonList("logs/build-"), DownloadService.listingPrefixes("logs/build-??.txt"));
+        assertEquals(Collections.singletonList("docs/readme.md"), DownloadService.listingPrefixes("docs/readme.md"));
+    }
+
+    @Test
+    void testCoveredPrefixesAreMerged() {
+        assertEquals(Arrays.asList("bin/", "lib/"),
+                DownloadService.listingPrefixes("lib/**, bin/**,bin/tools/*.exe,lib/native/**"));
+    }
+
+    @Test
+    void testLeadingWildcardListsEverything() {
+        assertEquals(Collections.singletonList(""), DownloadService.listingPrefixes("releases/**,**/*.jar"));
+    }
+}
@@ -0,0 +1,60 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ListUploadsOnAgentTest {
+    @TempDir
+    Path workspace;
+
+    @Test
+    void testFilesComeBackRelativeToTheWorkspace() throws Exception {
+        write("build/app.js");
+        write("build/docs/readme.txt");
+        write("build/skipped.log");
+
+        ListUploadsOnAgent.Listing listing = new ListUploadsOnAgent("build/**", "**/*.log", Long.MIN_VALUE, true)
+                .invoke(workspace.toFile(), null);
+
+        Map<String, String> contentTypes = new HashMap<>();
+        for (ListUploadsOnAgent.ListedFile file : listing.getFiles()) {
+            contentTypes.put(file.getRelativePath(), file.getContentType());
+            assertEquals(workspace.resolve(file.getRelativePath()).toFile(), new File(file.getRemote()));
+        }
+        assertEquals(2, listing.getMatched());
+        assertEquals("application/javascript", contentTypes.get("build/app.js"));
+        assertEquals("text/plain", contentTypes.get("build/docs/readme.txt"));
+    }
+
+    @Test
+    void testFilesModifiedBeforeAreCountedButLeftOut() throws Exception {
+        long buildStart = System.currentTimeMillis();
+        Files.setLastModifiedTime(write("old.txt"), FileTime.fromMillis(buildStart - 60_000));
+        Files.setLastModifiedTime(write("new.txt"), FileTime.fromMillis(buildStart + 60_000));
+
+        ListUploadsOnAgent.Listing listing = new ListUploadsOnAgent("*.txt", null, buildStart, false)
+                .invoke(workspace.toFile(), null);
+
+        assertEquals(2, listing.getMatched());
+        assertEquals(1, listing.getFiles().size());
+        assertEquals("new.txt", listing.getFiles().get(0).getRelativePath());
+        assertNull(listing.getFiles().get(0).getContentType());
+    }
+
+    private Path write(String path) throws Exception {
+        Path file = workspace.resolve(path);
+        Files.createDirectories(file.getParent());
+        return Files.write(file, "content".getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,126 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParallelZipWriterTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testArchiveHoldsSelectedFiles() throws Exception {
+        File workspace = new File(tempDir, "ws");
+        write(new File(workspace, "build/report.txt"), "report report report report");
+        write(new File(workspace, "build/logo.png"), "not really a png");
+        write(new File(workspace, "src/Main.java"), "class Main {}");
+        Files.createDirectories(new File(workspace, "build/empty").toPath());
+
+        File archive = new File(tempDir, "archive.zip");
+        try (OutputStream out = Files.newOutputStream(archive.toPath())) {
+            new ParallelZipWriter(0, 4, tempDir).write(workspace, new DirScanner.Glob("build/**", null), out);
+        }
+
+        try (ZipFile zip = new ZipFile(archive)) {
+            ZipArchiveEntry report = zip.getEntry("build/report.txt");
+            assertEquals(ZipEntry.DEFLATED, report.getMethod());
+            assertEquals("report report report report",
+                    IOUtils.toString(zip.getInputStream(report), StandardCharsets.UTF_8));
+
+            ZipArchiveEntry logo = zip.getEntry("build/logo.png");
+            assertEquals(ZipEntry.STORED, logo.getMethod());
+            assertEquals("not really a png", IOUtils.toString(zip.getInputStream(logo), StandardCharsets.UTF_8));
+
+            assertTrue(zip.getEntry("build/empty/").isDirectory());
+            assertNull(zip.getEntry("src/Main.java"));
+        }
+    }
+
+    @Test
+    void testFailedScanLeavesNoScatterFiles() throws Exception {
+        File workspace = new File(tempDir, "ws");
+        for (int i = 0; i < 8; i++) {
+            write(new File(workspace, "build/file" + i + ".txt"), "content " + i);
+        }
+        DirScanner failing = new DirScanner() {
+            @Override
+            public void scan(File dir, FileVisitor visitor) throws IOException {
+                new DirScanner.Glob("build/**", null).scan(dir, visitor);
+                throw new IOException("scan failed");
+            }
+        };
+
+        try (OutputStream out = new ByteArrayOutputStream()) {
+            assertThrows(IOException.class, () -> new ParallelZipWriter(0, 4, tempDir).write(workspace, failing, out));
+        }
+        assertEquals(0, scatterFiles());
+    }
+
+    @Test
+    void testSequentialArchiveHoldsSelectedFiles() throws Exception {
+        File workspace = new File(tempDir, "ws");
+        write(new File(workspace, "build/report.txt"), "report report report report");
+        write(new File(workspace, "build/logo.png"), "not really a png");
+        write(new File(workspace, "src/Main.java"), "class Main {}");
+        Files.createDirectories(new File(workspace, "build/empty").toPath());
+
+        File archive = new File(tempDir, "sequential.zip");
+        try (OutputStream out = Files.newOutputStream(archive.toPath())) {
+            new SequentialZipWriter(0).write(workspace, new DirScanner.Glob("build/**", null), out);
+        }
+
+        try (ZipFile zip = new ZipFile(archive)) {
+            assertEquals("report report report report",
+                    IOUtils.toString(zip.getInputStream(zip.getEntry("build/report.txt")), StandardCharsets.UTF_8));
+            assertEquals("not really a png",
+                    IOUtils.toString(zip.getInputStream(zip.getEntry("build/logo.png")), StandardCharsets.UTF_8));
+            assertTrue(zip.getEntry("build/empty/").isDirectory());
+            assertNull(zip.getEntry("src/Main.java"));
+        }
+    }
+
+    @Test
+    void testIsCompressed() {
+        assertTrue(ParallelZipWriter.isCompressed("lib/app.JAR"));
+        assertTrue(ParallelZipWriter.isCompressed("dist/site.tar.gz"));
+        assertFalse(ParallelZipWriter.isCompressed("logs/build.log"));
+        assertFalse(ParallelZipWriter.isCompressed("Makefile"));
+    }
+
+    @Test
+    void testDeflaterLevel() {
+        assertEquals(Deflater.DEFAULT_COMPRESSION, ParallelZipWriter.deflaterLevel(0));
+        assertEquals(1, ParallelZipWriter.deflaterLevel(1));
+        assertEquals(Deflater.BEST_COMPRESSION, ParallelZipWriter.deflaterLevel(19));
+    }
+
+    private int scatterFiles() {
+        String[] names = tempDir.list((dir, name) -> name.startsWith("azure-storage-scatter"));
+        return names == null ? 0 : names.length;
+    }
+
+    private static void write(File file, String content) throws Exception {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,56 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.util.AntPathMatcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PathPatternMatcherTest {
+    private static final String[] PATTERNS = {
+            "**/*", "**", "*", "*.jar", "**/*.jar", "releases/**", "releases/1.2.*/bin/**", "releases/*/bin/*.exe",
+            "com/t?st.jsp", "com/**/test.jsp", "a/*", "a", "a/", "/a/**", "/*bla*/**/bla/*", "x/**/**/y",
+            "*.*", "logs/build-??.txt", "a//b", "{name}.txt", "",
+    };
+    private static final String[] PATHS = {
+            "", "a", "a/", "a/b", "a/b/", "/a/b", "app.jar", "lib/app.jar", "lib/native/app.jar", "releases",
+            "releases/", "releases/1.2.3/bin/tool", "releases/1.2.3/bin/", "releases/1.3.0/bin/tool",
+            "releases/1.2.3/bin/run.exe", "com/test.jsp", "com/tast.jsp", "com/x/y/test.jsp", "test.", "testtest",
+            "/XXXblaXXXX/testing/testing/bla/testing", "/XXXblaXXXX/testing/bla/testing/x.jpg", "x/y", "x/1/2/y",
+            "logs/build-01.txt", "logs/build-1.txt", "readme.txt", "a//b",
+    };
+
+    @Test
+    void testSameResultsAsAntPathMatcher() {
+        AntPathMatcher ant = new AntPathMatcher();
+        for (String pattern : PATTERNS) {
+            PathPatternMatcher compiled = PathPatternMatcher.compile(pattern);
+            for (String path : PATHS) {
+                assertEquals(ant.match(pattern, path), compiled.matches(path),
+                        "match(" + pattern + ", " + path + ")");
+                assertEquals(ant.matchStart(pattern, path), compiled.matchesStart(path),
+                        "matchStart(" + pattern + ", " + path + ")");
+            }
+        }
+    }
+
+    @Test
+    void testAnyPatternMatches() {
+        PathPatternMatcher matcher = PathPatternMatcher.compile("lib/**,bin/*.exe");
+        assertTrue(matcher.matches("lib/a/b.jar"));
+        assertTrue(matcher.matches("bin/tool.exe"));
+        assertFalse(matcher.matches("bin/sub/tool.exe"));
+        assertTrue(matcher.matchesStart("bin/"));
+        assertFalse(matcher.matchesStart("docs/"));
+        assertFalse(PathPatternMatcher.compile(null).matches("lib/a.jar"));
+    }
+
+    @Test
+    void testWildcards() {
+        assertTrue(PathPatternMatcher.matchWildcards("*a*b?".toCharArray(), "xxaybz", 0, 6));
+        assertTrue(PathPatternMatcher.matchWildcards("**".toCharArray(), "", 0, 0));
+        assertFalse(PathPatternMatcher.matchWildcards("*a*b?".toCharArray(), "xxaybzz", 0, 7));
+        assertTrue(PathPatternMatcher.matchWildcards("b?".toCharArray(), "xxaybz", 4, 6));
+    }
+}
@@ -0,0 +1,86 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.AntPathMatcher;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the include and exclude matching of {@code DownloadService.shouldDownload} before
+ * {@link PathPatternMatcher}, which split the patterns and created an {@link AntPathMatcher} for every name, with
+ * the compiled patterns, over a synthetic listing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PatternMatchBenchmark {
+    private static final String INCLUDE = "releases/1.2.*/bin/**,docs/**/*.md,**/*.jar";
+    private static final String EXCLUDE = "**/*.tmp,releases/**/debug/**";
+    private static final String[] EXTENSIONS = {".jar", ".md", ".tmp", ".log", ".exe"};
+
+    @Param({"1000000"})
+    public int names;
+
+    private String[] listing;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(names);
+        listing = new String[names];
+        for (int i = 0; i < names; i++) {
+            StringBuilder name = new StringBuilder(random.nextBoolean() ? "releases/" : "docs/");
+            name.append("1.").append(random.nextInt(5)).append('.').append(random.nextInt(20)).append('/');
+            name.append(random.nextInt(10) == 0 ? "debug/" : "bin/");
+            name.append("file-").append(i).append(EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+            listing[i] = name.toString();
+        }
+    }
+
+    @Benchmark
+    public int antPathMatcher() {
+        int matched = 0;
+        for (String name : listing) {
+            if (isExactMatch(name, INCLUDE.split(",")) && !isExactMatch(name, EXCLUDE.split(","))) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    @Benchmark
+    public int compiledPatterns() {
+        PathPatternMatcher includes = PathPatternMatcher.compile(INCLUDE);
+        PathPatternMatcher excludes = PathPatternMatcher.compile(EXCLUDE);
+        int matched = 0;
+        for (String name : listing) {
+            if (includes.matches(name) && !excludes.matches(name)) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    private static boolean isExactMatch(String path, String[] patterns) {
+        AntPathMatcher matcher = new AntPathMatcher();
+        for (String pattern : patterns) {
+            if (matcher.match(pattern, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
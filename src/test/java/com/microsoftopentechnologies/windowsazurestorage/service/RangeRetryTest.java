@@ -0,0 +1,64 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.exception.HttpResponseException;
+import com.azure.core.http.HttpResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RangeRetryTest {
+
+    @Test
+    void testIsTransient() {
+        assertTrue(RangeRetry.isTransient(new IOException("connection reset")));
+        assertTrue(RangeRetry.isTransient(new UncheckedIOException(new IOException("connection reset"))));
+        assertTrue(RangeRetry.isTransient(responseException(500)));
+        assertTrue(RangeRetry.isTransient(responseException(503)));
+        assertTrue(RangeRetry.isTransient(responseException(408)));
+        assertTrue(RangeRetry.isTransient(new RuntimeException(responseException(429))));
+        assertFalse(RangeRetry.isTransient(responseException(403)));
+        assertFalse(RangeRetry.isTransient(responseException(404)));
+        assertFalse(RangeRetry.isTransient(new IllegalStateException()));
+    }
+
+    @Test
+    void testTransientFailureIsRetriedWithGrowingDelay() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        long start = System.nanoTime();
+
+        RangeRetry.run(3, () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw responseException(503);
+            }
+        });
+
+        assertEquals(3, attempts.get());
+        assertTrue((System.nanoTime() - start) / 1_000_000 >= 3 * RangeRetry.BASE_DELAY_MILLIS);
+    }
+
+    @Test
+    void testOtherFailureIsNotRetried() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThrows(HttpResponseException.class, () -> RangeRetry.run(3, () -> {
+            attempts.incrementAndGet();
+            throw responseException(403);
+        }));
+        assertEquals(1, attempts.get());
+    }
+
+    private static HttpResponseException responseException(int status) {
+        HttpResponse response = mock(HttpResponse.class);
+        when(response.getStatusCode()).thenReturn(status);
+        return new HttpResponseException("failed", response);
+    }
+}
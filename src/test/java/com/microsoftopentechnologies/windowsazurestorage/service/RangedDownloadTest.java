@@ -0,0 +1,76 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RangedDownloadTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testRangesAreWrittenInPlace() throws Exception {
+        byte[] content = new byte[10_000];
+        new Random(42).nextBytes(content);
+        File destination = new File(tempDir, "large.bin");
+        Files.write(destination.toPath(), new byte[20_000]);
+
+        AtomicInteger calls = new AtomicInteger();
+        long bytes = new RangedDownload(1_000, 4, 0).download(content.length, (offset, count, out) -> {
+            calls.incrementAndGet();
+            out.write(content, (int) offset, (int) count);
+        }, destination);
+
+        assertEquals(content.length, bytes);
+        assertEquals(10, calls.get());
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    }
+
+    @Test
+    void testFailedRangeIsRetried() throws Exception {
+        byte[] content = new byte[4_096];
+        new Random(7).nextBytes(content);
+        File destination = new File(tempDir, "retried.bin");
+
+        AtomicInteger failures = new AtomicInteger();
+        new RangedDownload(1_024, 2, 0).download(content.length, (offset, count, out) -> {
+            if (offset == 2_048 && failures.getAndIncrement() < RangedDownload.MAX_ATTEMPTS - 1) {
+                // the connection drops half way through the range
+                out.write(content, (int) offset, (int) count / 2);
+                throw new IOException("connection reset");
+            }
+            out.write(content, (int) offset, (int) count);
+        }, destination);
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    }
+
+    @Test
+    void testShortRangeFailsTheDownload() {
+        File destination = new File(tempDir, "short.bin");
+
+        assertThrows(IOException.class, () -> new RangedDownload(1_024, 2, 0).download(4_096,
+                (offset, count, out) -> out.write(new byte[(int) count - 1]), destination));
+    }
+
+    @Test
+    void testThreshold() {
+        RangedDownload ranged = new RangedDownload(8, 4, 64);
+        assertFalse(ranged.isRanged(-1));
+        assertFalse(ranged.isRanged(64));
+        assertTrue(ranged.isRanged(65));
+        assertFalse(new RangedDownload(8, 1, 64).isRanged(1_000));
+    }
+}
@@ -0,0 +1,68 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RangedFileUploadTest {
+    @TempDir
+    Path tmp;
+
+    @Test
+    void testRangesAreCappedAtTheLimitOfTheService() {
+        RangedFileUpload ranged = new RangedFileUpload(64L * 1024 * 1024, 0);
+
+        assertEquals(RangedFileUpload.MAX_RANGE_SIZE, ranged.getRangeSize());
+        assertFalse(ranged.isRanged(RangedFileUpload.MAX_RANGE_SIZE));
+        assertTrue(ranged.isRanged(RangedFileUpload.MAX_RANGE_SIZE + 1));
+        assertFalse(new RangedFileUpload(1024, 4096).isRanged(4096));
+    }
+
+    @Test
+    void testFailedRangeIsWrittenAgain() throws Exception {
+        byte[] content = new byte[10_000];
+        new Random(1).nextBytes(content);
+        File file = Files.write(tmp.resolve("large.bin"), content).toFile();
+
+        Map<Long, byte[]> written = new ConcurrentHashMap<>();
+        AtomicBoolean failed = new AtomicBoolean();
+        byte[] md5 = new RangedFileUpload(1024, 0).upload(file, 4, (offset, count, in) -> {
+            byte[] range = in.readAllBytes();
+            if (offset == 2048 && failed.compareAndSet(false, true)) {
+                throw new IOException("connection reset");
+            }
+            assertEquals(count, range.length);
+            written.put(offset, range);
+        });
+
+        assertEquals(10, written.size());
+        byte[] uploaded = new byte[content.length];
+        written.forEach((offset, range) -> System.arraycopy(range, 0, uploaded, offset.intValue(), range.length));
+        assertArrayEquals(content, uploaded);
+        assertArrayEquals(DigestUtils.md5(content), md5);
+    }
+
+    @Test
+    void testRangeFailingEveryAttemptFailsTheUpload() throws Exception {
+        File file = Files.write(tmp.resolve("large.bin"), new byte[4096]).toFile();
+
+        assertThrows(IOException.class, () -> new RangedFileUpload(1024, 0).upload(file, 2, (offset, count, in) -> {
+            throw new IOException("connection reset");
+        }));
+    }
+}
@@ -0,0 +1,81 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.microsoftopentechnologies.windowsazurestorage.service.model.SasToken;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SasCredentialRefresherTest {
+    private static SasToken expired(String token) {
+        return new SasToken(token, System.currentTimeMillis());
+    }
+
+    private static SasToken fresh(String token) {
+        return new SasToken(token, System.currentTimeMillis() + 3_600_000L);
+    }
+
+    @Test
+    void testFallsBackWhenLatestHolderEnded() throws Exception {
+        SasTokenProvider running = mock(SasTokenProvider.class);
+        SasTokenProvider ended = mock(SasTokenProvider.class);
+        when(running.refresh()).thenReturn(fresh("sp=cw&sig=running"));
+        when(ended.refresh()).thenThrow(new IOException("ended"));
+
+        SasCredentialRefresher refresher = new SasCredentialRefresher(expired("sp=cw&sig=a"), running);
+        refresher.offer(expired("sp=cw&sig=b"), ended);
+        refresher.ensureFresh();
+
+        assertEquals("sp=cw&sig=running", refresher.getCredential().getSignature());
+        verify(ended).refresh();
+    }
+
+    @Test
+    void testReleasedProviderIsNotAsked() throws Exception {
+        SasTokenProvider first = mock(SasTokenProvider.class);
+        SasTokenProvider second = mock(SasTokenProvider.class);
+        when(first.refresh()).thenReturn(fresh("sp=cw&sig=first"));
+
+        SasCredentialRefresher refresher = new SasCredentialRefresher(expired("sp=cw&sig=a"), first);
+        refresher.offer(expired("sp=cw&sig=b"), second);
+        refresher.release(second);
+        refresher.ensureFresh();
+
+        assertEquals("sp=cw&sig=first", refresher.getCredential().getSignature());
+        verify(second, never()).refresh();
+    }
+
+    @Test
+    void testNoRefreshOnceAllReleased() throws Exception {
+        SasTokenProvider provider = mock(SasTokenProvider.class);
+
+        SasCredentialRefresher refresher = new SasCredentialRefresher(expired("sp=cw&sig=a"), provider);
+        refresher.release(provider);
+        refresher.ensureFresh();
+
+        verify(provider, never()).refresh();
+    }
+
+    @Test
+    void testFailsWhenNoHolderAnswers() throws Exception {
+        SasTokenProvider provider = mock(SasTokenProvider.class);
+        when(provider.refresh()).thenThrow(new IOException("ended"));
+
+        SasCredentialRefresher refresher = new SasCredentialRefresher(expired("sp=cw&sig=a"), provider);
+
+        assertThrows(IOException.class, refresher::ensureFresh);
+    }
+
+    @Test
+    void testPermissions() {
+        assertEquals("cw", AgentClientRegistry.permissions(new SasToken("sv=2021&sp=cw&sig=x", 0)));
+        assertEquals("rd", AgentClientRegistry.permissions(new SasToken("sp=rd&sr=c", 0)));
+        assertEquals("", AgentClientRegistry.permissions(new SasToken("sv=2021&sig=x", 0)));
+    }
+}
@@ -0,0 +1,69 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.storage.file.share.ShareClient;
+import com.azure.storage.file.share.ShareDirectoryClient;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ShareDirectoriesTest {
+
+    @Test
+    void testPlanListsEachDirectoryOnceByDepth() {
+        ShareDirectories directories = new ShareDirectories();
+
+        List<String> plan = directories.plan(Arrays.asList("a/b/c/one.txt", "top.txt", "a/b/two.txt", "d/three.txt"));
+
+        assertEquals(Arrays.asList("a", "d", "a/b", "a/b/c"), plan);
+    }
+
+    @Test
+    void testPlanSkipsCreatedDirectories() {
+        ShareDirectories directories = new ShareDirectories();
+        directories.created(directories.plan(Collections.singletonList("a/b/one.txt")));
+
+        List<String> plan = directories.plan(Arrays.asList("a/b/two.txt", "a/c/f.txt"));
+        assertEquals(Collections.singletonList("a/c"), plan);
+        directories.created(plan);
+        assertTrue(directories.plan(Collections.singletonList("a/c/g.txt")).isEmpty());
+    }
+
+    @Test
+    void testFailedDirectoriesArePlannedAgain() {
+        ShareDirectories directories = new ShareDirectories();
+        List<String> failed = directories.plan(Collections.singletonList("a/b/one.txt"));
+
+        assertEquals(failed, directories.plan(Collections.singletonList("a/b/one.txt")));
+    }
+
+    @Test
+    void testParentsAreCreatedBeforeChildren() throws Exception {
+        List<String> created = Collections.synchronizedList(new ArrayList<>());
+        ShareClient share = mock(ShareClient.class);
+        when(share.getDirectoryClient(anyString())).thenAnswer(invocation -> {
+            String path = invocation.getArgument(0);
+            ShareDirectoryClient directory = mock(ShareDirectoryClient.class);
+            when(directory.createIfNotExists()).thenAnswer(create -> {
+                created.add(path);
+                return null;
+            });
+            return directory;
+        });
+
+        List<String> plan = new ShareDirectories().plan(Arrays.asList("a/b/one.txt", "c/d/two.txt", "e/three.txt"));
+        ShareDirectories.create(share, plan, 0);
+
+        assertEquals(5, created.size());
+        assertTrue(created.indexOf("a/b") > Math.max(created.indexOf("a"), created.indexOf("e")));
+        assertTrue(created.indexOf("c/d") > Math.max(created.indexOf("c"), created.indexOf("e")));
+    }
+}
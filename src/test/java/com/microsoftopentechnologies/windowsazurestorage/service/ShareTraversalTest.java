@@ -0,0 +1,69 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.http.rest.PagedIterable;
+import com.azure.storage.file.share.ShareDirectoryClient;
+import com.azure.storage.file.share.models.ShareFileItem;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ShareTraversalTest {
+
+    @Test
+    void testDirectoriesAreLeftBottomUp() {
+        ShareDirectoryClient root = directory("", Arrays.asList(
+                new ShareFileItem("a", true, null), new ShareFileItem("top.txt", false, 1L)));
+        ShareDirectoryClient a = directory("a", Arrays.asList(
+                new ShareFileItem("b", true, null), new ShareFileItem("c", true, null)));
+        ShareDirectoryClient b = directory("a/b", Collections.singletonList(new ShareFileItem("f.txt", false, 1L)));
+        ShareDirectoryClient c = directory("a/c", Collections.emptyList());
+        when(root.getSubdirectoryClient("a")).thenReturn(a);
+        when(a.getSubdirectoryClient("b")).thenReturn(b);
+        when(a.getSubdirectoryClient("c")).thenReturn(c);
+
+        Set<String> files = ConcurrentHashMap.newKeySet();
+        List<String> left = Collections.synchronizedList(new ArrayList<>());
+        new ShareTraversal(0).walk(root, null, new ShareTraversal.Visitor() {
+            @Override
+            public boolean enterDirectory(String path) {
+                return true;
+            }
+
+            @Override
+            public void visitFile(ShareDirectoryClient directory, ShareFileItem file, String path) {
+                files.add(path);
+            }
+
+            @Override
+            public void leaveDirectory(ShareDirectoryClient directory) {
+                left.add(directory.getDirectoryPath());
+            }
+        });
+
+        assertEquals(Set.of("top.txt", "a/b/f.txt"), files);
+        assertEquals(4, left.size());
+        assertTrue(left.indexOf("a/b") < left.indexOf("a"));
+        assertTrue(left.indexOf("a/c") < left.indexOf("a"));
+        assertEquals("", left.get(3));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ShareDirectoryClient directory(String path, List<ShareFileItem> items) {
+        ShareDirectoryClient directory = mock(ShareDirectoryClient.class);
+        PagedIterable<ShareFileItem> listing = mock(PagedIterable.class);
+        when(listing.iterator()).thenAnswer(invocation -> items.iterator());
+        when(directory.listFilesAndDirectories(null, null, null, null)).thenReturn(listing);
+        when(directory.getDirectoryPath()).thenReturn(path);
+        return directory;
+    }
+}
@@ -0,0 +1,75 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ArchiveFormat;
+import hudson.util.DirScanner;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TarZstdWriterTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testArchiveHoldsSelectedFiles() throws Exception {
+        File workspace = new File(tempDir, "ws");
+        StringBuilder longName = new StringBuilder("build");
+        for (int i = 0; i < 12; i++) {
+            longName.append("/directory").append(i);
+        }
+        write(new File(workspace, "build/report.txt"), "report report report report");
+        write(new File(workspace, longName + "/deep.txt"), "deep");
+        write(new File(workspace, "src/Main.java"), "class Main {}");
+
+        File archive = new File(tempDir, "archive.tar.zst");
+        try (OutputStream out = Files.newOutputStream(archive.toPath())) {
+            new TarZstdWriter(0, 2).write(workspace, new DirScanner.Glob("build/**", null), out);
+        }
+
+        Map<String, String> entries = new LinkedHashMap<>();
+        Set<String> directories = new HashSet<>();
+        try (InputStream in = new ZstdInputStream(Files.newInputStream(archive.toPath()));
+             TarArchiveInputStream tar = new TarArchiveInputStream(in)) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    directories.add(entry.getName());
+                } else {
+                    entries.put(entry.getName(), IOUtils.toString(tar, StandardCharsets.UTF_8));
+                }
+            }
+        }
+        assertTrue(directories.contains("build/directory0/"));
+        assertEquals(2, entries.size());
+        assertEquals("report report report report", entries.get("build/report.txt"));
+        assertEquals("deep", entries.get(longName + "/deep.txt"));
+    }
+
+    @Test
+    void testArchiveFormatSelectsWriter() {
+        assertEquals(TarZstdWriter.class, ArchiveWriter.create(ArchiveFormat.TAR_ZSTD, 0, null).getClass());
+        assertEquals(ParallelZipWriter.class, ArchiveWriter.create(ArchiveFormat.ZIP, 0, null).getClass());
+    }
+
+    private static void write(File file, String content) throws Exception {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,124 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.exception.HttpResponseException;
+import com.azure.core.http.HttpResponse;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TransferConcurrencyControllerTest {
+    private static final long MIB = 1024L * 1024;
+
+    @Test
+    void testCeilingIsBoundedByGlobalLimit() {
+        assertEquals(2, new TransferConcurrencyController(2).getCeiling());
+        assertEquals(TransferConcurrencyController.GLOBAL_MAX_CONCURRENCY,
+                new TransferConcurrencyController(0).getCeiling());
+        assertEquals(TransferConcurrencyController.GLOBAL_MAX_CONCURRENCY,
+                new TransferConcurrencyController(Integer.MAX_VALUE).getCeiling());
+        assertEquals(2, new TransferConcurrencyController(2).getLimit());
+    }
+
+    @Test
+    void testLimitGrowsWhileThroughputImproves() throws Exception {
+        AtomicLong now = new AtomicLong();
+        TransferConcurrencyController controller = new TransferConcurrencyController(10, now::get);
+        int initial = controller.getLimit();
+
+        // each window moves more bytes in the same time
+        for (int window = 1; window <= 2; window++) {
+            long bytes = window * 1000L;
+            int samples = controller.getLimit();
+            now.addAndGet(100);
+            for (int i = 0; i < samples; i++) {
+                controller.run(() -> bytes, Long::longValue);
+            }
+        }
+
+        assertEquals(initial + 2, controller.getLimit());
+    }
+
+    @Test
+    void testLimitIsNeverAboveCeiling() throws Exception {
+        TransferConcurrencyController controller = new TransferConcurrencyController(9, () -> 0);
+
+        for (int window = 1; window <= 5; window++) {
+            long bytes = window * 1000L;
+            int samples = controller.getLimit();
+            for (int i = 0; i < samples; i++) {
+                controller.run(() -> bytes, Long::longValue);
+            }
+        }
+
+        assertEquals(9, controller.getLimit());
+    }
+
+    @Test
+    void testLatencyIsComparedPerMib() throws Exception {
+        AtomicLong now = new AtomicLong();
+        TransferConcurrencyController controller = new TransferConcurrencyController(16, now::get);
+        int initial = controller.getLimit();
+
+        // small files at 15 ms per request, then large files at 10 ms per MiB: slower transfers, not a slowdown
+        runWindow(controller, now, 1024, 15);
+        runWindow(controller, now, 64 * MIB, 640);
+        runWindow(controller, now, 64 * MIB, 640);
+        assertEquals(initial + 2, controller.getLimit());
+
+        // the same large files taking three times as long are a slowdown
+        runWindow(controller, now, 64 * MIB, 1920);
+        assertEquals((int) ((initial + 2) * 0.75), controller.getLimit());
+    }
+
+    @Test
+    void testThrottlingHalvesLimitOncePerWindow() {
+        TransferConcurrencyController controller = new TransferConcurrencyController(10, () -> 0);
+        HttpResponseException busy = responseException(503, "ServerBusy");
+
+        for (int i = 0; i < 3; i++) {
+            assertThrows(HttpResponseException.class, () -> controller.<Long>run(() -> {
+                throw busy;
+            }, Long::longValue));
+        }
+
+        assertEquals(4, controller.getLimit());
+    }
+
+    @Test
+    void testIsThrottled() {
+        assertTrue(TransferConcurrencyController.isThrottled(responseException(503, "ServerBusy")));
+        assertTrue(TransferConcurrencyController.isThrottled(
+                new RuntimeException(responseException(500, "OperationTimedOut"))));
+        assertFalse(TransferConcurrencyController.isThrottled(responseException(500, "InternalError")));
+        assertFalse(TransferConcurrencyController.isThrottled(responseException(404, "BlobNotFound")));
+        assertFalse(TransferConcurrencyController.isThrottled(new RuntimeException()));
+    }
+
+    /**
+     * Runs one window of transfers one after the other, each moving the given bytes in the given time.
+     */
+    private static void runWindow(TransferConcurrencyController controller, AtomicLong now, long bytes,
+                                  long latency) throws Exception {
+        int samples = Math.max(4, controller.getLimit());
+        for (int i = 0; i < samples; i++) {
+            controller.run(() -> {
+                now.addAndGet(latency);
+                return bytes;
+            }, Long::longValue);
+        }
+    }
+
+    private static HttpResponseException responseException(int status, String errorCode) {
+        HttpResponse response = mock(HttpResponse.class);
+        when(response.getStatusCode()).thenReturn(status);
+        when(response.getHeaderValue("x-ms-error-code")).thenReturn(errorCode);
+        return new HttpResponseException("failed", response);
+    }
+}
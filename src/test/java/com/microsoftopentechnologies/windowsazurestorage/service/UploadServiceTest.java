@@ -9,7 +9,6 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
-import java.io.IOException;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.Mockito.mock;
@@ -52,40 +51,38 @@ class UploadServiceTest {
     // remove prefix    0
     // embedded VP      0
     // virtual path     0
-    private void testThatExistingBehaviorRemainsUnchanged_1(UploadService uploadService) throws IOException, InterruptedException {
-        File testFile = new File("workspace/release/build/test.txt");
-        FilePath testFilePath = new FilePath(launcher.getChannel(), testFile.getAbsolutePath());
-        assertEquals("release/build/test.txt", uploadService.getItemPath(testFilePath, "", uploadService.getServiceData()));
+    private void testThatExistingBehaviorRemainsUnchanged_1(UploadService uploadService) {
+        String relativePath = "release/build/test.txt";
+        assertEquals("release/build/test.txt", uploadService.getItemPath(relativePath, "", uploadService.getServiceData()));
     }
 
     @Test
-    void testThatExistingBehaviorRemainsUnchanged_a_blob() throws IOException, InterruptedException {
+    void testThatExistingBehaviorRemainsUnchanged_a_blob() {
         testThatExistingBehaviorRemainsUnchanged_1(new UploadToBlobService(serviceData));
     }
 
     @Test
-    void testThatExistingBehaviorRemainsUnchanged_b_file() throws IOException, InterruptedException {
+    void testThatExistingBehaviorRemainsUnchanged_b_file() {
         testThatExistingBehaviorRemainsUnchanged_1(new UploadToFileService(serviceData));
     }
 
     // remove prefix    0
     // embedded VP      0
     // virtual path     1
-    private void testThatExistingBehaviorRemainsUnchanged_2(UploadService uploadService) throws IOException, InterruptedException {
-        File testFile = new File("workspace/release/build/test.txt");
-        FilePath testFilePath = new FilePath(launcher.getChannel(), testFile.getAbsolutePath());
-        assertEquals("virtual/release/build/test.txt", uploadService.getItemPath(testFilePath, "", uploadService.getServiceData()));
+    private void testThatExistingBehaviorRemainsUnchanged_2(UploadService uploadService) {
+        String relativePath = "release/build/test.txt";
+        assertEquals("virtual/release/build/test.txt", uploadService.getItemPath(relativePath, "", uploadService.getServiceData()));
     }
 
     @Test
-    void testThatExistingBehaviorRemainsUnchanged_c_blob() throws IOException, InterruptedException {
+    void testThatExistingBehaviorRemainsUnchanged_c_blob() {
         addVirtualPath();
 
         testThatExistingBehaviorRemainsUnchanged_2(new UploadToBlobService(serviceData));
     }
 
     @Test
-    void testThatExistingBehaviorRemainsUnchanged_d_file() throws IOException, InterruptedException {
+    void testThatExistingBehaviorRemainsUnchanged_d_file() {
         addVirtualPath();
 
         testThatExistingBehaviorRemainsUnchanged_2(new UploadToFileService(serviceData));
@@ -94,40 +91,38 @@ class UploadServiceTest {
     // remove prefix    0
     // embedded VP      1
     // virtual path     0
-    private void testThatExistingBehaviorRemainsUnchanged_4(UploadService uploadService) throws IOException, InterruptedException {
-        File testFile = new File("workspace/release/build/test.txt");
-        FilePath testFilePath = new FilePath(launcher.getChannel(), testFile.getAbsolutePath());
-        assertEquals("embedded/release/build/test.txt", uploadService.getItemPath(testFilePath, "embedded/", uploadService.getServiceData()));
+    private void testThatExistingBehaviorRemainsUnchanged_4(UploadService uploadService) {
+        String relativePath = "release/build/test.txt";
+        assertEquals("embedded/release/build/test.txt", uploadService.getItemPath(relativePath, "embedded/", uploadService.getServiceData()));
     }
 
     @Test
-    void testThatExistingBehaviorRemainsUnchanged_g_blob() throws IOException, InterruptedException {
+    void testThatExistingBehaviorRemainsUnchanged_g_blob() {
         testThatExistingBehaviorRemainsUnchanged_4(new UploadToBlobService(serviceData));
     }
 
     @Test
-    void testThatExistingBehaviorRemainsUnchanged_h_blob() throws IOException, InterruptedException {
+    void testThatExistingBehaviorRemainsUnchanged_h_blob() {
         testThatExistingBehaviorRemainsUnchanged_4(new UploadToFileService(serviceData));
     }
 
     // remove prefix    0
     // embedded VP      1
     // virtual path     1
-    private void testThatExistingBehaviorRemainsUnchanged_3(UploadService uploadService) throws IOException, InterruptedException {
-        File testFile = new File("workspace/release/build/test.txt");
-        FilePath testFilePath = new FilePath(launcher.getChannel(), testFile.getAbsolutePath());
-        assertEquals("virtual/embedded/release/build/test.txt", uploadService.getItemPath(testFilePath, "embedded/", uploadService.getServiceData()));
+    private void testThatExistingBehaviorRemainsUnchanged_3(UploadService uploadService) {
+        String relativePath = "release/build/test.txt";
+        assertEquals("virtual/embedded/release/build/test.txt", uploadService.getItemPath(relativePath, "embedded/", uploadService.getServiceData()));
     }
 
     @Test
-    void testThatExistingBehaviorRemainsUnchanged_e_blob() throws IOException, InterruptedException {
+    void testThatExistingBehaviorRemainsUnchanged_e_blob() {
         addVirtualPath();
 
         testThatExistingBehaviorRemainsUnchanged_3(new UploadToBlobService(serviceData));
     }
 
     @Test
-    void testThatExistingBehaviorRemainsUnchanged_f_blob() throws IOException, InterruptedException {
+    void testThatExistingBehaviorRemainsUnchanged_f_blob() {
         addVirtualPath();
 
         testThatExistingBehaviorRemainsUnchanged_3(new UploadToFileService(serviceData));
@@ -136,21 +131,20 @@ class UploadServiceTest {
     // remove prefix    1
     // embedded VP      0
     // virtual path     0
-    private void testRemovePrefixNoEmbeddedVPNoVirtualPath(UploadService uploadService) throws IOException, InterruptedException {
-        File testFile = new File("workspace/release/build/test.txt");
-        FilePath testFilePath = new FilePath(launcher.getChannel(), testFile.getAbsolutePath());
-        assertEquals("test.txt", uploadService.getItemPath(testFilePath, "", uploadService.getServiceData()));
+    private void testRemovePrefixNoEmbeddedVPNoVirtualPath(UploadService uploadService) {
+        String relativePath = "release/build/test.txt";
+        assertEquals("test.txt", uploadService.getItemPath(relativePath, "", uploadService.getServiceData()));
     }
 
     @Test
-    void testRemovePrefixNoEmbeddedVPNoVirtualPath_blob() throws IOException, InterruptedException {
+    void testRemovePrefixNoEmbeddedVPNoVirtualPath_blob() {
         addRemovePrefix();
 
         testRemovePrefixNoEmbeddedVPNoVirtualPath(new UploadToBlobService(serviceData));
     }
 
     @Test
-    void testRemovePrefixNoEmbeddedVPNoVirtualPath_file() throws IOException, InterruptedException {
+    void testRemovePrefixNoEmbeddedVPNoVirtualPath_file() {
         addRemovePrefix();
 
         testRemovePrefixNoEmbeddedVPNoVirtualPath(new UploadToFileService(serviceData));
@@ -159,14 +153,13 @@ class UploadServiceTest {
     // remove prefix    1
     // embedded VP      0
     // virtual path     1
-    private void testRemovePrefixWithVirtualPath(UploadService uploadService) throws IOException, InterruptedException {
-        File testFile = new File("workspace/release/build/test.txt");
-        FilePath testFilePath = new FilePath(launcher.getChannel(), testFile.getAbsolutePath());
-        assertEquals("virtual/test.txt", uploadService.getItemPath(testFilePath, "", uploadService.getServiceData()));
+    private void testRemovePrefixWithVirtualPath(UploadService uploadService) {
+        String relativePath = "release/build/test.txt";
+        assertEquals("virtual/test.txt", uploadService.getItemPath(relativePath, "", uploadService.getServiceData()));
     }
 
     @Test
-    void testRemovePrefixWithVirtualPath_blob() throws IOException, InterruptedException {
+    void testRemovePrefixWithVirtualPath_blob() {
         addRemovePrefix();
         addVirtualPath();
 
@@ -174,7 +167,7 @@ class UploadServiceTest {
     }
 
     @Test
-    void testRemovePrefixWithVirtualPath_file() throws IOException, InterruptedException {
+    void testRemovePrefixWithVirtualPath_file() {
         addRemovePrefix();
         addVirtualPath();
 
@@ -184,21 +177,20 @@ class UploadServiceTest {
     // remove prefix    1
     // embedded VP      1
     // virtual path     0
-    private void testRemovePrefixWithEmbeddedVP(UploadService uploadService) throws IOException, InterruptedException {
-        File testFile = new File("workspace/release/build/test.txt");
-        FilePath testFilePath = new FilePath(launcher.getChannel(), testFile.getAbsolutePath());
-        assertEquals("embedded/test.txt", uploadService.getItemPath(testFilePath, "embedded/", uploadService.getServiceData()));
+    private void testRemovePrefixWithEmbeddedVP(UploadService uploadService) {
+        String relativePath = "release/build/test.txt";
+        assertEquals("embedded/test.txt", uploadService.getItemPath(relativePath, "embedded/", uploadService.getServiceData()));
     }
 
     @Test
-    void testRemovePrefixWithEmbeddedVP_blob() throws IOException, InterruptedException {
+    void testRemovePrefixWithEmbeddedVP_blob() {
         addRemovePrefix();
 
         testRemovePrefixWithEmbeddedVP(new UploadToBlobService(serviceData));
     }
 
     @Test
-    void testRemovePrefixWithEmbeddedVP_file() throws IOException, InterruptedException {
+    void testRemovePrefixWithEmbeddedVP_file() {
         addRemovePrefix();
 
         testRemovePrefixWithEmbeddedVP(new UploadToFileService(serviceData));
@@ -207,14 +199,13 @@ class UploadServiceTest {
     // remove prefix    1
     // embedded VP      1
     // virtual path     1
-    private void testRemovePrefixWithEmbeddedVPAndVirtualPath(UploadService uploadService) throws IOException, InterruptedException {
-        File testFile = new File("workspace/release/build/test.txt");
-        FilePath testFilePath = new FilePath(launcher.getChannel(), testFile.getAbsolutePath());
-        assertEquals("virtual/embedded/test.txt", uploadService.getItemPath(testFilePath, "embedded/", uploadService.getServiceData()));
+    private void testRemovePrefixWithEmbeddedVPAndVirtualPath(UploadService uploadService) {
+        String relativePath = "release/build/test.txt";
+        assertEquals("virtual/embedded/test.txt", uploadService.getItemPath(relativePath, "embedded/", uploadService.getServiceData()));
     }
 
     @Test
-    void testRemovePrefixWithEmbeddedVPAndVirtualPath_blob() throws IOException, InterruptedException {
+    void testRemovePrefixWithEmbeddedVPAndVirtualPath_blob() {
         addRemovePrefix();
         addVirtualPath();
 
@@ -222,7 +213,7 @@ class UploadServiceTest {
     }
 
     @Test
-    void testRemovePrefixWithEmbeddedVPAndVirtualPath_file() throws IOException, InterruptedException {
+    void testRemovePrefixWithEmbeddedVPAndVirtualPath_file() {
         addRemovePrefix();
         addVirtualPath();
 
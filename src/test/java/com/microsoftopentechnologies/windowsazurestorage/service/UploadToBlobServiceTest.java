@@ -0,0 +1,55 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UploadToBlobServiceTest {
+
+    @Test
+    void testCommonDirectory() {
+        assertEquals("", UploadToBlobService.commonDirectory(Collections.emptyList()));
+        assertEquals("", UploadToBlobService.commonDirectory(Arrays.asList("a.txt", "b.txt")));
+        assertEquals("drop/sdk/", UploadToBlobService.commonDirectory(
+                Arrays.asList("drop/sdk/lib/a.jar", "drop/sdk/bin/b.exe", "drop/sdk/c.txt")));
+        assertEquals("drop/", UploadToBlobService.commonDirectory(Arrays.asList("drop/sdk1/a", "drop/sdk2/a")));
+    }
+
+    @Test
+    void testListingPrefixes() {
+        List<String> lookups = new ArrayList<>();
+        assertEquals(Collections.singletonList("drop/"), UploadToBlobService.listingPrefixes(
+                Arrays.asList("drop/sdk1/a", "drop/sdk2/a"), lookups));
+        assertTrue(lookups.isEmpty());
+
+        // without a common directory, a few blobs are looked up rather than the whole container listed
+        assertEquals(Collections.emptyList(), UploadToBlobService.listingPrefixes(
+                Arrays.asList("a.txt", "lib/b.jar"), lookups));
+        assertEquals(Arrays.asList("a.txt", "lib/b.jar"), lookups);
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < UploadToBlobService.MAX_SINGLE_LOOKUPS; i++) {
+            names.add("lib/" + i + ".jar");
+            names.add("bin/" + i + ".exe");
+        }
+        names.add("README.md");
+        lookups.clear();
+        assertEquals(Arrays.asList("lib/", "bin/"), UploadToBlobService.listingPrefixes(names, lookups));
+        assertEquals(Collections.singletonList("README.md"), lookups);
+    }
+
+    @Test
+    void testCleanupKeepsSharedContent() {
+        assertTrue(UploadToBlobService.isSharedContent("cas/sha256/ab/cd/abcd"));
+        assertTrue(UploadToBlobService.isSharedContent("cas/manifests/job/1/x.json"));
+        assertFalse(UploadToBlobService.isSharedContent("drop/cas/sha256/a"));
+        assertFalse(UploadToBlobService.isSharedContent("cas/other.txt"));
+    }
+}
@@ -0,0 +1,33 @@
+package com.microsoftopentechnologies.windowsazurestorage.service.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArtifactManifestTest {
+    private static final String HELLO_SHA256 = "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824";
+
+    @Test
+    void testContentKeyFansOut() {
+        assertEquals("cas/sha256/2c/f2/" + HELLO_SHA256, ArtifactManifest.contentKey(HELLO_SHA256));
+    }
+
+    @Test
+    void testJsonRoundTrip() {
+        ArtifactManifest manifest = new ArtifactManifest();
+        assertTrue(manifest.isEmpty());
+        manifest.add("dir/hello.txt", HELLO_SHA256, 5);
+        manifest.add("dir/copy-of-hello.txt", HELLO_SHA256, 5);
+
+        Map<String, String> keys = ArtifactManifest.fromJson(manifest.toJson()).getContentKeys();
+
+        assertFalse(manifest.isEmpty());
+        assertEquals(2, keys.size());
+        assertEquals(ArtifactManifest.contentKey(HELLO_SHA256), keys.get("dir/hello.txt"));
+        assertEquals(ArtifactManifest.contentKey(HELLO_SHA256), keys.get("dir/copy-of-hello.txt"));
+    }
+}